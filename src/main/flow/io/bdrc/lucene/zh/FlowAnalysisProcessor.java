@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.analysis.Analyzer;
+
+/**
+ * A java.util.concurrent.Flow processor that subscribes to documents and publishes the
+ * tokens of batches of documents, analyzed on an executor with backpressure, see
+ * {@link BatchAnalysis}. Requires Java 9, only built with the opt-in "flow" profile
+ * (mvn -Pflow package).
+ *
+ * <pre>
+ * FlowAnalysisProcessor analysis = new FlowAnalysisProcessor(new ChineseAnalyzer("TC"), "contents", executor, 64, 4);
+ * documents.subscribe(analysis);
+ * analysis.subscribe(indexer);
+ * </pre>
+ *
+ * The processor has a single subscriber.
+ */
+public final class FlowAnalysisProcessor implements Flow.Processor<CharSequence, List<CapturedTokens>> {
+
+    private final BatchAnalysis batches;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    /**
+     * @see BatchAnalysis#BatchAnalysis(Analyzer, String, Executor, int, int)
+     */
+    public FlowAnalysisProcessor(Analyzer analyzer, String fieldName, Executor executor, int batchSize, int maxConcurrency) {
+        this.batches = new BatchAnalysis(analyzer, fieldName, executor, batchSize, maxConcurrency);
+    }
+
+    @Override
+    public void onSubscribe(final Flow.Subscription subscription) {
+        if (!batches.setUpstream(subscription::request, subscription::cancel)) {
+            subscription.cancel();
+        }
+    }
+
+    @Override
+    public void onNext(final CharSequence doc) {
+        batches.offer(doc);
+    }
+
+    @Override
+    public void onError(final Throwable error) {
+        batches.fail(error);
+    }
+
+    @Override
+    public void onComplete() {
+        batches.complete();
+    }
+
+    @Override
+    public void subscribe(final Flow.Subscriber<? super List<CapturedTokens>> subscriber) {
+        final BatchAnalysis.Listener listener = new BatchAnalysis.Listener() {
+            @Override
+            public void onBatch(final List<CapturedTokens> batch) {
+                subscriber.onNext(batch);
+            }
+
+            @Override
+            public void onError(final Throwable error) {
+                subscriber.onError(error);
+            }
+
+            @Override
+            public void onComplete() {
+                subscriber.onComplete();
+            }
+        };
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(final long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("FlowAnalysisProcessor has a single subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(final long n) {
+                batches.request(n);
+            }
+
+            @Override
+            public void cancel() {
+                batches.cancel();
+            }
+        });
+        batches.setListener(listener);
+    }
+}
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache of analyzed short inputs, shared by any number of
+ * {@link CachingChineseAnalyzer}s and threads.
+ *
+ * Entries are keyed by analyzer profile and input text. The least recently
+ * used entries are evicted as soon as either the number of entries or the
+ * estimated heap usage of the cached tokens exceeds its bound.
+ *
+ * Access is serialized on a single lock: a lookup is a hash lookup plus
+ * a relinking in the access-ordered list, much cheaper than the analysis
+ * it saves.
+ */
+public class AnalysisCache {
+
+    public static final int DEFAULT_MAX_INPUT_LENGTH = 64;
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final int maxInputLength;
+    private final LinkedHashMap<String, CapturedTokens> map;
+    private long weight = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxEntries
+     *              maximum number of cached inputs
+     * @param maxWeight
+     *              maximum estimated heap usage of the cached tokens, in bytes
+     */
+    public AnalysisCache(int maxEntries, long maxWeight) {
+        this(maxEntries, maxWeight, DEFAULT_MAX_INPUT_LENGTH);
+    }
+
+    /**
+     * @param maxEntries
+     *              maximum number of cached inputs
+     * @param maxWeight
+     *              maximum estimated heap usage of the cached tokens, in bytes
+     * @param maxInputLength
+     *              inputs longer than this (in chars) are never cached
+     */
+    public AnalysisCache(int maxEntries, long maxWeight, int maxInputLength) {
+        if (maxEntries <= 0 || maxWeight <= 0 || maxInputLength <= 0) {
+            throw new IllegalArgumentException("cache bounds must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.maxInputLength = maxInputLength;
+        this.map = new LinkedHashMap<String, CapturedTokens>(16, 0.75f, true);
+    }
+
+    static String key(String profile, String text) {
+        return profile + '\u0000' + text;
+    }
+
+    private static long weigh(String key, CapturedTokens tokens) {
+        return tokens.ramBytesUsed() + 2L * key.length();
+    }
+
+    public int getMaxInputLength() {
+        return maxInputLength;
+    }
+
+    /**
+     * @return the cached tokens, or null if the input is not in the cache
+     */
+    public CapturedTokens get(String profile, String text) {
+        final CapturedTokens tokens;
+        synchronized (map) {
+            tokens = map.get(key(profile, text));
+        }
+        if (tokens == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return tokens;
+    }
+
+    /**
+     * Adds an entry, evicting the least recently used ones if needed.
+     * Inputs longer than {@link #getMaxInputLength()} are ignored.
+     */
+    public void put(String profile, String text, CapturedTokens tokens) {
+        if (text.length() > maxInputLength) {
+            return;
+        }
+        final String key = key(profile, text);
+        final long entryWeight = weigh(key, tokens);
+        if (entryWeight > maxWeight) {
+            return;
+        }
+        synchronized (map) {
+            final CapturedTokens previous = map.put(key, tokens);
+            if (previous != null) {
+                weight -= weigh(key, previous);
+            }
+            weight += entryWeight;
+            final Iterator<Map.Entry<String, CapturedTokens>> it = map.entrySet().iterator();
+            while ((map.size() > maxEntries || weight > maxWeight) && it.hasNext()) {
+                final Map.Entry<String, CapturedTokens> eldest = it.next();
+                weight -= weigh(eldest.getKey(), eldest.getValue());
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (map) {
+            map.clear();
+            weight = 0;
+        }
+    }
+
+    public int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    /**
+     * @return the estimated heap usage of the cached entries, in bytes
+     */
+    public long weight() {
+        synchronized (map) {
+            return weight;
+        }
+    }
+
+    public long hitCount() {
+        return hits.get();
+    }
+
+    public long missCount() {
+        return misses.get();
+    }
+
+    public long evictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return hits / (hits + misses), 0 if the cache was never queried
+     */
+    public double hitRate() {
+        final long h = hits.get();
+        final long total = h + misses.get();
+        return (total == 0) ? 0.0: (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return "AnalysisCache(size=" + size() + ", weight=" + weight() + ", hits=" + hitCount()
+                + ", misses=" + missCount() + ", evictions=" + evictionCount() + ")";
+    }
+}
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.apache.lucene.analysis.Analyzer;
+
+/**
+ * The tokens of a list of documents as a java.util.stream.Stream, for n-gram statistics,
+ * stopword mining or deduplication in (parallel) stream pipelines:
+ *
+ * <pre>
+ * Map&lt;String, Long&gt; counts = AnalysisStreams.terms(analyzer, "contents", docs, true)
+ *         .collect(Collectors.groupingByConcurrent(t -&gt; t, Collectors.counting()));
+ * </pre>
+ *
+ * The Spliterator splits the list of documents, each document is analyzed by a single
+ * thread with its own {@link TokenCursor}, and the Analyzer reuses its components per
+ * thread. The documents are analyzed lazily, one at a time, when the stream reaches them.
+ *
+ * An IOException of the analysis is thrown as an UncheckedIOException.
+ */
+public final class AnalysisStreams {
+
+    private AnalysisStreams() {
+    }
+
+    /**
+     * @param mapper
+     *              reads the current token of the cursor, tokens mapped to null are skipped.
+     *              Mapping to primitive values or to existing objects avoids copying the terms.
+     * @return a Spliterator over the tokens of docs, mapped by mapper, in document order
+     */
+    public static <T> Spliterator<T> spliterator(final Analyzer analyzer, final String fieldName,
+            final List<? extends CharSequence> docs, final Function<TokenCursor, T> mapper) {
+        return new DocumentSpliterator<>(analyzer, fieldName, docs, mapper, 0, docs.size(), new TokenCursor());
+    }
+
+    /**
+     * @param parallel
+     *              true for a parallel stream, split on the documents
+     * @see #spliterator(Analyzer, String, List, Function)
+     */
+    public static <T> Stream<T> stream(final Analyzer analyzer, final String fieldName,
+            final List<? extends CharSequence> docs, final Function<TokenCursor, T> mapper, final boolean parallel) {
+        return StreamSupport.stream(spliterator(analyzer, fieldName, docs, mapper), parallel);
+    }
+
+    /**
+     * @return the tokens of docs
+     */
+    public static Stream<AnalyzedToken> tokens(final Analyzer analyzer, final String fieldName,
+            final List<? extends CharSequence> docs, final boolean parallel) {
+        return stream(analyzer, fieldName, docs, AnalyzedToken::of, parallel);
+    }
+
+    /**
+     * @return the tokens of text, sequentially
+     */
+    public static Stream<AnalyzedToken> tokens(final Analyzer analyzer, final String fieldName, final CharSequence text) {
+        return tokens(analyzer, fieldName, Collections.singletonList(text), false);
+    }
+
+    /**
+     * @return the terms of docs
+     */
+    public static Stream<String> terms(final Analyzer analyzer, final String fieldName,
+            final List<? extends CharSequence> docs, final boolean parallel) {
+        return stream(analyzer, fieldName, docs, TokenCursor::term, parallel);
+    }
+
+    /**
+     * @return the terms of text, sequentially
+     */
+    public static Stream<String> terms(final Analyzer analyzer, final String fieldName, final CharSequence text) {
+        return terms(analyzer, fieldName, Collections.singletonList(text), false);
+    }
+
+    static final class DocumentSpliterator<T> implements Spliterator<T> {
+        private final Analyzer analyzer;
+        private final String fieldName;
+        private final List<? extends CharSequence> docs;
+        private final Function<TokenCursor, T> mapper;
+        /* the next document to analyze and the end of the range */
+        private int next;
+        private final int end;
+        /* positioned in the document before next */
+        private TokenCursor cursor;
+
+        DocumentSpliterator(final Analyzer analyzer, final String fieldName, final List<? extends CharSequence> docs,
+                final Function<TokenCursor, T> mapper, final int next, final int end, final TokenCursor cursor) {
+            this.analyzer = analyzer;
+            this.fieldName = fieldName;
+            this.docs = docs;
+            this.mapper = mapper;
+            this.next = next;
+            this.end = end;
+            this.cursor = cursor;
+        }
+
+        /**
+         * @return false when all the documents have been read
+         */
+        private boolean nextToken() {
+            while (!cursor.next()) {
+                if (next >= end) {
+                    return false;
+                }
+                try {
+                    cursor.analyze(analyzer, fieldName, docs.get(next));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                cursor.document = next;
+                next ++;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean tryAdvance(final Consumer<? super T> action) {
+            while (nextToken()) {
+                final T mapped = mapper.apply(cursor);
+                if (mapped != null) {
+                    action.accept(mapped);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(final Consumer<? super T> action) {
+            while (nextToken()) {
+                final T mapped = mapper.apply(cursor);
+                if (mapped != null) {
+                    action.accept(mapped);
+                }
+            }
+        }
+
+        /**
+         * The prefix takes the rest of the current document and the first half of the
+         * documents left, this spliterator keeps the second half with a new cursor.
+         */
+        @Override
+        public Spliterator<T> trySplit() {
+            final int mid = (next + end) >>> 1;
+            if (mid <= next) {
+                return null;
+            }
+            final Spliterator<T> prefix = new DocumentSpliterator<>(analyzer, fieldName, docs, mapper, next, mid, cursor);
+            next = mid;
+            cursor = new TokenCursor();
+            return prefix;
+        }
+
+        /**
+         * @return the number of documents left
+         */
+        @Override
+        public long estimateSize() {
+            return end - next;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.util.Objects;
+
+/**
+ * An immutable copy of a token, as produced by {@link AnalysisStreams}.
+ */
+public final class AnalyzedToken {
+
+    private final int document;
+    private final int position;
+    private final String term;
+    private final int startOffset;
+    private final int endOffset;
+    private final String type;
+
+    public AnalyzedToken(final int document, final int position, final String term, final int startOffset,
+            final int endOffset, final String type) {
+        this.document = document;
+        this.position = position;
+        this.term = term;
+        this.startOffset = startOffset;
+        this.endOffset = endOffset;
+        this.type = type;
+    }
+
+    /**
+     * @return a copy of the current token of cursor
+     */
+    public static AnalyzedToken of(final TokenCursor cursor) {
+        return new AnalyzedToken(cursor.document(), cursor.position(), cursor.term(), cursor.startOffset(),
+                cursor.endOffset(), cursor.type());
+    }
+
+    /**
+     * @return the index of the document in the analyzed list
+     */
+    public int getDocument() {
+        return document;
+    }
+
+    /**
+     * @return the position of the token in its document, the first position being 0
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    public String getTerm() {
+        return term;
+    }
+
+    public int getStartOffset() {
+        return startOffset;
+    }
+
+    public int getEndOffset() {
+        return endOffset;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof AnalyzedToken)) {
+            return false;
+        }
+        final AnalyzedToken other = (AnalyzedToken) o;
+        return document == other.document && position == other.position && startOffset == other.startOffset
+                && endOffset == other.endOffset && term.equals(other.term) && Objects.equals(type, other.type);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(document, position, term, startOffset, endOffset, type);
+    }
+
+    @Override
+    public String toString() {
+        return term + " " + document + ":" + position + " " + startOffset + "-" + endOffset + " " + type;
+    }
+}
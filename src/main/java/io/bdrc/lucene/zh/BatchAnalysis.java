@@ -0,0 +1,334 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongConsumer;
+
+import org.apache.lucene.analysis.Analyzer;
+
+/**
+ * Analyzes a flow of documents on an executor, in batches, with backpressure: the
+ * adapter point for reactive pipelines, usable with any Reactive Streams library on
+ * Java 8. FlowAnalysisProcessor, a java.util.concurrent.Flow processor built over it,
+ * is added to the jar by the opt-in "flow" profile.
+ *
+ * The upstream side receives documents ({@link #offer(CharSequence)}, {@link #complete()},
+ * {@link #fail(Throwable)}) and asks for them with the request callback of
+ * {@link #setUpstream(LongConsumer, Runnable)}. The downstream side asks for batches with
+ * {@link #request(long)} and receives them in a {@link Listener}: each batch holds the
+ * tokens of batchSize consecutive documents (less for the last one), in document order.
+ *
+ * Documents are only requested for batches the downstream has asked for, and at most
+ * 2 * maxConcurrency batches are analyzed or waiting to be delivered: the memory used is
+ * bounded whatever the speeds of the producer and the consumer. A batch is analyzed by a
+ * single task, that reuses the components of the analyzer of its thread.
+ *
+ * The signals to the listener are serialized, the methods of this class can be called
+ * from any thread.
+ */
+public final class BatchAnalysis {
+
+    /**
+     * Receives the batches, as a Flow.Subscriber.
+     */
+    public interface Listener {
+        /**
+         * @param batch the tokens of the documents of the batch, in document order
+         */
+        void onBatch(List<CapturedTokens> batch);
+
+        void onError(Throwable error);
+
+        void onComplete();
+    }
+
+    private final Analyzer analyzer;
+    private final String fieldName;
+    private final Executor executor;
+    private final int batchSize;
+    private final int maxConcurrency;
+    /* the batches that can be analyzed or waiting to be delivered */
+    private final int window;
+
+    private volatile LongConsumer upstreamRequest = null;
+    private volatile Runnable upstreamCancel = null;
+    private volatile Listener listener = null;
+
+    private final ConcurrentLinkedQueue<CharSequence> docs = new ConcurrentLinkedQueue<>();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger running = new AtomicInteger();
+    private final ConcurrentHashMap<Long, List<CapturedTokens>> analyzed = new ConcurrentHashMap<>();
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+    private volatile boolean upstreamDone = false;
+    private volatile boolean cancelled = false;
+
+    /* only accessed by the thread running drain() */
+    private final AtomicInteger wip = new AtomicInteger();
+    private long taken = 0;
+    private long requestedDocs = 0;
+    private long started = 0;
+    private long delivered = 0;
+    private boolean terminated = false;
+
+    /**
+     * @param analyzer
+     *              the analyzer, a {@link ChineseAnalyzer} with any profile
+     * @param fieldName
+     *              the name of the field passed to the analyzer
+     * @param executor
+     *              runs the analysis of the batches
+     * @param batchSize
+     *              the number of documents of a batch
+     * @param maxConcurrency
+     *              the maximum number of batches analyzed at the same time
+     */
+    public BatchAnalysis(Analyzer analyzer, String fieldName, Executor executor, int batchSize, int maxConcurrency) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be > 0, got " + batchSize);
+        }
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be > 0, got " + maxConcurrency);
+        }
+        this.analyzer = analyzer;
+        this.fieldName = fieldName;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.maxConcurrency = maxConcurrency;
+        this.window = 2 * maxConcurrency;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Connects the source of the documents, as Flow.Subscriber.onSubscribe().
+     *
+     * @param request
+     *              asks the source for n more documents
+     * @param cancel
+     *              cancels the source
+     * @return false if a source was already connected, cancel should then be called
+     */
+    public boolean setUpstream(LongConsumer request, Runnable cancel) {
+        synchronized (this) {
+            if (this.upstreamRequest != null) {
+                return false;
+            }
+            this.upstreamCancel = cancel;
+            this.upstreamRequest = request;
+        }
+        drain();
+        return true;
+    }
+
+    /**
+     * Connects the consumer of the batches, as Flow.Publisher.subscribe().
+     *
+     * @return false if a listener was already connected
+     */
+    public boolean setListener(Listener listener) {
+        synchronized (this) {
+            if (this.listener != null) {
+                return false;
+            }
+            this.listener = listener;
+        }
+        drain();
+        return true;
+    }
+
+    /**
+     * Receives a document requested from the source.
+     */
+    public void offer(CharSequence doc) {
+        docs.add(doc);
+        received.incrementAndGet();
+        drain();
+    }
+
+    /**
+     * The source has no more documents: the last batch can be smaller than batchSize.
+     */
+    public void complete() {
+        upstreamDone = true;
+        drain();
+    }
+
+    /**
+     * The source failed: the error is passed to the listener, the batches not delivered yet are dropped.
+     */
+    public void fail(Throwable cause) {
+        error.compareAndSet(null, cause);
+        upstreamDone = true;
+        drain();
+    }
+
+    /**
+     * Asks for n more batches, as Flow.Subscription.request().
+     */
+    public void request(long n) {
+        if (n <= 0) {
+            error.compareAndSet(null, new IllegalArgumentException("the number of batches requested must be > 0, got " + n));
+        } else {
+            demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE: d + n);
+        }
+        drain();
+    }
+
+    /**
+     * Stops the analysis and cancels the source, as Flow.Subscription.cancel().
+     */
+    public void cancel() {
+        cancelled = true;
+        drain();
+    }
+
+    /**
+     * Delivers the analyzed batches, starts the analysis of the next ones and requests the
+     * documents they need: run by one thread at a time, the calls made while it runs
+     * make it loop again.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            if (!terminated) {
+                drainOnce();
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void drainOnce() {
+        final Listener listener = this.listener;
+        if (cancelled) {
+            terminate();
+            return;
+        }
+        if (listener == null) {
+            return;
+        }
+        final Throwable cause = error.get();
+        if (cause != null) {
+            terminate();
+            listener.onError(cause);
+            return;
+        }
+        /* deliver the batches in order */
+        while (demand.get() > 0 && !cancelled) {
+            final List<CapturedTokens> batch = analyzed.remove(delivered);
+            if (batch == null) {
+                break;
+            }
+            delivered ++;
+            if (demand.get() != Long.MAX_VALUE) {
+                demand.decrementAndGet();
+            }
+            listener.onBatch(batch);
+        }
+        if (cancelled || error.get() != null) {
+            return;
+        }
+        /* analyze the batches that have been asked for */
+        final boolean sourceDone = upstreamDone;
+        final long wanted = Math.min(demand.get(), window);
+        while (running.get() < maxConcurrency && started - delivered < wanted) {
+            final long available = received.get() - taken;
+            if (available < batchSize && !(sourceDone && available > 0)) {
+                break;
+            }
+            final List<CharSequence> batch = new ArrayList<>(batchSize);
+            while (batch.size() < batchSize && !docs.isEmpty()) {
+                batch.add(docs.poll());
+            }
+            taken += batch.size();
+            running.incrementAndGet();
+            final long number = started ++;
+            try {
+                executor.execute(() -> analyze(number, batch));
+            } catch (RejectedExecutionException e) {
+                running.decrementAndGet();
+                error.compareAndSet(null, e);
+                return;
+            }
+        }
+        /* request the documents of the next batches */
+        final LongConsumer request = upstreamRequest;
+        if (request != null && !sourceDone) {
+            final long batches = wanted - (started - delivered);
+            final long needed = batches * batchSize - (requestedDocs - taken);
+            if (needed > 0) {
+                requestedDocs += needed;
+                request.accept(needed);
+            }
+        }
+        if (sourceDone && received.get() == taken && running.get() == 0 && started == delivered) {
+            terminated = true;
+            listener.onComplete();
+        }
+    }
+
+    private void terminate() {
+        terminated = true;
+        docs.clear();
+        analyzed.clear();
+        final Runnable cancel = upstreamCancel;
+        if (cancel != null && !upstreamDone) {
+            cancel.run();
+        }
+    }
+
+    private void analyze(final long number, final List<CharSequence> batch) {
+        try {
+            if (!cancelled) {
+                final List<CapturedTokens> tokens = new ArrayList<>(batch.size());
+                for (final CharSequence doc: batch) {
+                    final CapturedTokens captured = new CapturedTokens();
+                    TokenCursor.analyze(analyzer, fieldName, doc, captured);
+                    tokens.add(captured);
+                }
+                analyzed.put(number, tokens);
+            }
+        } catch (IOException | RuntimeException e) {
+            error.compareAndSet(null, e);
+        } finally {
+            running.decrementAndGet();
+            drain();
+        }
+    }
+}
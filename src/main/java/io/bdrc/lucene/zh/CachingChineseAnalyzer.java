@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+
+/**
+ * Wraps a {@link ChineseAnalyzer} and caches the tokens produced for short inputs
+ * in an {@link AnalysisCache}. Meant to be used at query time, where the same
+ * short strings are analyzed over and over.
+ *
+ * Inputs longer than {@link AnalysisCache#getMaxInputLength()} are analyzed
+ * by the wrapped analyzer and streamed as-is.
+ *
+ * The entries are keyed by {@link ZhDictionaries#getGeneration()}: after a reload of
+ * a dictionary, the tokens cached with the previous tables are no longer returned.
+ *
+ * The produced tokens carry terms, offsets, position increments, types and payloads.
+ */
+public final class CachingChineseAnalyzer extends Analyzer {
+
+    private final ChineseAnalyzer analyzer;
+    private final AnalysisCache cache;
+    private final String profile;
+
+    /**
+     * @param analyzer
+     *              the analyzer producing the tokens that are not in the cache
+     * @param cache
+     *              the cache, can be shared between analyzers with different profiles
+     */
+    public CachingChineseAnalyzer(ChineseAnalyzer analyzer, AnalysisCache cache) {
+        this.analyzer = analyzer;
+        this.cache = cache;
+        this.profile = analyzer.getConfiguration();
+    }
+
+    public AnalysisCache getCache() {
+        return cache;
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents(final String fieldName) {
+        final CachingTokenizer tok = new CachingTokenizer(fieldName);
+        return new TokenStreamComponents(tok);
+    }
+
+    @Override
+    public void close() {
+        analyzer.close();
+        super.close();
+    }
+
+    /**
+     * Reads the whole input in reset(), then either replays cached tokens
+     * or forwards the tokens of the wrapped analyzer.
+     */
+    private final class CachingTokenizer extends Tokenizer {
+        private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+        private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+        private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+        private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+        private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
+
+        private final String fieldName;
+        private final StringBuilder text = new StringBuilder();
+        private final char[] readBuffer = new char[1024];
+
+        private CapturedTokens cached = null;
+        /* the profile of the cache entries, with the generation of the dictionaries */
+        private String cacheProfile = profile;
+        private long generation = 0;
+        private int upto = 0;
+
+        private TokenStream delegate = null;
+        private CharTermAttribute delegateTermAtt;
+        private OffsetAttribute delegateOffsetAtt;
+        private PositionIncrementAttribute delegatePosIncAtt;
+        private TypeAttribute delegateTypeAtt;
+        private PayloadAttribute delegatePayloadAtt;
+
+        CachingTokenizer(String fieldName) {
+            this.fieldName = fieldName;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            text.setLength(0);
+            int read;
+            while ((read = input.read(readBuffer)) != -1) {
+                text.append(readBuffer, 0, read);
+            }
+            final String str = text.toString();
+            upto = 0;
+            delegate = null;
+            cached = null;
+            if (str.length() <= cache.getMaxInputLength()) {
+                if (generation != ZhDictionaries.getGeneration()) {
+                    generation = ZhDictionaries.getGeneration();
+                    cacheProfile = profile + "#" + generation;
+                }
+                cached = cache.get(cacheProfile, str);
+                if (cached == null) {
+                    cached = new CapturedTokens();
+                    analyzer.analyze(str, cached);
+                    cache.put(cacheProfile, str, cached);
+                }
+            } else {
+                delegate = analyzer.tokenStream(fieldName, str);
+                delegateTermAtt = delegate.addAttribute(CharTermAttribute.class);
+                delegateOffsetAtt = delegate.addAttribute(OffsetAttribute.class);
+                delegatePosIncAtt = delegate.addAttribute(PositionIncrementAttribute.class);
+                delegateTypeAtt = delegate.addAttribute(TypeAttribute.class);
+                delegatePayloadAtt = delegate.addAttribute(PayloadAttribute.class);
+                delegate.reset();
+            }
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            clearAttributes();
+            if (delegate != null) {
+                if (!delegate.incrementToken()) {
+                    return false;
+                }
+                termAtt.copyBuffer(delegateTermAtt.buffer(), 0, delegateTermAtt.length());
+                offsetAtt.setOffset(delegateOffsetAtt.startOffset(), delegateOffsetAtt.endOffset());
+                posIncAtt.setPositionIncrement(delegatePosIncAtt.getPositionIncrement());
+                typeAtt.setType(delegateTypeAtt.type());
+                payloadAtt.setPayload(delegatePayloadAtt.getPayload());
+                return true;
+            }
+            if (upto >= cached.size()) {
+                return false;
+            }
+            cached.copyTo(upto, termAtt, offsetAtt, posIncAtt, typeAtt, payloadAtt);
+            upto ++;
+            return true;
+        }
+
+        @Override
+        public void end() throws IOException {
+            super.end();
+            final int finalOffset;
+            if (delegate != null) {
+                delegate.end();
+                finalOffset = delegateOffsetAtt.endOffset();
+            } else {
+                finalOffset = cached.finalOffset();
+            }
+            offsetAtt.setOffset(finalOffset, finalOffset);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (delegate != null) {
+                    delegate.close();
+                }
+            } finally {
+                delegate = null;
+                cached = null;
+                super.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * The output of a TokenStream stored in a few flat arrays:
+ * all the terms are concatenated in a single char[], offsets,
+ * position increments, types and payloads are kept in parallel arrays.
+ *
+ * The tokens can be replayed any number of times with {@link #replay()}.
+ *
+ * Instances are not thread-safe while they are being filled,
+ * but can be shared once filled.
+ */
+public class CapturedTokens implements Accountable {
+
+    private static final long BASE_RAM_BYTES = RamUsageEstimator.shallowSizeOfInstance(CapturedTokens.class);
+
+    private char[] termChars = new char[16];
+    private int[] termEnds = new int[4];
+    private int[] startOffsets = new int[4];
+    private int[] endOffsets = new int[4];
+    private int[] posIncs = new int[4];
+    private String[] types = new String[4];
+    private BytesRef[] payloads = new BytesRef[4];
+    private int size = 0;
+    private int charsUsed = 0;
+    private int finalOffset = 0;
+
+    public CapturedTokens() {
+    }
+
+    /**
+     * Consumes a TokenStream (reset(), incrementToken(), end() and close())
+     * and stores all its tokens.
+     *
+     * @param stream a TokenStream that has not been reset yet
+     * @return the captured tokens
+     * @throws IOException if the stream throws
+     */
+    public static CapturedTokens capture(TokenStream stream) throws IOException {
+        final CapturedTokens tokens = new CapturedTokens();
+        tokens.fill(stream);
+        return tokens;
+    }
+
+    /**
+     * Clears this instance and fills it with the tokens of stream,
+     * reusing the existing arrays.
+     *
+     * @param stream a TokenStream that has not been reset yet
+     * @throws IOException if the stream throws
+     */
+    public void fill(TokenStream stream) throws IOException {
+        clear();
+        final CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+        final OffsetAttribute offsetAtt = stream.addAttribute(OffsetAttribute.class);
+        final PositionIncrementAttribute posIncAtt = stream.addAttribute(PositionIncrementAttribute.class);
+        final TypeAttribute typeAtt = stream.addAttribute(TypeAttribute.class);
+        final PayloadAttribute payloadAtt = stream.addAttribute(PayloadAttribute.class);
+        try {
+            stream.reset();
+            while (stream.incrementToken()) {
+                add(termAtt.buffer(), 0, termAtt.length(), offsetAtt.startOffset(), offsetAtt.endOffset(),
+                        posIncAtt.getPositionIncrement(), typeAtt.type(), payloadAtt.getPayload());
+            }
+            stream.end();
+            finalOffset = offsetAtt.endOffset();
+        } finally {
+            stream.close();
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(payloads, 0, size, null);
+        size = 0;
+        charsUsed = 0;
+        finalOffset = 0;
+    }
+
+    void add(char[] term, int offset, int length, int startOffset, int endOffset, int posInc, String type,
+            BytesRef payload) {
+        if (size == termEnds.length) {
+            final int newLength = ArrayUtil.oversize(size + 1, Integer.BYTES);
+            termEnds = ArrayUtil.growExact(termEnds, newLength);
+            startOffsets = ArrayUtil.growExact(startOffsets, newLength);
+            endOffsets = ArrayUtil.growExact(endOffsets, newLength);
+            posIncs = ArrayUtil.growExact(posIncs, newLength);
+            types = ArrayUtil.growExact(types, newLength);
+            payloads = ArrayUtil.growExact(payloads, newLength);
+        }
+        termChars = ArrayUtil.grow(termChars, charsUsed + length);
+        System.arraycopy(term, offset, termChars, charsUsed, length);
+        charsUsed += length;
+        termEnds[size] = charsUsed;
+        startOffsets[size] = startOffset;
+        endOffsets[size] = endOffset;
+        posIncs[size] = posInc;
+        types[size] = type;
+        payloads[size] = (payload == null || payload.length == 0) ? null: BytesRef.deepCopyOf(payload);
+        size ++;
+    }
+
+    /**
+     * Appends all the tokens of other, shifting their offsets.
+     * The final offset becomes the shifted final offset of other.
+     *
+     * @param other the tokens to append
+     * @param offsetShift the value added to the offsets of other
+     */
+    public void append(CapturedTokens other, int offsetShift) {
+        append(other, 0, other.size, offsetShift);
+        finalOffset = other.finalOffset + offsetShift;
+    }
+
+    /**
+     * Appends the tokens of other from index from to index to, shifting their offsets.
+     * The final offset is left unchanged.
+     */
+    void append(CapturedTokens other, int from, int to, int offsetShift) {
+        final int count = to - from;
+        if (count <= 0) {
+            return;
+        }
+        if (size + count > termEnds.length) {
+            final int newLength = ArrayUtil.oversize(size + count, Integer.BYTES);
+            termEnds = ArrayUtil.growExact(termEnds, newLength);
+            startOffsets = ArrayUtil.growExact(startOffsets, newLength);
+            endOffsets = ArrayUtil.growExact(endOffsets, newLength);
+            posIncs = ArrayUtil.growExact(posIncs, newLength);
+            types = ArrayUtil.growExact(types, newLength);
+            payloads = ArrayUtil.growExact(payloads, newLength);
+        }
+        final int charsStart = other.termStart(from);
+        final int chars = other.termEnds[to - 1] - charsStart;
+        termChars = ArrayUtil.grow(termChars, charsUsed + chars);
+        System.arraycopy(other.termChars, charsStart, termChars, charsUsed, chars);
+        for (int i = 0; i < count; i ++) {
+            termEnds[size + i] = other.termEnds[from + i] - charsStart + charsUsed;
+            startOffsets[size + i] = other.startOffsets[from + i] + offsetShift;
+            endOffsets[size + i] = other.endOffsets[from + i] + offsetShift;
+        }
+        System.arraycopy(other.posIncs, from, posIncs, size, count);
+        System.arraycopy(other.types, from, types, size, count);
+        /* the payloads are never modified once captured, they are shared */
+        System.arraycopy(other.payloads, from, payloads, size, count);
+        charsUsed += chars;
+        size += count;
+    }
+
+    void setFinalOffset(int finalOffset) {
+        this.finalOffset = finalOffset;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String term(int i) {
+        final int start = termStart(i);
+        return new String(termChars, start, termEnds[i] - start);
+    }
+
+    int termStart(int i) {
+        return (i == 0) ? 0: termEnds[i - 1];
+    }
+
+    int termLength(int i) {
+        return termEnds[i] - termStart(i);
+    }
+
+    char[] termChars() {
+        return termChars;
+    }
+
+    public int startOffset(int i) {
+        return startOffsets[i];
+    }
+
+    public int endOffset(int i) {
+        return endOffsets[i];
+    }
+
+    public int positionIncrement(int i) {
+        return posIncs[i];
+    }
+
+    public String type(int i) {
+        return types[i];
+    }
+
+    /**
+     * @return the payload of the token at index i, null if it has none
+     */
+    public BytesRef payload(int i) {
+        return payloads[i];
+    }
+
+    public int finalOffset() {
+        return finalOffset;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return BASE_RAM_BYTES + RamUsageEstimator.sizeOf(termChars)
+                + RamUsageEstimator.sizeOf(termEnds) + RamUsageEstimator.sizeOf(startOffsets)
+                + RamUsageEstimator.sizeOf(endOffsets) + RamUsageEstimator.sizeOf(posIncs)
+                + RamUsageEstimator.shallowSizeOf(types) + payloadsRamBytesUsed();
+    }
+
+    private long payloadsRamBytesUsed() {
+        long bytes = RamUsageEstimator.shallowSizeOf(payloads);
+        for (int i = 0; i < size; i ++) {
+            if (payloads[i] != null) {
+                bytes += RamUsageEstimator.sizeOf(payloads[i].bytes) + RamUsageEstimator.shallowSizeOf(payloads[i]);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return a new TokenStream producing the captured tokens
+     */
+    public TokenStream replay() {
+        return new Replay(this);
+    }
+
+    /**
+     * Copies the token at index i in the attributes of a replaying stream.
+     */
+    void copyTo(int i, CharTermAttribute termAtt, OffsetAttribute offsetAtt,
+            PositionIncrementAttribute posIncAtt, TypeAttribute typeAtt, PayloadAttribute payloadAtt) {
+        final int start = termStart(i);
+        termAtt.copyBuffer(termChars, start, termEnds[i] - start);
+        offsetAtt.setOffset(startOffsets[i], endOffsets[i]);
+        posIncAtt.setPositionIncrement(posIncs[i]);
+        typeAtt.setType(types[i]);
+        payloadAtt.setPayload(payloads[i]);
+    }
+
+    static final class Replay extends TokenStream {
+        private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+        private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+        private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+        private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+        private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
+        private CapturedTokens tokens;
+        private int upto = 0;
+
+        Replay(CapturedTokens tokens) {
+            this.tokens = tokens;
+        }
+
+        /**
+         * Replays another set of tokens, to be called before reset().
+         */
+        void setTokens(CapturedTokens tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            if (upto >= tokens.size) {
+                return false;
+            }
+            clearAttributes();
+            tokens.copyTo(upto, termAtt, offsetAtt, posIncAtt, typeAtt, payloadAtt);
+            upto ++;
+            return true;
+        }
+
+        @Override
+        public void end() throws IOException {
+            super.end();
+            offsetAtt.setOffset(tokens.finalOffset, tokens.finalOffset);
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            upto = 0;
+        }
+    }
+}
@@ -19,34 +19,60 @@
  ******************************************************************************/
 package io.bdrc.lucene.zh;
 
+import java.io.IOException;
 import java.io.Reader;
+import java.nio.CharBuffer;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CharArrayMap;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.LowerCaseFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.commongrams.CommonGramsFilter;
+import org.apache.lucene.analysis.commongrams.CommonGramsQueryFilter;
+import org.apache.lucene.analysis.miscellaneous.ASCIIFoldingFilter;
+import org.apache.lucene.analysis.miscellaneous.ConditionalTokenFilter;
 import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.CloseableThreadLocal;
 
 /**
  * A Chinese Analyzer that uses {@link StandardTokenizer}
  * and {@link ZhOnlyFilter} to only keep Chinese tokens.
  * 
- * The produced tokens are individual ideograms.
+ * The produced tokens are individual ideograms. With a Latin chain
+ * (see {@link #setLatinChain(Function)}), the Latin tokens are kept as well.
  * 
  * @author Hélios Hildt
  **/
 public final class ChineseAnalyzer extends Analyzer {
   
+    private static final AtomicLong ids = new AtomicLong();
+    
+    private final long id = ids.incrementAndGet();
     private boolean stopwords = false;
     private String indexEncoding = null;
     private String inputEncoding = null;
     private int variants = -1;    
+    private boolean payloads = false;
+    private boolean streaming = false;
+    private CharArraySet commonGrams = null;
+    private boolean queryMode = false;
+    private ZhLexicon lexicon = null;
+    private Function<TokenStream, TokenStream> latinChain = null;
+    private final CloseableThreadLocal<FastPath> fastPaths = new CloseableThreadLocal<>();
     
     /**
      * Chinese Analyzer constructor with default values per profile
      * @param profile 
      *              either one of [exactTC, TC, TC2SC, TC2PYstrict, TC2PYlazy, 
-     *                             SC, SC2PYstrict, SC2PYlazy,
+     *                             SC, SC2TC, SC2PYstrict, SC2PYlazy,
      *                             PYstrict, PYstrict2PYlazy,
      *                             PYlazy]
      */
@@ -75,6 +101,10 @@ public final class ChineseAnalyzer extends Analyzer {
             this.inputEncoding = "SC";
             this.indexEncoding = "SC";
         
+        } else if (profile.equals("SC2TC")) {
+            this.inputEncoding = "SC";
+            this.indexEncoding = "TC";
+        
         } else if (profile.equals("SC2PYstrict")) {
             this.inputEncoding = "SC";
             this.indexEncoding = "PYstrict";
@@ -154,6 +184,12 @@ public final class ChineseAnalyzer extends Analyzer {
             this.variants = variants;
             this.stopwords = stopwords;
         
+        } else if (profile.equals("SC2TC")) {
+            this.inputEncoding = "SC";
+            this.indexEncoding = "TC";
+            this.variants = variants;
+            this.stopwords = stopwords;
+        
         } else if (profile.equals("SC2PYstrict")) {
             this.inputEncoding = "SC";
             this.indexEncoding = "PYstrict";
@@ -169,92 +205,496 @@ public final class ChineseAnalyzer extends Analyzer {
         } else if (profile.equals("PYstrict")) {
             this.inputEncoding = "PYstrict";
             this.indexEncoding = "PYstrict";
+            this.stopwords = stopwords;
 
         } else if (profile.equals("PYstrict2PYlazy")) {
             this.inputEncoding = "PYstrict";
             this.indexEncoding = "PYlazy";
+            this.stopwords = stopwords;
 
         } else if (profile.equals("PYlazy")) {
             this.inputEncoding = "PYlazy";
             this.indexEncoding = "PYlazy";
+            this.stopwords = stopwords;
         
         } else {
             throw new InvalidParameterException(profile+" is not a supported profile");
         }
     }
     
+    /**
+     * Stores the original ideogram in the payload of the tokens modified by
+     * the variant filters and by {@link TC2SCFilter}, so that exact queries
+     * can be run with {@link ZhPayloadQueries} on a normalized field.
+     * 
+     * When the index encoding is PYlazy, the payloads contain the tones
+     * stripped by {@link LazyPinyinFilter} instead.
+     * 
+     * Must be called before the analyzer is first used.
+     * 
+     * @param payloads
+     *              true to write payloads, false otherwise (default)
+     */
+    public void setPayloads(boolean payloads) {
+        this.payloads = payloads;
+    }
+    
+    public boolean getPayloads() {
+        return this.payloads;
+    }
+    
+    /**
+     * Analyzes in constant memory, whatever the length of the input:
+     * stopwords are removed by {@link ZhStopWordsTokenFilter} instead of
+     * {@link ZhStopWordsFilter}, that keeps an offset correction per removed stopword,
+     * and {@link PinyinNormalizingFilter} only keeps the recent offset corrections.
+     * 
+     * Must be called before the analyzer is first used.
+     * 
+     * @param streaming
+     *              true for bounded memory usage, false otherwise (default)
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+    
+    public boolean getStreaming() {
+        return this.streaming;
+    }
+    
+    /**
+     * Also indexes the common words as bigrams with their neighbors ("之_道"),
+     * with {@link CommonGramsFilter}: the unigrams are still indexed, but a phrase
+     * query analyzed in query mode only reads the short posting lists of the bigrams.
+     * 
+     * The common words are terms in the index encoding, see {@link ZhCommonGrams}
+     * to get them from zh-stopwords.txt or from the document frequencies of an index.
+     * They are usually combined with stopwords disabled.
+     * 
+     * Must be called before the analyzer is first used.
+     * 
+     * @param commonWords
+     *              the common words, null for no bigram (default)
+     */
+    public void setCommonGrams(CharArraySet commonWords) {
+        this.commonGrams = commonWords;
+    }
+    
+    public CharArraySet getCommonGrams() {
+        return this.commonGrams;
+    }
+    
+    /**
+     * Analyzes query strings instead of documents: with common grams, the unigrams
+     * of the common words are dropped when they are part of a bigram
+     * ({@link CommonGramsQueryFilter}).
+     * 
+     * Must be called before the analyzer is first used.
+     * 
+     * @param queryMode
+     *              true for queries, false for documents (default)
+     */
+    public void setQueryMode(boolean queryMode) {
+        this.queryMode = queryMode;
+    }
+    
+    public boolean getQueryMode() {
+        return this.queryMode;
+    }
+    
+    /**
+     * Also indexes the words of lexicon ("波羅蜜多"), stacked on their unigrams,
+     * with {@link ZhLexiconFilter}. In query mode, the longest words replace their
+     * unigrams, so that a phrase query on a word reads a single posting list.
+     * 
+     * Must be called before the analyzer is first used.
+     * 
+     * @param lexicon
+     *              the words, built with an analyzer of the same profile, null for no word (default)
+     */
+    public void setLexicon(ZhLexicon lexicon) {
+        this.lexicon = lexicon;
+    }
+    
+    public ZhLexicon getLexicon() {
+        return this.lexicon;
+    }
+    
+    /**
+     * Lowercases and folds to ASCII ("Prajñāpāramitā" → "prajnaparamita").
+     */
+    public static final Function<TokenStream, TokenStream> DEFAULT_LATIN_CHAIN = in -> new ASCIIFoldingFilter(new LowerCaseFilter(in));
+    
+    /**
+     * Keeps the Latin tokens and the numbers of the TC and SC inputs (IAST Sanskrit,
+     * English titles...) instead of dropping them, and routes them through latinChain:
+     * the Chinese tokens and the Latin tokens of a mixed text are produced by a single
+     * pass, in the same field. The Chinese tokens don't go through latinChain, and the
+     * filters of the profile leave the Latin tokens unchanged.
+     * 
+     * Has no effect on the pinyin inputs.
+     * 
+     * Must be called before the analyzer is first used.
+     * 
+     * @param latinChain
+     *              the filters of the Latin tokens, for ex. {@link #DEFAULT_LATIN_CHAIN},
+     *              null to drop them (default)
+     */
+    public void setLatinChain(Function<TokenStream, TokenStream> latinChain) {
+        this.latinChain = latinChain;
+    }
+    
+    public Function<TokenStream, TokenStream> getLatinChain() {
+        return this.latinChain;
+    }
+    
+    String getInputEncoding() {
+        return this.inputEncoding;
+    }
+    
+    String getIndexEncoding() {
+        return this.indexEncoding;
+    }
+    
+    int getVariants() {
+        return this.variants;
+    }
+    
+    /**
+     * @return the number of chars around a change of the TC or SC input text that
+     *         can change the tokens: the longest stopword, lexicon word or common gram
+     */
+    int getContextLength() {
+        int length = 1;
+        if (this.stopwords) {
+            length = Math.max(length, ZhStopWordsTokenFilter.ideograms.get().maxChars);
+        }
+        if (this.lexicon != null) {
+            length = Math.max(length, this.lexicon.getMaxPositions());
+        }
+        if (this.commonGrams != null) {
+            length = Math.max(length, 2);
+        }
+        return length;
+    }
+    
+    /**
+     * @return a string identifying the analysis performed by this analyzer,
+     *         two analyzers with the same configuration produce the same tokens;
+     *         with common grams, a lexicon or a latin chain, it is unique to this analyzer
+     */
+    String getConfiguration() {
+        return this.inputEncoding + "2" + this.indexEncoding + "/" + this.stopwords + "/" + this.variants + "/" + this.payloads + "/" + this.streaming
+                + "/" + (this.commonGrams == null ? "none": "commonGrams") + "/" + this.queryMode
+                + "/" + (this.lexicon == null ? "none": "lexicon")
+                + "/" + (this.latinChain == null ? "none": "latinChain")
+                // the common grams, the lexicon and the latin chain are only identified by their analyzer
+                + (this.commonGrams == null && this.lexicon == null && this.latinChain == null ? "" : "/#" + this.id);
+    }
+
+    /**
+     * Analyzes a short text, typically a query string, into reuse: produces the same
+     * tokens as {@link #tokenStream(String, String)} followed by {@link CapturedTokens#fill(TokenStream)}.
+     * 
+     * When the text needs no normalization, the Reader and the char filters are skipped:
+     * ideograms and punctuation are read directly from text by {@link IdeogramTokenizer},
+     * that also removes the stopwords, pinyin without anything for
+     * {@link PinyinNormalizingFilter} to normalize is read by a reused Reader.
+     * Other texts go through {@link #tokenStream(String, String)}.
+     * 
+     * @param text
+     *              the text to analyze
+     * @param reuse
+     *              cleared and filled with the tokens of text
+     * @throws IOException if the analysis throws
+     */
+    public void analyze(final CharSequence text, final CapturedTokens reuse) throws IOException {
+        FastPath fastPath = fastPaths.get();
+        if (fastPath == null) {
+            fastPath = new FastPath();
+            fastPaths.set(fastPath);
+        }
+        if (fastPath.ideograms != null) {
+            fastPath.ideograms.setText(text);
+        }
+        if (fastPath.ideograms != null && fastPath.ideograms.accepts()) {
+            reuse.fill(fastPath.stream);
+        } else if (fastPath.pinyin != null && !PinyinNormalizingFilter.needsNormalization(text)) {
+            fastPath.reader.setText(text);
+            fastPath.pinyin.setReader(fastPath.reader);
+            reuse.fill(fastPath.stream);
+        } else {
+            reuse.fill(tokenStream(null, text.toString()));
+        }
+    }
+    
+    /**
+     * Same as {@link #analyze(CharSequence, CapturedTokens)} on a slice of a char[],
+     * the offsets are relative to offset.
+     */
+    public void analyze(final char[] buffer, final int offset, final int length, final CapturedTokens reuse) throws IOException {
+        analyze(CharBuffer.wrap(buffer, offset, length), reuse);
+    }
+    
+    @Override
+    public void close() {
+        fastPaths.close();
+        super.close();
+    }
+    
     @Override
     protected Reader initReader(String fieldName, Reader reader) {
         
         /* if (the input is not PY and we want to filter stopwords) */
-        if (!this.inputEncoding.startsWith("PY") && this.stopwords) {
+        if (!this.inputEncoding.startsWith("PY") && this.stopwords && !this.streaming) {
             reader = new ZhStopWordsFilter(reader);
         }
         
          /* normalize all incoming Pinyin */
         if (this.inputEncoding.startsWith("PY")) {
-            reader = new PinyinNormalizingFilter(reader);
+            reader = new PinyinNormalizingFilter(reader, this.streaming);
         }
         
         return super.initReader(fieldName, reader);
     }
     
     @Override
-    protected TokenStreamComponents createComponents(final String fieldName) {        
+    protected Reader initReaderForNormalization(String fieldName, Reader reader) {
+        /* stopwords are not removed from the terms of multi-term queries */
+        if (this.inputEncoding.startsWith("PY")) {
+            reader = new PinyinNormalizingFilter(reader);
+        }
+        return super.initReaderForNormalization(fieldName, reader);
+    }
+    
+    /**
+     * Normalizes the terms of prefix, wildcard and fuzzy queries without tokenizing them:
+     * the variants, TC2SC and pinyin mappings are applied to each ideogram by
+     * {@link ZhCharMappingFilter}, pinyin is lowercased, numbered tones are converted
+     * to tone marks and tones are stripped as in {@link #createComponents(String)}.
+     * 
+     * SC ideograms are kept as-is in the SC2TC profile: a single term can't
+     * hold all the TC candidates of {@link SC2TCFilter}.
+     * 
+     * The fields index one token per ideogram or syllable, so the term of several
+     * ideograms or syllables ("經典*", "jīngdiǎn*") matches no token: build the prefix
+     * queries of several ideograms or syllables with {@link ZhPrefixQueries}.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    protected TokenStream normalize(String fieldName, TokenStream in) {
+        TokenStream result = in;
+        if (this.inputEncoding.startsWith("PY")) {
+            result = new LowerCaseFilter(result);
+            if (this.inputEncoding.equals("PYstrict")) {
+                result = new PinyinNumberedToMarkedFilter(result);
+            }
+        } else {
+            final List<CharArrayMap<char[]>> maps = new ArrayList<>();
+            if (this.variants == 1 || this.variants == 3) {
+                maps.add(ZhSynonymFilter.getMap());
+            }
+            if (this.variants == 2 || this.variants == 3) {
+                maps.add(ZhAlternatesFilter.getMap());
+            }
+            if (this.indexEncoding.equals("SC") && this.inputEncoding.equals("TC")) {
+                maps.add(TC2SCFilter.getMap());
+            } else if (this.indexEncoding.startsWith("PY")) {
+                maps.add(ZhToPinyinFilter.getMap());
+            }
+            if (!maps.isEmpty()) {
+                result = new ZhCharMappingFilter(result, maps.toArray(new CharArrayMap[0]));
+            }
+        }
+        if (this.indexEncoding.equals("PYlazy") && !this.inputEncoding.equals("PYlazy")) {
+            result = new LazyPinyinFilter(result);
+        }
+        return result;
+    }
+    
+    @Override
+    protected TokenStreamComponents createComponents(final String fieldName) {
         /* tokenizes in ideograms or in words separated by punctuation.*/
-        Tokenizer tok = null;
-        TokenStream tokenStream = null;
-        
+        final Tokenizer tok;
         if (this.inputEncoding.startsWith("PY")) {
             tok = new PinyinSyllableTokenizer();
         } else {
             tok = new StandardTokenizer();
         }
+        final TokenStream tokenStream = createFilters(tok, this.streaming);
+        if (tokenStream == tok) {
+            return new TokenStreamComponents(tok);
+        }
+        return new TokenStreamComponents(tok, tokenStream);
+    }
+    
+    /**
+     * @param tok
+     *              the tokenizer, or {@link IdeogramTokenizer}
+     * @param stopwordsOnTokens
+     *              true if the ideogram stopwords are removed by {@link ZhStopWordsTokenFilter}
+     *              instead of {@link ZhStopWordsFilter} in {@link #initReader(String, Reader)}
+     * @return the filters of this analyzer over tok
+     */
+    private TokenStream createFilters(final TokenStream tok, final boolean stopwordsOnTokens) {
+        /* payloads either contain the original ideograms or the pinyin tones */
+        final boolean keepOriginal = this.payloads && !this.indexEncoding.startsWith("PY");
+        final boolean keepTones = this.payloads && this.indexEncoding.equals("PYlazy");
+        
+        TokenStream tokenStream = null;
         
         /* if (input is either TC or SC) */
         if (this.inputEncoding.endsWith("C")) {
-            /* only keep TC tokens */
-            tokenStream = new ZhOnlyFilter(tok);
+            /* only keep TC tokens, and the Latin tokens with a Latin chain */
+            tokenStream = new ZhOnlyFilter(tok, this.latinChain != null);
+            if (this.latinChain != null) {
+                tokenStream = new LatinFilter(tokenStream, this.latinChain);
+            }
+            
+            /* in streaming mode, stopwords are filtered on tokens */
+            if (this.stopwords && stopwordsOnTokens) {
+                tokenStream = new ZhStopWordsTokenFilter(tokenStream);
+            }
+            
+            /* querying a TC index with SC: stack the TC candidates */
+            if (this.inputEncoding.equals("SC") && this.indexEncoding.equals("TC")) {
+                tokenStream = new SC2TCFilter(tokenStream);
+            }
             
             /* apply variant filters */
             if (variants == 0) {
                 // pass
             } else if (variants == 1) {
-                tokenStream = new ZhSynonymFilter(tokenStream);
+                tokenStream = new ZhSynonymFilter(tokenStream, keepOriginal);
             } else if (variants == 2) {
-                tokenStream = new ZhAlternatesFilter(tokenStream);
+                tokenStream = new ZhAlternatesFilter(tokenStream, keepOriginal);
             } else if (variants == 3) {
-                tokenStream = new ZhSynonymFilter(tokenStream);
-                tokenStream = new ZhAlternatesFilter(tokenStream);
+                tokenStream = new ZhSynonymFilter(tokenStream, keepOriginal);
+                tokenStream = new ZhAlternatesFilter(tokenStream, keepOriginal);
             }
         }
 
         /* indexing from TC to SC */
         if (this.indexEncoding.equals("SC") && this.inputEncoding.equals("TC")) {
-            tokenStream = new TC2SCFilter(tokenStream);
+            tokenStream = new TC2SCFilter(tokenStream, keepOriginal);
         /* indexing from ideograms to pinyin */
         } else if (this.indexEncoding.startsWith("PY") && this.inputEncoding.endsWith("C")) {
             tokenStream = new ZhToPinyinFilter(tokenStream);
             if (this.indexEncoding.equals("PYlazy")) {
-                tokenStream = new LazyPinyinFilter(tokenStream);
+                tokenStream = new LazyPinyinFilter(tokenStream, keepTones);
             }
         }
         
         /* indexing from any encoding to PYlazy */
         if (this.inputEncoding.startsWith("PY")) {
+            /* stopwords are filtered on marked syllables, with tones when the input has them */
             if (this.inputEncoding.equals("PYstrict") && this.indexEncoding.equals("PYstrict")) {
                 tokenStream = new PinyinNumberedToMarkedFilter(tok);
+                if (this.stopwords) {
+                    tokenStream = new PinyinStopWordsFilter(tokenStream, false);
+                }
             } else if (this.indexEncoding.equals("PYlazy") && !this.inputEncoding.equals("PYlazy")) {
                 if (this.inputEncoding.equals("PYstrict")) {
                     tokenStream = new PinyinNumberedToMarkedFilter(tok);
-                    tokenStream = new LazyPinyinFilter(tokenStream);
+                    if (this.stopwords) {
+                        tokenStream = new PinyinStopWordsFilter(tokenStream, false);
+                    }
+                    tokenStream = new LazyPinyinFilter(tokenStream, keepTones);
                 } else {
-                    tokenStream = new LazyPinyinFilter(tok);
+                    tokenStream = new LazyPinyinFilter(tok, keepTones);
                 }
+            } else if (this.stopwords) {
+                tokenStream = new PinyinStopWordsFilter(tok, true);
             } else {
-                return new TokenStreamComponents(tok);
+                tokenStream = tok;
             }
         }
-        return new TokenStreamComponents(tok, tokenStream);
+        
+        /* bigrams of the common words, on the terms in the index encoding */
+        if (this.commonGrams != null) {
+            if (this.queryMode) {
+                tokenStream = new CommonGramsQueryFilter(new CommonGramsFilter(tokenStream, this.commonGrams));
+            } else {
+                tokenStream = new CommonGramsFilter(tokenStream, this.commonGrams);
+            }
+        }
+        
+        /* words of the lexicon: the pinyin syllables of a word can be written apart or not */
+        if (this.lexicon != null) {
+            tokenStream = new ZhLexiconFilter(tokenStream, this.lexicon, this.queryMode, this.inputEncoding.startsWith("PY") ? -1: 0);
+        }
+        return tokenStream;
+    }
+    
+    /**
+     * The components of {@link #analyze(CharSequence, CapturedTokens)} for one thread.
+     */
+    private final class FastPath {
+        final IdeogramTokenizer ideograms;
+        final PinyinSyllableTokenizer pinyin;
+        final CharSequenceReader reader;
+        final TokenStream stream;
+        
+        FastPath() {
+            if (inputEncoding.startsWith("PY")) {
+                ideograms = null;
+                pinyin = new PinyinSyllableTokenizer();
+                reader = new CharSequenceReader();
+                stream = createFilters(pinyin, streaming);
+            } else {
+                /* in streaming mode, ZhStopWordsTokenFilter doesn't extend the end offsets */
+                ideograms = new IdeogramTokenizer(stopwords ? ZhStopWordsTokenFilter.ideograms: null, !streaming);
+                pinyin = null;
+                reader = null;
+                stream = createFilters(ideograms, false);
+            }
+        }
+    }
+    
+    /**
+     * Applies the Latin chain to the tokens that are not Chinese.
+     */
+    private static final class LatinFilter extends ConditionalTokenFilter {
+        private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+        
+        LatinFilter(final TokenStream input, final Function<TokenStream, TokenStream> latinChain) {
+            super(input, latinChain);
+        }
+        
+        @Override
+        protected boolean shouldFilter() throws IOException {
+            return !ZhOnlyFilter.isZhType(typeAtt.type());
+        }
+    }
+    
+    /**
+     * A Reader over a CharSequence that can be reused for another one.
+     */
+    private static final class CharSequenceReader extends Reader {
+        private CharSequence text = "";
+        private int pos = 0;
+        
+        void setText(final CharSequence text) {
+            this.text = text;
+            this.pos = 0;
+        }
+        
+        @Override
+        public int read(final char[] cbuf, final int off, final int len) {
+            if (pos >= text.length()) {
+                return -1;
+            }
+            final int count = Math.min(len, text.length() - pos);
+            for (int i = 0; i < count; i ++) {
+                cbuf[off + i] = text.charAt(pos + i);
+            }
+            pos += count;
+            return count;
+        }
+        
+        @Override
+        public void close() {
+            text = "";
+        }
     }
 }
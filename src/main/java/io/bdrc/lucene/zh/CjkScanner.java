@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+/**
+ * Classifies the chars of a buffer by runs: the chars below a limit (the ASCII and
+ * Latin-1 letters of pinyin, spaces and punctuation, that can be skipped or copied as-is)
+ * and the BMP ideographs.
+ *
+ * This is the scalar version. On JDK 17 and later, the multi-release jar contains a
+ * version that compares whole vectors of chars with the incubating Vector API when the
+ * jdk.incubator.vector module is available (--add-modules jdk.incubator.vector),
+ * see src/main/java17. Both versions return the same indexes.
+ */
+final class CjkScanner {
+
+    /* the first char of an ideograph, see IdeogramTokenizer.isIdeograph() */
+    static final char MIN_IDEOGRAPH = '\u3400';
+
+    private CjkScanner() {
+    }
+
+    /**
+     * @return true if the scans use the Vector API
+     */
+    static boolean isVectorized() {
+        return false;
+    }
+
+    /**
+     * @return true if c is an ideograph of the URO or of the extension A
+     */
+    static boolean isBmpIdeograph(final char c) {
+        return (c >= '\u3400' && c <= '\u4DB5') || (c >= '\u4E00' && c <= '\u9FD5');
+    }
+
+    /**
+     * @return the index of the first char of buffer[from, to) that is not below limit, to if there is none
+     */
+    static int skipBelow(final char[] buffer, final int from, final int to, final char limit) {
+        int i = from;
+        while (i < to && buffer[i] < limit) {
+            i ++;
+        }
+        return i;
+    }
+
+    /**
+     * @return the index of the first char of buffer[from, to) that is not a BMP ideograph, to if there is none
+     */
+    static int skipBmpIdeographs(final char[] buffer, final int from, final int to) {
+        int i = from;
+        while (i < to && isBmpIdeograph(buffer[i])) {
+            i ++;
+        }
+        return i;
+    }
+}
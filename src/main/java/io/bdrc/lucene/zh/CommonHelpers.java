@@ -6,9 +6,17 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.lucene.analysis.CharArrayMap;
 import org.apache.lucene.analysis.charfilter.NormalizeCharMap;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.util.BytesRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,14 +24,23 @@ public class CommonHelpers {
     private static final Logger logger = LoggerFactory.getLogger(CommonHelpers.class);
     public static final String baseDir = "src/main/resources/";
     
+    /**
+     * Looks for baseName in the classpath, at the root of the jar: through this class, then
+     * through the thread context class loader (application servers), then in {@link #baseDir}
+     * (running from the source tree). Class.getResourceAsStream() also finds the resources
+     * registered in a native image.
+     * 
+     * @return the stream of baseName, null if it cannot be found
+     */
     public static InputStream getResourceOrFile(final String baseName) {
         InputStream stream = null;
-        stream = CommonHelpers.class.getClassLoader().getResourceAsStream("/"+baseName);
+        stream = CommonHelpers.class.getResourceAsStream("/"+baseName);
         if (stream != null) {
             logger.info("found resource /{} through regular classloader", baseName);
             return stream;
         }
-        stream = Thread.currentThread().getContextClassLoader().getResourceAsStream("/"+baseName);
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        stream = contextClassLoader == null ? null: contextClassLoader.getResourceAsStream(baseName);
         if (stream != null) {
             logger.info("found resource /{} through thread context classloader", baseName);
             return stream;
@@ -40,13 +57,19 @@ public class CommonHelpers {
     }
     
     public static final HashMap<String, String> getMappings (final String baseName) {
-        final InputStream stream = CommonHelpers.getResourceOrFile(baseName);
+        return getMappings(CommonHelpers.getResourceOrFile(baseName), baseName);
+    }
+
+    /**
+     * Same as {@link #getMappings(String)}, from stream (closed), null if stream is null.
+     */
+    public static final HashMap<String, String> getMappings (final InputStream stream, final String baseName) {
         final HashMap<String, String> map = new HashMap<String, String>();
         if (stream == null) {
             logger.error("cannot find {}, no mapping will occur", baseName);
             return null;
         }
-        final BufferedReader br = new BufferedReader(new InputStreamReader(stream));
+        final BufferedReader br = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
         String line = null;
         try {
             while ((line = br.readLine()) != null) {
@@ -61,6 +84,97 @@ public class CommonHelpers {
         return map;
     }
 
+    /**
+     * Same as {@link #getMappings(String)}, in a CharArrayMap that can be looked up with the
+     * buffer of a CharTermAttribute, without creating a String for each token.
+     * 
+     * @return the mappings, an empty map if baseName cannot be found
+     */
+    public static final CharArrayMap<char[]> getCharArrayMappings (final String baseName) {
+        return getCharArrayMappings(CommonHelpers.getResourceOrFile(baseName), baseName);
+    }
+
+    /**
+     * Same as {@link #getCharArrayMappings(String)}, from stream (closed), empty if stream is null.
+     */
+    public static final CharArrayMap<char[]> getCharArrayMappings (final InputStream stream, final String baseName) {
+        final HashMap<String, String> mappings = getMappings(stream, baseName);
+        if (mappings == null) {
+            return CharArrayMap.emptyMap();
+        }
+        final CharArrayMap<char[]> map = new CharArrayMap<>(mappings.size(), false);
+        for (final Map.Entry<String, String> e: mappings.entrySet()) {
+            map.put(e.getKey(), e.getValue().toCharArray());
+        }
+        return map;
+    }
+
+    public static final List<String> getWords (final String baseName) {
+        return getWords(CommonHelpers.getResourceOrFile(baseName), baseName);
+    }
+
+    /**
+     * Same as {@link #getWords(String)}, from stream (closed), empty if stream is null.
+     */
+    public static final List<String> getWords (final InputStream stream, final String baseName) {
+        final List<String> words = new ArrayList<String>();
+        if (stream == null) {
+            logger.error("cannot find {}, no word will be read", baseName);
+            return words;
+        }
+        final BufferedReader br = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+        String line = null;
+        try {
+            while ((line = br.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    words.add(line);
+                }
+            }
+            br.close();
+        } catch (IOException e) {
+            logger.error("problem when reading "+baseName, e);
+        }
+        return words;
+    }
+
+    /**
+     * Same as {@link #getWords(InputStream, String)}, but an error is thrown instead
+     * of returning the words read before it.
+     */
+    public static final List<String> readWords (final InputStream stream) throws IOException {
+        final List<String> words = new ArrayList<String>();
+        try (final BufferedReader br = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line = null;
+            while ((line = br.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    words.add(line);
+                }
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Same as {@link #getCharArrayMappings(InputStream, String)}, but an error is thrown
+     * instead of returning the mappings read before it.
+     * 
+     * @throws IOException if stream cannot be read or a line has no tab
+     */
+    public static final CharArrayMap<char[]> readCharArrayMappings (final InputStream stream) throws IOException {
+        final CharArrayMap<char[]> map = new CharArrayMap<>(64, false);
+        try (final BufferedReader br = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line = null;
+            while ((line = br.readLine()) != null) {
+                final String[] parts = line.split("\t");
+                if (parts.length < 2) {
+                    throw new IOException("no tab in line: " + line);
+                }
+                map.put(parts[0], parts[1].toCharArray());
+            }
+        }
+        return map;
+    }
+
     public final static NormalizeCharMap getNormalizeCharMap(final String baseName, boolean oneColumn) {
         final InputStream stream = CommonHelpers.getResourceOrFile(baseName);
         final NormalizeCharMap.Builder builder = new NormalizeCharMap.Builder();
@@ -68,7 +182,7 @@ public class CommonHelpers {
             logger.error("cannot find {}, no mapping will occur", baseName);
             return builder.build();
         }
-        final BufferedReader br = new BufferedReader(new InputStreamReader(stream));
+        final BufferedReader br = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
         String line = null;
         try {
             while ((line = br.readLine()) != null) {
@@ -86,4 +200,14 @@ public class CommonHelpers {
         }
         return builder.build();
     }
+
+    /**
+     * Stores the current term in the payload before a filter modifies it,
+     * unless a previous filter already stored the original term.
+     */
+    public static void keepOriginalInPayload(final CharTermAttribute termAtt, final PayloadAttribute payloadAtt) {
+        if (payloadAtt.getPayload() == null) {
+            payloadAtt.setPayload(new BytesRef(termAtt));
+        }
+    }
 }
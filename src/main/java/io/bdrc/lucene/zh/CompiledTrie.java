@@ -16,8 +16,12 @@ public class CompiledTrie {
     public static final String trieBaseFileName = "zh_py-compiled-trie.dump";
     public static final String trieFileName = CommonHelpers.baseDir+trieBaseFileName;
     
+    /**
+     * Stores the trie in args[0], in src/main/resources/ if there is no argument.
+     * The build stores it in target/classes, so that the jar contains it.
+     */
     public static void main(String [] args) throws FileNotFoundException, IOException{
-        storeTrie(buildTrie(), trieFileName);
+        storeTrie(buildTrie(), args.length > 0 ? args[0]: trieFileName);
     }
     
 
@@ -106,8 +110,9 @@ public class CompiledTrie {
      * @throws IOException could not write to file
      */
     public static void storeTrie(Trie trie, String outFilename) throws FileNotFoundException, IOException {
-        OutputStream output = new DataOutputStream(new FileOutputStream(outFilename));
-        trie.store((DataOutput) output);
+        try (OutputStream output = new DataOutputStream(new FileOutputStream(outFilename))) {
+            trie.store((DataOutput) output);
+        }
     }
     
 }
@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Produces one "&lt;IDEOGRAPHIC&gt;" token per ideogram of a CharSequence, directly
+ * from its chars: no Reader and no JFlex buffer.
+ *
+ * On the texts accepted by {@link #accepts()}, the tokens are the same as
+ * the tokens of {@link org.apache.lucene.analysis.standard.StandardTokenizer} followed
+ * by {@link ZhOnlyFilter}. Used by {@link ChineseAnalyzer#analyze(CharSequence, CapturedTokens)}.
+ *
+ * The stopwords can be removed from the chars as {@link ZhStopWordsFilter} does: the longest
+ * stopword starting at each position is skipped. The end offset of a token followed by
+ * stopwords then covers them, as with the offset corrections of the MappingCharFilter.
+ *
+ * The text is copied to a reused buffer, scanned by {@link CjkScanner}: the runs of chars
+ * that can neither be an ideograph nor start a stopword (Latin, punctuation) are skipped at once.
+ */
+final class IdeogramTokenizer extends TokenStream {
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+    private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+
+    private final ZhDictionary<ZhStopWordsTokenFilter.StopWords> dictionary;
+    private final boolean extendOverStopwords;
+    /* the version of the stopwords read at reset() */
+    private ZhStopWordsTokenFilter.StopWords stopwords = null;
+    /* the chars below cannot start a token or a stopword */
+    private char skipLimit = CjkScanner.MIN_IDEOGRAPH;
+
+    private char[] buffer = new char[0];
+    private int length = 0;
+    private int pos = 0;
+
+    /**
+     * @param dictionary
+     *              the stopwords to remove, null for none
+     * @param extendOverStopwords
+     *              true to extend the end offsets over the following stopwords
+     */
+    IdeogramTokenizer(final ZhDictionary<ZhStopWordsTokenFilter.StopWords> dictionary, final boolean extendOverStopwords) {
+        this.dictionary = dictionary;
+        this.extendOverStopwords = extendOverStopwords;
+    }
+
+    /**
+     * @return true if cp is an ideogram that StandardTokenizer tokenizes alone:
+     *         the ideographs of its Unicode tables (URO, ext. A to E, compatibility)
+     */
+    static boolean isIdeograph(final int cp) {
+        if (cp < 0x3400) {
+            return false;
+        }
+        if (cp <= 0x4DB5 || (cp >= 0x4E00 && cp <= 0x9FD5) || (cp >= 0x20000 && cp <= 0x2A6D6)) {
+            return true;
+        }
+        return ((cp >= 0xF900 && cp <= 0xFAFF) || (cp >= 0x2A700 && cp <= 0x2CEAF) || (cp >= 0x2F800 && cp <= 0x2FA1F))
+                && Character.isIdeographic(cp);
+    }
+
+    /**
+     * @return true if the text only contains ideographs, white spaces and punctuation,
+     *         none of which can be part of the token of an ideograph
+     */
+    boolean accepts() {
+        for (int i = 0; i < length; ) {
+            i = CjkScanner.skipBmpIdeographs(buffer, i, length);
+            if (i == length) {
+                break;
+            }
+            final int cp = Character.codePointAt(buffer, i, length);
+            if (!isIdeograph(cp) && !Character.isWhitespace(cp)) {
+                switch (Character.getType(cp)) {
+                case Character.OTHER_PUNCTUATION:
+                case Character.START_PUNCTUATION:
+                case Character.END_PUNCTUATION:
+                case Character.INITIAL_QUOTE_PUNCTUATION:
+                case Character.FINAL_QUOTE_PUNCTUATION:
+                case Character.DASH_PUNCTUATION:
+                    break;
+                default:
+                    return false;
+                }
+            }
+            i += Character.charCount(cp);
+        }
+        return true;
+    }
+
+    /**
+     * @return the length of the longest stopword starting at start, 0 if there is none
+     */
+    private int matchStopword(final int start) {
+        if (stopwords == null) {
+            return 0;
+        }
+        int longest = 0;
+        int n = 0;
+        while (n < stopwords.maxChars && start + n < length) {
+            n ++;
+            if (stopwords.words.contains(buffer, start, n)) {
+                longest = n;
+            }
+            if (!stopwords.prefixes.contains(buffer, start, n)) {
+                break;
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * Sets the text to tokenize, to be called before reset().
+     */
+    void setText(final CharSequence text) {
+        length = text.length();
+        if (buffer.length < length) {
+            buffer = new char[ArrayUtil.oversize(length, Character.BYTES)];
+        }
+        if (text instanceof String) {
+            ((String) text).getChars(0, length, buffer, 0);
+        } else {
+            for (int i = 0; i < length; i ++) {
+                buffer[i] = text.charAt(i);
+            }
+        }
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        while (pos < length) {
+            if (buffer[pos] < skipLimit) {
+                pos = CjkScanner.skipBelow(buffer, pos, length, skipLimit);
+                continue;
+            }
+            final int stopword = matchStopword(pos);
+            if (stopword > 0) {
+                pos += stopword;
+                continue;
+            }
+            final int cp = Character.codePointAt(buffer, pos, length);
+            final int charCount = Character.charCount(cp);
+            if (isIdeograph(cp)) {
+                clearAttributes();
+                termAtt.copyBuffer(buffer, pos, charCount);
+                final int start = pos;
+                pos += charCount;
+                int end = pos;
+                if (extendOverStopwords) {
+                    int stopwordAfter;
+                    while ((stopwordAfter = matchStopword(pos)) > 0) {
+                        pos += stopwordAfter;
+                    }
+                    end = pos;
+                }
+                offsetAtt.setOffset(start, end);
+                posIncAtt.setPositionIncrement(1);
+                typeAtt.setType("<IDEOGRAPHIC>");
+                return true;
+            }
+            pos += charCount;
+        }
+        return false;
+    }
+
+    @Override
+    public void end() throws IOException {
+        super.end();
+        offsetAtt.setOffset(length, length);
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        pos = 0;
+        if (dictionary != null) {
+            stopwords = dictionary.get();
+            skipLimit = (char) Math.min(CjkScanner.MIN_IDEOGRAPH, stopwords.minFirst);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        length = 0;
+    }
+}
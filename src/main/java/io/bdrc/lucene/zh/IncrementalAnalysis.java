@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Updates the tokens of an edited text by analyzing a small window around the edit,
+ * for the term vectors and highlights of a document fixed one character at a time.
+ *
+ * The unigrams of the TC and SC inputs only depend on the chars around them up to the
+ * longest stopword (or lexicon word, or common gram). The window starts and ends that far
+ * from the edit, and more; its tokens are spliced in the previous tokens at anchors:
+ * runs of "&lt;IDEOGRAPHIC&gt;" tokens that the window and the previous analysis agree on,
+ * away from the edit and from the ends of the window. Positions are position increments,
+ * the offsets after the edit are shifted. When no anchor is found the window is doubled,
+ * up to the whole text: the result is always the tokens of a full analysis.
+ *
+ * The pinyin inputs, whose syllables depend on the letters around them, are always
+ * analyzed in full.
+ */
+public final class IncrementalAnalysis {
+
+    private final ChineseAnalyzer analyzer;
+    private final AtomicLong incremental = new AtomicLong();
+    private final AtomicLong full = new AtomicLong();
+
+    /**
+     * @param analyzer
+     *              the analyzer that produced the previous tokens, with its dictionaries unchanged
+     */
+    public IncrementalAnalysis(ChineseAnalyzer analyzer) {
+        this.analyzer = analyzer;
+    }
+
+    /**
+     * The edit replaced the chars from start to oldEnd of the previous text by the chars
+     * from start to newEnd of text.
+     *
+     * @param previous
+     *              the tokens of the previous text, left unchanged
+     * @param text
+     *              the text after the edit
+     * @param start
+     *              the start of the edit
+     * @param oldEnd
+     *              the end of the replaced chars, in the previous text
+     * @param newEnd
+     *              the end of the new chars, in text
+     * @return the tokens of text
+     * @throws IOException if the analysis throws
+     */
+    public CapturedTokens update(final CapturedTokens previous, final CharSequence text, final int start,
+            final int oldEnd, final int newEnd) throws IOException {
+        if (start < 0 || oldEnd < start || newEnd < start || newEnd > text.length()) {
+            throw new IllegalArgumentException("invalid edit " + start + "-" + oldEnd + " to " + start + "-" + newEnd
+                    + " of a text of length " + text.length());
+        }
+        final CapturedTokens window = new CapturedTokens();
+        if (analyzer.getInputEncoding().startsWith("PY")) {
+            full.incrementAndGet();
+            analyzer.analyze(text, window);
+            return window;
+        }
+        final int margin = analyzer.getContextLength();
+        final int delta = newEnd - oldEnd;
+        for (int reach = 4 * margin; ; reach *= 2) {
+            final int windowStart = Math.max(0, start - reach);
+            final int windowEnd = Math.min(text.length(), newEnd + reach);
+            analyzer.analyze(text.subSequence(windowStart, windowEnd), window);
+            if (windowStart == 0 && windowEnd == text.length()) {
+                full.incrementAndGet();
+                return window;
+            }
+            /* the tokens before the left anchor are the previous ones */
+            int leftWindow = 0;
+            int leftPrevious = 0;
+            if (windowStart > 0) {
+                leftWindow = -1;
+                for (int i = 0; i < window.size() && leftWindow < 0; i ++) {
+                    final int anchorStart = window.startOffset(i) + windowStart;
+                    if (anchorStart < windowStart + margin || !isAnchor(window, i)) {
+                        continue;
+                    }
+                    final int p = find(previous, anchorStart);
+                    if (p >= 0 && agree(window, i, windowStart, previous, p, 0, 2 * margin, start - margin)) {
+                        leftWindow = i;
+                        leftPrevious = p;
+                    }
+                }
+                if (leftWindow < 0) {
+                    continue;
+                }
+            }
+            /* the tokens from the right anchor are the previous ones, shifted */
+            int rightWindow = window.size();
+            int rightPrevious = previous.size();
+            if (windowEnd < text.length()) {
+                rightWindow = -1;
+                for (int j = leftWindow; j < window.size() && rightWindow < 0; j ++) {
+                    final int anchorStart = window.startOffset(j) + windowStart;
+                    if (anchorStart < newEnd + margin || !isAnchor(window, j)) {
+                        continue;
+                    }
+                    final int q = find(previous, anchorStart - delta);
+                    if (q >= leftPrevious && agree(window, j, windowStart, previous, q, delta, 2 * margin, windowEnd - margin)) {
+                        rightWindow = j;
+                        rightPrevious = q;
+                    }
+                }
+                if (rightWindow < 0) {
+                    continue;
+                }
+            }
+            final CapturedTokens tokens = new CapturedTokens();
+            tokens.append(previous, 0, leftPrevious, 0);
+            tokens.append(window, leftWindow, rightWindow, windowStart);
+            tokens.append(previous, rightPrevious, previous.size(), delta);
+            tokens.setFinalOffset(windowEnd < text.length() ? previous.finalOffset() + delta: window.finalOffset() + windowStart);
+            incremental.incrementAndGet();
+            return tokens;
+        }
+    }
+
+    /**
+     * @return the number of updates that analyzed a window
+     */
+    public long getIncrementalCount() {
+        return incremental.get();
+    }
+
+    /**
+     * @return the number of updates that analyzed the whole text
+     */
+    public long getFullCount() {
+        return full.get();
+    }
+
+    /* an ideogram starting a position */
+    private static boolean isAnchor(final CapturedTokens tokens, final int i) {
+        return tokens.positionIncrement(i) > 0 && "<IDEOGRAPHIC>".equals(tokens.type(i));
+    }
+
+    /**
+     * @return the index of the first token of tokens starting at startOffset, -1 if there is none.
+     *         The start offsets of the tokens of an analysis never decrease.
+     */
+    private static int find(final CapturedTokens tokens, final int startOffset) {
+        int low = 0;
+        int high = tokens.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (tokens.startOffset(mid) < startOffset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low < tokens.size() && tokens.startOffset(low) == startOffset ? low: -1;
+    }
+
+    /**
+     * @return true if the count tokens from a (shifted by aShift) and b (shifted by bShift) are the same,
+     *         and end before limit
+     */
+    private static boolean agree(final CapturedTokens a, final int i, final int aShift, final CapturedTokens b, final int j,
+            final int bShift, final int count, final int limit) {
+        if (i + count > a.size() || j + count > b.size()) {
+            return false;
+        }
+        for (int k = 0; k < count; k ++) {
+            final int x = i + k;
+            final int y = j + k;
+            if (a.startOffset(x) + aShift != b.startOffset(y) + bShift || a.endOffset(x) + aShift != b.endOffset(y) + bShift
+                    || a.endOffset(x) + aShift > limit || a.positionIncrement(x) != b.positionIncrement(y)
+                    || !Objects.equals(a.type(x), b.type(y)) || !Objects.equals(a.payload(x), b.payload(y))
+                    || !sameTerm(a, x, b, y)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameTerm(final CapturedTokens a, final int x, final CapturedTokens b, final int y) {
+        final int length = a.termLength(x);
+        if (length != b.termLength(y)) {
+            return false;
+        }
+        final char[] aChars = a.termChars();
+        final char[] bChars = b.termChars();
+        final int aStart = a.termStart(x);
+        final int bStart = b.termStart(y);
+        for (int k = 0; k < length; k ++) {
+            if (aChars[aStart + k] != bChars[bStart + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
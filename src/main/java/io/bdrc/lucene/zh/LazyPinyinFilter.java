@@ -22,16 +22,23 @@ package io.bdrc.lucene.zh;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.BytesRef;
 
 /**
  * Pinyin to Lazy Pinyin charfilter
  * 
+ * When keepTones is set, the stripped tone (1 to 4) is kept as a one-byte payload,
+ * neutral tones and syllables without tone have no payload. A single PYlazy field
+ * can then answer strict queries through {@link ZhPayloadQueries}.
+ * 
  * uses data from
  * @see <a href="https://github.com/BuddhistDigitalResourceCenter/lucene-zh-data">lucene-zh-data</a>
  * 
@@ -41,13 +48,71 @@ import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
 
 public class LazyPinyinFilter extends TokenFilter {
 
-    private static final HashMap<String, String> map = getMapping();
-    private static final List<Character> pinyinNumbers = Arrays.asList('0', '1', '2', '3', '4', '5');
+    /* getMapping() as sorted arrays: the tokens are rewritten in place */
+    private static final char[] marked;
+    private static final int[] lazy;
+    static {
+        final TreeMap<String, String> sorted = new TreeMap<>(getMapping());
+        marked = new char[sorted.size()];
+        lazy = new int[sorted.size()];
+        int i = 0;
+        for (final Map.Entry<String, String> e: sorted.entrySet()) {
+            marked[i] = e.getKey().charAt(0);
+            lazy[i] = e.getValue().isEmpty() ? -1: e.getValue().charAt(0);
+            i ++;
+        }
+    }
+
+    private BytesRef[] tones = null;
 
     public LazyPinyinFilter(TokenStream in) {
         super(in);
     }
 
+    /**
+     * @param keepTones
+     *              true to store the stripped tones in the payloads
+     */
+    public LazyPinyinFilter(TokenStream in, boolean keepTones) {
+        super(in);
+        if (keepTones) {
+            payloadAttribute = addAttribute(PayloadAttribute.class);
+            tones = new BytesRef[5];
+            for (int i = 1; i < tones.length; i ++) {
+                tones[i] = new BytesRef(new byte[] {(byte) i});
+            }
+        }
+    }
+
+    /**
+     * @return the tone marked by c (1 to 4), 0 if c has no tone mark
+     */
+    public static int getTone(final char c) {
+        switch (c) {
+        case 'ā': case 'ē': case 'ī': case 'ō': case 'ū': case 'ǖ':
+            return 1;
+        case 'á': case 'é': case 'í': case 'ó': case 'ú': case 'ǘ': case 'ḿ': case 'ń':
+            return 2;
+        case 'ǎ': case 'ě': case 'ǐ': case 'ǒ': case 'ǔ': case 'ǚ': case 'ň':
+            return 3;
+        case 'à': case 'è': case 'ì': case 'ò': case 'ù': case 'ǜ': case 'ǹ': case '\u0300':
+            return 4;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * @return c without its tone mark, -1 if c is to be deleted
+     */
+    static int toLazy(final char c) {
+        if (c < 0x80) {
+            return c;
+        }
+        final int idx = Arrays.binarySearch(marked, c);
+        return (idx < 0) ? c: lazy[idx];
+    }
+
     public static final HashMap<String, String> getMapping() {
         HashMap<String, String> map = new HashMap<>();
         map.put("ā", "a");
@@ -85,26 +150,41 @@ public class LazyPinyinFilter extends TokenFilter {
 
     CharTermAttribute charTermAttribute = addAttribute(CharTermAttribute.class);
     TypeAttribute typeAttribute = addAttribute(TypeAttribute.class);
+    PayloadAttribute payloadAttribute = null;
 
     @Override
     public final boolean incrementToken() throws IOException {
         while (input.incrementToken()) {
-            StringBuilder lazied = new StringBuilder();
-            char[] tokenBuffer = charTermAttribute.toString().toCharArray();
-            for (char t: tokenBuffer) {
-                String key = String.valueOf(t);
-                if (map.containsKey(key)) {
-                    lazied.append(map.get(key));
-                } else {
-                    lazied.append(t);
+            final char[] buffer = charTermAttribute.buffer();
+            final int length = charTermAttribute.length();
+            int lazyLength = 0;
+            int tone = 0;
+            for (int i = 0; i < length; i ++) {
+                final char t = buffer[i];
+                if (tone == 0) {
+                    tone = getTone(t);
+                }
+                final int c = toLazy(t);
+                if (c != -1) {
+                    buffer[lazyLength] = (char) c;
+                    lazyLength ++;
+                }
+            }
+            if (lazyLength > 0 && typeAttribute.type().equals("word")) {
+                final char number = buffer[lazyLength - 1];
+                if (number >= '0' && number <= '5') {
+                    if (tone == 0 && number >= '1' && number <= '4') {
+                        tone = number - '0';
+                    }
+                    lazyLength --;
                 }
             }
-            if (typeAttribute.type().equals("word") && pinyinNumbers.contains(lazied.charAt(lazied.length() - 1))) {
-                lazied.setLength(lazied.length() - 1);
+            if (tones != null) {
+                payloadAttribute.setPayload(tones[tone]);
             }
-            charTermAttribute.setEmpty().append(lazied.toString());
+            charTermAttribute.setLength(lazyLength);
             return true;
         }
         return false;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+/**
+ * Analyzes a long text on several threads.
+ *
+ * The text is split in chunks right after "。", "，", "；", "、" or a line break,
+ * where no token, stopword or pinyin syllable can span the split (the syllables of a
+ * pinyin stopword are not joined across punctuation or a line break). The chunks are
+ * analyzed in parallel, each worker thread using its own TokenStreamComponents
+ * (the Analyzer reuses components per thread), then the tokens are stitched back
+ * together with their offsets shifted. The result is the same as a serial analysis.
+ *
+ * The common grams and the words of a pinyin lexicon span "。" or "，", so a
+ * ChineseAnalyzer with {@link ChineseAnalyzer#setCommonGrams(org.apache.lucene.analysis.CharArraySet)},
+ * or with {@link ChineseAnalyzer#setLexicon(ZhLexicon)} on a pinyin input, analyzes
+ * the text serially. So does any other Analyzer, or a ChineseAnalyzer with a Latin chain
+ * other than {@link ChineseAnalyzer#DEFAULT_LATIN_CHAIN}: their filters are unknown.
+ *
+ * For ex. to index a whole volume in a single field:
+ *      doc.add(new TextField("contents", parallel.tokenStream("contents", text)));
+ */
+public class ParallelAnalysis {
+
+    public static final int DEFAULT_CHUNK_LENGTH = 64 * 1024;
+
+    private final Analyzer analyzer;
+    private final ExecutorService executor;
+    private final int chunkLength;
+
+    /**
+     * @param analyzer
+     *              the analyzer producing the tokens of each chunk, a {@link ChineseAnalyzer} with any profile,
+     *              other analyzers analyze the text serially
+     * @param executor
+     *              the executor running the analysis of the chunks
+     */
+    public ParallelAnalysis(Analyzer analyzer, ExecutorService executor) {
+        this(analyzer, executor, DEFAULT_CHUNK_LENGTH);
+    }
+
+    /**
+     * @param chunkLength
+     *              the minimal length of a chunk, the text is not split if it is shorter
+     */
+    public ParallelAnalysis(Analyzer analyzer, ExecutorService executor, int chunkLength) {
+        if (chunkLength < 1) {
+            throw new IllegalArgumentException("chunkLength must be > 0, got " + chunkLength);
+        }
+        this.analyzer = analyzer;
+        this.executor = executor;
+        this.chunkLength = chunkLength;
+    }
+
+    /**
+     * @param c a char
+     * @return true iff a text can be split right after c
+     */
+    public static boolean isBoundary(char c) {
+        switch (c) {
+        case '。': case '，': case '；': case '、': case '\n':
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @param text the text to split
+     * @param chunkLength the minimal length of a chunk
+     * @return the end of each chunk, the last one being text.length()
+     */
+    public static List<Integer> split(CharSequence text, int chunkLength) {
+        final List<Integer> ends = new ArrayList<>();
+        final int length = text.length();
+        int end = chunkLength;
+        while (end < length) {
+            while (end < length && !isBoundary(text.charAt(end - 1))) {
+                end ++;
+            }
+            if (end < length) {
+                ends.add(end);
+            }
+            end += chunkLength;
+        }
+        ends.add(length);
+        return ends;
+    }
+
+    /**
+     * @param fieldName the name of the field
+     * @param text the text to analyze
+     * @return the tokens of text
+     * @throws IOException if the analysis of a chunk throws
+     */
+    public CapturedTokens analyze(final String fieldName, final String text) throws IOException {
+        final List<Integer> ends = split(text, chunkLength);
+        if (ends.size() == 1 || !canSplit(analyzer)) {
+            return CapturedTokens.capture(analyzer.tokenStream(fieldName, text));
+        }
+        final List<Future<CapturedTokens>> futures = new ArrayList<>(ends.size());
+        int start = 0;
+        for (final int end: ends) {
+            final String chunk = text.substring(start, end);
+            futures.add(executor.submit(() -> CapturedTokens.capture(analyzer.tokenStream(fieldName, chunk))));
+            start = end;
+        }
+        final CapturedTokens result = new CapturedTokens();
+        start = 0;
+        try {
+            for (int i = 0; i < futures.size(); i ++) {
+                result.append(futures.get(i).get(), start);
+                start = ends.get(i);
+            }
+        } catch (InterruptedException e) {
+            cancel(futures);
+            throw new ThreadInterruptedException(e);
+        } catch (ExecutionException e) {
+            cancel(futures);
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        return result;
+    }
+
+    /**
+     * @param analyzer an analyzer
+     * @return false iff the tokens of analyzer can span the boundaries of the chunks
+     */
+    static boolean canSplit(Analyzer analyzer) {
+        if (!(analyzer instanceof ChineseAnalyzer)) {
+            return false;
+        }
+        final ChineseAnalyzer chinese = (ChineseAnalyzer) analyzer;
+        if (chinese.getCommonGrams() != null) {
+            return false;
+        }
+        if (chinese.getLatinChain() != null && chinese.getLatinChain() != ChineseAnalyzer.DEFAULT_LATIN_CHAIN) {
+            return false;
+        }
+        // the words of the pinyin inputs are matched regardless of the chars between their syllables
+        return chinese.getLexicon() == null || !chinese.getInputEncoding().startsWith("PY");
+    }
+
+    private static void cancel(List<Future<CapturedTokens>> futures) {
+        for (final Future<CapturedTokens> future: futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * @return a TokenStream producing the tokens of text, as analyzer.tokenStream(fieldName, text) would
+     * @throws IOException if the analysis of a chunk throws
+     */
+    public TokenStream tokenStream(final String fieldName, final String text) throws IOException {
+        return analyze(fieldName, text).replay();
+    }
+}
@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.Reader;
+import java.util.Map;
+
+import org.apache.lucene.analysis.util.CharFilterFactory;
+
+/**
+ * Factory for {@link PinyinNormalizingFilter}.
+ *
+ * SPI name "zhPinyinNormalizing", arguments: streaming (true to bound the offset corrections kept in memory, default false).
+ */
+public class PinyinNormalizingCharFilterFactory extends CharFilterFactory {
+
+    public static final String NAME = "zhPinyinNormalizing";
+
+    private final boolean streaming;
+
+    public PinyinNormalizingCharFilterFactory(Map<String, String> args) {
+        super(args);
+        streaming = getBoolean(args, "streaming", false);
+        if (!args.isEmpty()) {
+            throw new IllegalArgumentException("Unknown parameters: " + args);
+        }
+    }
+
+    @Override
+    public Reader create(Reader input) {
+        return new PinyinNormalizingFilter(input, streaming);
+    }
+
+    @Override
+    public Reader normalize(Reader input) {
+        return new PinyinNormalizingFilter(input);
+    }
+}
@@ -19,10 +19,12 @@
  ******************************************************************************/
 package io.bdrc.lucene.zh;
 
+import java.io.IOException;
 import java.io.Reader;
 
-import org.apache.lucene.analysis.charfilter.MappingCharFilter;
+import org.apache.lucene.analysis.charfilter.BaseCharFilter;
 import org.apache.lucene.analysis.charfilter.NormalizeCharMap;
+import org.apache.lucene.util.ArrayUtil;
 
 /**
  * Pinyin Normalizer
@@ -33,6 +35,18 @@ import org.apache.lucene.analysis.charfilter.NormalizeCharMap;
  *          - combines grave accents to the preceding vowel (lone grave accent found in Unihan data)
  *          - deletes grave accents not preceded by a, i, o, u and ü
  *          - keep the case of the characters. PinyinSyllabifyingFilter takes care of lowercasing.
+ * 
+ * The mapping is small and fixed, so it is applied in a single pass with a switch
+ * instead of a MappingCharFilter: characters below U+0100 that can't carry a
+ * combining grave accent are copied as-is and offsets are only corrected when
+ * a combining grave accent is merged or deleted. Runs of such characters (lazy or
+ * numbered pinyin, Latin text) are found by {@link CjkScanner} and copied at once.
+ * {@link #getNormalizeCharMap()} gives the same mapping as a NormalizeCharMap.
+ * 
+ * In streaming mode, only the offset corrections of the last {@link #CORRECTION_WINDOW}
+ * output characters are kept, the older ones are folded in a single cumulative difference.
+ * This assumes that the tokenizer never asks for an offset older than that, which is true
+ * for all the tokenizers of this package.
  *           
  * uses data from
  * @see <a href="https://github.com/BuddhistDigitalResourceCenter/lucene-zh-data">lucene-zh-data</a>
@@ -40,12 +54,234 @@ import org.apache.lucene.analysis.charfilter.NormalizeCharMap;
  * @author Hélios Hildt
  *
  */
-public class PinyinNormalizingFilter extends MappingCharFilter {
+public class PinyinNormalizingFilter extends BaseCharFilter {
+
+    private static final char COMBINING_GRAVE = '\u0300';
+    /* the first char changed by normalize(), the chars below are copied as-is */
+    private static final char FIRST_NORMALIZED = '\u0102';
+
+    private final char[] buffer = new char[1024];
+    private int bufferPos = 0;
+    private int bufferLen = 0;
+    private int inputOffset = 0;
+    private int outputOffset = 0;
+
+    public static final int CORRECTION_WINDOW = 8192;
+    private final boolean streaming;
+    private int[] corrOffsets = null;
+    private int[] corrDiffs = null;
+    private int corrSize = 0;
+    private int baseDiff = 0;
 
     public PinyinNormalizingFilter(Reader in) {
-        super(getNormalizeCharMap(), in);
+        this(in, false);
+    }
+
+    /**
+     * @param streaming
+     *              true to keep a bounded number of offset corrections
+     */
+    public PinyinNormalizingFilter(Reader in, boolean streaming) {
+        super(in);
+        this.streaming = streaming;
+        if (streaming) {
+            corrOffsets = new int[16];
+            corrDiffs = new int[16];
+        }
+    }
+
+    private void addCorrection(int off, int cumulativeDiff) {
+        if (!streaming) {
+            addOffCorrectMap(off, cumulativeDiff);
+            return;
+        }
+        /* a run of deleted grave accents: a single correction at the same output offset */
+        if (corrSize > 0 && corrOffsets[corrSize - 1] == off) {
+            corrDiffs[corrSize - 1] = cumulativeDiff;
+            return;
+        }
+        if (corrSize == corrOffsets.length) {
+            corrOffsets = ArrayUtil.grow(corrOffsets, corrSize + 1);
+            corrDiffs = ArrayUtil.growExact(corrDiffs, corrOffsets.length);
+        }
+        corrOffsets[corrSize] = off;
+        corrDiffs[corrSize] = cumulativeDiff;
+        corrSize ++;
+    }
+
+    /**
+     * @return the number of offset corrections kept in streaming mode
+     */
+    int getCorrectionCount() {
+        return corrSize;
+    }
+
+    /**
+     * Folds the corrections older than the window in baseDiff.
+     */
+    private void pruneCorrections() {
+        final int limit = outputOffset - CORRECTION_WINDOW;
+        int pruned = 0;
+        while (pruned < corrSize && corrOffsets[pruned] < limit) {
+            baseDiff = corrDiffs[pruned];
+            pruned ++;
+        }
+        if (pruned > 0) {
+            corrSize -= pruned;
+            System.arraycopy(corrOffsets, pruned, corrOffsets, 0, corrSize);
+            System.arraycopy(corrDiffs, pruned, corrDiffs, 0, corrSize);
+        }
+    }
+
+    @Override
+    protected int correct(int currentOff) {
+        if (!streaming) {
+            return super.correct(currentOff);
+        }
+        for (int i = corrSize - 1; i >= 0; i --) {
+            if (corrOffsets[i] <= currentOff) {
+                return currentOff + corrDiffs[i];
+            }
+        }
+        return currentOff + baseDiff;
+    }
+
+    /**
+     * @param c a char
+     * @return the normalized char, c if it is not to be normalized
+     */
+    static char normalize(char c) {
+        switch (c) {
+            // breve diacritics are normalized to caron
+            case '\u0102': return 'Ǎ';
+            case '\u0103': return 'ǎ';
+            case '\u0114': return 'Ě';
+            case '\u0115': return 'ě';
+            case '\u012C': return 'Ǐ';
+            case '\u012D': return 'ǐ';
+            case '\u014E': return 'Ǒ';
+            case '\u014F': return 'ǒ';
+            case '\u016C': return 'Ǔ';
+            case '\u016D': return 'ǔ';
+            // ü + breve does not exist
+
+            // unexpected because not vowels
+            case 'Ḿ': return 'M';
+            case 'ḿ': return 'm';
+            case 'Ń': return 'N';
+            case 'ń': return 'n';
+            case 'Ǹ': return 'N';
+            case 'ǹ': return 'n';
+            case 'Ň': return 'N';
+            case 'ň': return 'n';
+            default: return c;
+        }
+    }
+
+    /**
+     * @param c a char
+     * @return c combined with a following U+0300 Combining Grave Accent, 0 if c can't be combined
+     */
+    static char combineWithGrave(char c) {
+        switch (c) {
+            case 'a': return 'à';
+            case 'e': return 'è';
+            case 'i': return 'ì';
+            case 'o': return 'ò';
+            case 'u': return 'ù';
+            case 'ü': return 'ǜ';
+            default: return 0;
+        }
+    }
+
+    /**
+     * @param text some text
+     * @return true iff the normalization changes text
+     */
+    public static boolean needsNormalization(CharSequence text) {
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            if (c >= 0x0100 && (c == COMBINING_GRAVE || normalize(c) != c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int nextChar() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        inputOffset ++;
+        return buffer[bufferPos ++];
+    }
+
+    private int peekChar() throws IOException {
+        return fill() ? buffer[bufferPos]: -1;
+    }
+
+    private boolean fill() throws IOException {
+        while (bufferPos == bufferLen) {
+            bufferLen = input.read(buffer, 0, buffer.length);
+            bufferPos = 0;
+            if (bufferLen == -1) {
+                bufferLen = 0;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (streaming) {
+            pruneCorrections();
+        }
+        int written = 0;
+        while (written < len) {
+            /* fast path: a run of chars below U+0102 but for its last char, that could combine with a grave accent */
+            if (fill() && buffer[bufferPos] < FIRST_NORMALIZED) {
+                final int run = Math.min(CjkScanner.skipBelow(buffer, bufferPos, bufferLen, FIRST_NORMALIZED) - bufferPos - 1, len - written);
+                if (run > 0) {
+                    System.arraycopy(buffer, bufferPos, cbuf, off + written, run);
+                    bufferPos += run;
+                    inputOffset += run;
+                    written += run;
+                    continue;
+                }
+            }
+            final int next = nextChar();
+            if (next == -1) {
+                break;
+            }
+            final char c = (char) next;
+            /* fast path: nothing to normalize */
+            if (c < 0x0100 && combineWithGrave(c) == 0) {
+                cbuf[off + written ++] = c;
+                continue;
+            }
+            if (c == COMBINING_GRAVE) {
+                /* deleting all other occurences */
+                addCorrection(outputOffset + written, inputOffset - outputOffset - written);
+                continue;
+            }
+            final char combined = combineWithGrave(c);
+            if (combined != 0 && peekChar() == COMBINING_GRAVE) {
+                nextChar();
+                cbuf[off + written ++] = combined;
+                addCorrection(outputOffset + written, inputOffset - outputOffset - written);
+                continue;
+            }
+            cbuf[off + written ++] = normalize(c);
+        }
+        outputOffset += written;
+        return (written == 0 && len > 0) ? -1: written;
     }
 
+    /**
+     * @return the mapping applied by this filter, for use in a MappingCharFilter
+     */
     public final static NormalizeCharMap getNormalizeCharMap() {
         final NormalizeCharMap.Builder builder = new NormalizeCharMap.Builder();
 
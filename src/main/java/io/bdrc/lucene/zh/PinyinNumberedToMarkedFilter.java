@@ -20,10 +20,6 @@
 package io.bdrc.lucene.zh;
 
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
 
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
@@ -48,18 +44,7 @@ import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 public class PinyinNumberedToMarkedFilter extends TokenFilter {
 
     private static final String markedVowels = "āáǎàaēéěèeīíǐìiōóǒòoūúǔùuǖǘǚǜü";
-    private static final List<Character> toneNumbers = Arrays.asList('1', '2', '3', '4', '5', '0');
-    private static final HashMap<Character, Integer> rows = new HashMap<Character, Integer>();
-    static {
-        rows.put('a', 0);
-        rows.put('e', 1);
-        rows.put('i', 2);
-        rows.put('o', 3);
-        rows.put('u', 4);
-        rows.put('v', 5);
-        rows.put('ü', 5);
-    }
-    
+
     public PinyinNumberedToMarkedFilter(TokenStream in) {
         super(in);
     }
@@ -72,64 +57,88 @@ public class PinyinNumberedToMarkedFilter extends TokenFilter {
      *          else returns the syllable as-is.
      */
     public static String numberedToMarked(String pinyinStr) {
-        final char number = pinyinStr.charAt(pinyinStr.length()-1);
-        /* there is a numbered tone and a pinyin vowel */
-        if (toneNumbers.contains(number) && (pinyinStr.contains("a") || pinyinStr.contains("e")
-                || pinyinStr.contains("i") || pinyinStr.contains("o") || pinyinStr.contains("u")
-                || pinyinStr.contains("v") || pinyinStr.contains("ü"))) {
-            StringBuffer marked = new StringBuffer(pinyinStr);
-            marked.setLength(pinyinStr.length() - 1);   // remove tone number
-            /* neutral tone */
-            if (number == '5' || number == '0') {
-                return marked.toString();
-            }
-            
-            /* find the index of the vowel to mark */
-            int toMarkIdx = -1;
-            char toMarkVowel;
-            
-            int aIdx = pinyinStr.indexOf('a');
-            int eIdx = pinyinStr.indexOf('e');
-            int oIdx = pinyinStr.indexOf("ou");
-            
-            if (aIdx != -1) {
-                toMarkIdx = aIdx;
-                toMarkVowel = 'a';
-            } else if (eIdx != -1) {
-                toMarkIdx = eIdx;
-                toMarkVowel = 'e';
-            } else if (oIdx != -1) {
-                toMarkIdx = oIdx;
-                toMarkVowel = 'o';
-            } else {
-                List<Integer> otherVowels = Arrays.asList(
-                        pinyinStr.lastIndexOf('i'),
-                        pinyinStr.lastIndexOf('o'),
-                        pinyinStr.lastIndexOf('u'),
-                        pinyinStr.lastIndexOf('v'),
-                        pinyinStr.lastIndexOf('ü'));
-                Collections.sort(otherVowels);
-                Collections.reverse(otherVowels);
-                toMarkIdx = otherVowels.get(0);
-                toMarkVowel = pinyinStr.charAt(toMarkIdx);
-            }
-            
-            /* there is a vowel to mark */
-            if (toMarkIdx != -1) {
-                char newVowel = markedVowels.charAt(rows.get(toMarkVowel) * 5 
-                        + Character.getNumericValue(number) - 1);
-                
-                marked.deleteCharAt(toMarkIdx);             // delete vowel without tone
-                marked.insert(toMarkIdx, newVowel);         // insert marked vowel
-                return marked.toString();
-             
-            /* there is no vowel to mark; return input as-is */
-            } else {
-                return pinyinStr;
-            }
+        final char[] buffer = pinyinStr.toCharArray();
+        final int length = numberedToMarked(buffer, buffer.length);
+        return (length == buffer.length) ? pinyinStr: new String(buffer, 0, length);
+    }
+
+    /**
+     * Same as {@link #numberedToMarked(String)}, in place: the tokens are converted
+     * without creating any object.
+     * 
+     * @param buffer the chars of the syllable
+     * @param length the length of the syllable
+     * @return the length of the converted syllable
+     */
+    static int numberedToMarked(final char[] buffer, final int length) {
+        if (length == 0) {
+            return 0;
+        }
+        final char number = buffer[length - 1];
         /* there is no numbered tone */
+        if (number < '0' || number > '5') {
+            return length;
+        }
+        int aIdx = -1;
+        int eIdx = -1;
+        int ouIdx = -1;
+        int lastIdx = -1;
+        for (int i = 0; i < length - 1; i ++) {
+            switch (buffer[i]) {
+            case 'a':
+                if (aIdx == -1) {
+                    aIdx = i;
+                }
+                break;
+            case 'e':
+                if (eIdx == -1) {
+                    eIdx = i;
+                }
+                break;
+            case 'o':
+                if (ouIdx == -1 && buffer[i + 1] == 'u') {
+                    ouIdx = i;
+                }
+                lastIdx = i;
+                break;
+            case 'i': case 'u': case 'v': case 'ü':
+                lastIdx = i;
+                break;
+            default:
+                break;
+            }
+        }
+        /* there is no pinyin vowel: return input as-is */
+        if (aIdx == -1 && eIdx == -1 && lastIdx == -1) {
+            return length;
+        }
+        /* neutral tone: remove tone number */
+        if (number == '5' || number == '0') {
+            return length - 1;
+        }
+        /* find the index of the vowel to mark */
+        final int toMarkIdx;
+        if (aIdx != -1) {
+            toMarkIdx = aIdx;
+        } else if (eIdx != -1) {
+            toMarkIdx = eIdx;
+        } else if (ouIdx != -1) {
+            toMarkIdx = ouIdx;
         } else {
-            return pinyinStr;
+            toMarkIdx = lastIdx;
+        }
+        buffer[toMarkIdx] = markedVowels.charAt(getRow(buffer[toMarkIdx]) * 5 + number - '1');
+        return length - 1;
+    }
+
+    private static int getRow(final char vowel) {
+        switch (vowel) {
+        case 'a': return 0;
+        case 'e': return 1;
+        case 'i': return 2;
+        case 'o': return 3;
+        case 'u': return 4;
+        default: return 5;    // v and ü
         }
     }
     
@@ -138,10 +147,9 @@ public class PinyinNumberedToMarkedFilter extends TokenFilter {
     @Override
     public final boolean incrementToken() throws IOException {
         while (input.incrementToken()) {
-            String marked = numberedToMarked(charTermAttribute.toString());
-            charTermAttribute.setEmpty().append(marked);
+            charTermAttribute.setLength(numberedToMarked(charTermAttribute.buffer(), charTermAttribute.length()));
             return true;
         }
         return false;
     }
-}
\ No newline at end of file
+}
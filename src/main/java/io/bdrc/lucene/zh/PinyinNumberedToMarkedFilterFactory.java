@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.util.Map;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.util.TokenFilterFactory;
+
+/**
+ * Factory for {@link PinyinNumberedToMarkedFilter}.
+ *
+ * SPI name "zhPinyinNumberedToMarked".
+ */
+public class PinyinNumberedToMarkedFilterFactory extends TokenFilterFactory {
+
+    public static final String NAME = "zhPinyinNumberedToMarked";
+
+    public PinyinNumberedToMarkedFilterFactory(Map<String, String> args) {
+        super(args);
+        if (!args.isEmpty()) {
+            throw new IllegalArgumentException("Unknown parameters: " + args);
+        }
+    }
+
+    @Override
+    public TokenStream create(TokenStream input) {
+        return new PinyinNumberedToMarkedFilter(input);
+    }
+
+    @Override
+    public TokenStream normalize(TokenStream input) {
+        return create(input);
+    }
+}
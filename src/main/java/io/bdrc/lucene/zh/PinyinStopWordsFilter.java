@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+
+/**
+ * Removes the stopwords from a stream of pinyin syllables.
+ *
+ * The PYstrict and PYlazy stopword lists are zh-stopwords.txt transcribed by
+ * {@link ZhToPinyinFilter} and {@link LazyPinyinFilter}, one stopword per line,
+ * the syllables separated by a space. They are generated by {@link #main(String[])}
+ * in zh-stopwords-PYstrict.txt and zh-stopwords-PYlazy.txt.
+ *
+ * A single syllable is very ambiguous: the single-ideogram stopwords
+ * cover more than a third of the lazy syllables. So only the stopwords of
+ * several syllables are kept, and for PYstrict the single syllables with a neutral
+ * tone (de, le, ne, ma...): without tones they are also the readings of content
+ * words (dé 得, mǎ 馬, lè 樂).
+ *
+ * The syllables of a stopword are consecutive tokens, joined or separated by a
+ * single space, apostrophe or hyphen ("yīqiè", "yī qiè"), but not by punctuation or a
+ * line break: the offsets of joined syllables can overlap, so instead of the offsets
+ * the {@link PinyinSyllableTokenizer#SEPARATED} flag is checked. As for ideograms, the longest stopword is
+ * removed and position increments are left untouched: the positions are the same
+ * as in a field indexed from the ideograms.
+ */
+public class PinyinStopWordsFilter extends ZhStopWordsTokenFilter {
+
+    public static final String strictBaseFileName = "zh-stopwords-PYstrict.txt";
+    public static final String lazyBaseFileName = "zh-stopwords-PYlazy.txt";
+
+    static final ZhDictionary<StopWords> strictStopWords = ZhDictionaries.getStopWordsDictionary(strictBaseFileName,
+            words -> new StopWords(words, ' ', -1), () -> buildStopWords(false));
+    static final ZhDictionary<StopWords> lazyStopWords = ZhDictionaries.getStopWordsDictionary(lazyBaseFileName,
+            words -> new StopWords(words, ' ', -1), () -> buildStopWords(true));
+
+    /**
+     * @param lazy
+     *              true for PYlazy syllables, false for PYstrict syllables with tone marks
+     */
+    public PinyinStopWordsFilter(TokenStream in, boolean lazy) {
+        super(in, lazy ? lazyStopWords: strictStopWords);
+    }
+
+    public static void main(String[] args) throws IOException {
+        storeStopWords(buildStopWords(false), CommonHelpers.baseDir + strictBaseFileName);
+        storeStopWords(buildStopWords(true), CommonHelpers.baseDir + lazyBaseFileName);
+    }
+
+    /**
+     * @param lazy
+     *              true for PYlazy, false for PYstrict
+     * @return the transcriptions of zh-stopwords.txt, sorted
+     */
+    static List<String> buildStopWords(final boolean lazy) {
+        final TreeSet<String> words = new TreeSet<>();
+        final Tokenizer tok = new StandardTokenizer();
+        final TokenStream strictStream = new ZhToPinyinFilter(new ZhOnlyFilter(tok));
+        final Tokenizer lazyTok = new StandardTokenizer();
+        final TokenStream lazyStream = new LazyPinyinFilter(new ZhToPinyinFilter(new ZhOnlyFilter(lazyTok)));
+        try {
+            for (final String word: ZhStopWordsTokenFilter.ideograms.get().list) {
+                tok.setReader(new StringReader(word));
+                final List<String> syllables = getTerms(strictStream);
+                if (syllables.isEmpty() || !isPinyin(syllables)) {
+                    continue;
+                }
+                /* a single syllable with a tone is too ambiguous, and so is any single lazy
+                 * syllable: without tones, de (的) is also dé (得, 德) */
+                if (syllables.size() == 1 && (lazy || !isToneless(syllables.get(0)))) {
+                    continue;
+                }
+                if (lazy) {
+                    lazyTok.setReader(new StringReader(word));
+                    words.add(String.join(" ", getTerms(lazyStream)));
+                } else {
+                    words.add(String.join(" ", syllables));
+                }
+            }
+        } catch (IOException e) {
+            // cannot happen with a StringReader
+            throw new IllegalStateException(e);
+        }
+        return new ArrayList<>(words);
+    }
+
+    private static List<String> getTerms(final TokenStream stream) throws IOException {
+        final List<String> terms = new ArrayList<>();
+        final CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+        stream.reset();
+        while (stream.incrementToken()) {
+            terms.add(termAtt.toString());
+        }
+        stream.end();
+        stream.close();
+        return terms;
+    }
+
+    /**
+     * @return true if all the syllables were transcribed (no ideogram left)
+     */
+    private static boolean isPinyin(final List<String> syllables) {
+        for (final String syllable: syllables) {
+            if (Character.isIdeographic(syllable.codePointAt(0))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isToneless(final String syllable) {
+        for (int i = 0; i < syllable.length(); i ++) {
+            if (LazyPinyinFilter.getTone(syllable.charAt(i)) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void storeStopWords(final List<String> words, final String fileName) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(fileName), StandardCharsets.UTF_8)) {
+            for (final String word: words) {
+                writer.write(word);
+                writer.write('\n');
+            }
+        }
+    }
+}
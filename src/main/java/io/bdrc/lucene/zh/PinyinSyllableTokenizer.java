@@ -3,16 +3,17 @@ package io.bdrc.lucene.zh;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.text.CharacterIterator;
-import java.text.StringCharacterIterator;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.FlagsAttribute;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
 import org.apache.lucene.analysis.util.RollingCharBuffer;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.AttributeFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,9 +53,20 @@ public class PinyinSyllableTokenizer extends Tokenizer{
     private int bufferIndex = 0, finalOffset = 0;
     private static final int MAX_WORD_LEN = 255;
     
+    /**
+     * Flag of the tokens separated from the previous one by anything but a single space,
+     * apostrophe or hyphen: punctuation, a line break or several chars. The offsets can't
+     * tell, as the offsets of joined syllables can overlap.
+     */
+    public static final int SEPARATED = 1;
+    
     private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
     private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
     private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+    private final FlagsAttribute flagsAtt = addAttribute(FlagsAttribute.class);
+    /* the chars skipped since the end of the previous token, and the last of them */
+    private int skipped = 0;
+    private int lastSkipped = -1;
     
     private RollingCharBuffer ioBuffer;
     private Row rootRow;
@@ -63,29 +75,37 @@ public class PinyinSyllableTokenizer extends Tokenizer{
     private int tokenStart;
     private int tokenEnd;
     
-    private static final List<Character> unihanPinyinDiacritics = Arrays.asList(
-            'Ā', 'Á', 'Ǎ', 'À', 
-            'ā', 'á', 'ǎ', 'à', 
-            'Ē', 'É', 'Ě', 'È', 
-            'ē', 'é', 'ě', 'è', 
-            'Ī', 'Í', 'Ǐ', 'Ì', 
-            'ī', 'í', 'ǐ', 'ì', 
-            'Ō', 'Ó', 'Ǒ', 'Ò', 
-            'ō', 'ó', 'ǒ', 'ò', 
-            'Ū', 'Ú', 'Ǔ', 'Ù', 
-            'ū', 'ú', 'ǔ', 'ù', 
-            'Ǖ', 'Ǘ', 'Ǚ', 'Ǜ', 'Ü',
-            'ǖ', 'ǘ', 'ǚ', 'ǜ', 'ü');
-    private static final List <Character> pinyinVowels = Arrays.asList('a', 'e', 'i', 'o', 'u', 'v', 'ü');
-    private static final List<Character> pinyinNumbers = Arrays.asList('0', '1', '2', '3', '4', '5');
-    private StringCharacterIterator nonwordIterator = null;
+    /* Strings rather than List<Character>: contains() would box the chars above 127 */
+    private static final String unihanPinyinDiacritics = 
+            "ĀÁǍÀ" + 
+            "āáǎà" + 
+            "ĒÉĚÈ" + 
+            "ēéěè" + 
+            "ĪÍǏÌ" + 
+            "īíǐì" + 
+            "ŌÓǑÒ" + 
+            "ōóǒò" + 
+            "ŪÚǓÙ" + 
+            "ūúǔù" + 
+            "ǕǗǙǛÜ" +
+            "ǖǘǚǜü";
+    private static final String pinyinVowels = "aeiouvü";
+    private static final String pinyinNumbers = "012345";
+    /* the remaining chars of a non-word, returned one by one */
+    private char[] nonword = new char[16];
+    private int nonwordLength = 0;
+    private int nonwordIdx = 0;
     private int nonwordOffset = -1;
     
     private static final Logger logger = LoggerFactory.getLogger(PinyinSyllableTokenizer.class);
     boolean debug = false;
     private static final Trie scanner;
+    /* the rows of scanner: Trie.getRow() goes through a synchronized Vector, which
+     * serializes the tokenizers of all the threads on a single monitor */
+    private static final Row[] rows;
     static {
-        scanner = getTrie();
+        scanner = ZhDictionaries.get(CompiledTrie.trieBaseFileName, PinyinSyllableTokenizer::getTrie);
+        rows = getRows(scanner);
     }
     
     PinyinSyllableTokenizer () {
@@ -93,6 +113,12 @@ public class PinyinSyllableTokenizer extends Tokenizer{
         ioBuffer.reset(input);
     }
 
+    PinyinSyllableTokenizer (AttributeFactory factory) {
+        super(factory);
+        ioBuffer = new RollingCharBuffer();
+        ioBuffer.reset(input);
+    }
+
     
     private static Trie getTrie() {
         InputStream stream = CommonHelpers.getResourceOrFile(CompiledTrie.trieBaseFileName);
@@ -104,10 +130,39 @@ public class PinyinSyllableTokenizer extends Tokenizer{
                 return null;
             }
         } else {
+            /* only when the classes were not built by Maven (IDE, other build tools) */
+            logger.warn("cannot find {}, building the Trie at runtime: this is slow, see the process-classes phase of the pom",
+                    CompiledTrie.trieBaseFileName);
             return CompiledTrie.buildTrie();
         }
     }
     
+    /* Row looks up boxed Characters: Character.valueOf() only caches the ASCII chars,
+     * the other pinyin chars (all below U+0250) are boxed once here */
+    private static final int CACHED = 0x80;
+    private static final Character[] boxed = new Character[0x250 - CACHED];
+    static {
+        for (int i = 0; i < boxed.length; i ++) {
+            boxed[i] = Character.valueOf((char) (CACHED + i));
+        }
+    }
+    
+    private static Character box(int c) {
+        if (c < CACHED) {
+            return Character.valueOf((char) c);
+        }
+        return (c - CACHED < boxed.length) ? boxed[c - CACHED]: Character.valueOf((char) c);
+    }
+    
+    private static Row[] getRows(Trie trie) {
+        final List<Row> res = new ArrayList<>();
+        Row row;
+        while ((row = trie.getRow(res.size())) != null) {
+            res.add(row);
+        }
+        return res.toArray(new Row[0]);
+    }
+    
     /**
      * Returns true iff a codepoint should be included in a token. This tokenizer
      * generates as tokens adjacent sequences of codepoints which satisfy this
@@ -119,9 +174,9 @@ public class PinyinSyllableTokenizer extends Tokenizer{
      */
     protected boolean isTokenChar(int c) {
         return (c > 96 && c < 123) || (c > 64 && c < 91) 
-                || unihanPinyinDiacritics.contains((char) c)
-                || pinyinVowels.contains((char) c)
-                || pinyinNumbers.contains((char) c);
+                || unihanPinyinDiacritics.indexOf(c) >= 0
+                || pinyinVowels.indexOf(c) >= 0
+                || pinyinNumbers.indexOf(c) >= 0;
     }
 
     /**
@@ -136,18 +191,18 @@ public class PinyinSyllableTokenizer extends Tokenizer{
 
     @Override
     public final boolean incrementToken() throws IOException {
-        if (nonwordIterator != null) {
-            final char next = nonwordIterator.next();
-            if (next != CharacterIterator.DONE) {
-                termAtt.setEmpty().append(next);
-                nonwordOffset ++;
-                offsetAtt.setOffset(correctOffset(nonwordOffset), correctOffset(nonwordOffset + 1));
-                typeAtt.setType("non-word");
-                return true;
-            } else {
-                nonwordIterator = null;
-                nonwordOffset = -1;
-            }
+        if (nonwordIdx < nonwordLength) {
+            termAtt.setEmpty().append(nonword[nonwordIdx]);
+            nonwordIdx ++;
+            nonwordOffset ++;
+            offsetAtt.setOffset(correctOffset(nonwordOffset), correctOffset(nonwordOffset + 1));
+            typeAtt.setType("non-word");
+            flagsAtt.setFlags(0);
+            return true;
+        } else if (nonwordLength > 0) {
+            nonwordLength = 0;
+            nonwordIdx = 0;
+            nonwordOffset = -1;
         }
         
         if (debug) {System.out.println("----------");}
@@ -156,7 +211,7 @@ public class PinyinSyllableTokenizer extends Tokenizer{
         ioBuffer.freeBefore(bufferIndex);
         
         currentRow = null;
-        rootRow = scanner.getRow(scanner.getRoot());
+        rootRow = rows[scanner.getRoot()];
         
         char[] tokenBuffer = termAtt.buffer();
         tokenStart = bufferIndex;
@@ -186,6 +241,10 @@ public class PinyinSyllableTokenizer extends Tokenizer{
                 
                 /* start of syllable or non-syl char */
                 if (tokenLength == 0) {
+                    if (skipped > 1 || (skipped == 1 && !isJoiner(lastSkipped))) {
+                        flagsAtt.setFlags(SEPARATED);
+                    }
+                    skipped = 0;
                     match = tryToFindMatchIn(rootRow, c);
                     continuing = tryToContinueDownTheTrie(rootRow, c);
                     
@@ -208,7 +267,7 @@ public class PinyinSyllableTokenizer extends Tokenizer{
                 
                 /* current char does not belong to the current syllable
                  * (current char is a vowel and previous letter is 'g' or 'n') */  
-                if (hasMatched && lastCharIdx > 0 && (pinyinVowels.contains((char) c) || unihanPinyinDiacritics.contains((char) c)) 
+                if (hasMatched && lastCharIdx > 0 && (pinyinVowels.indexOf(c) >= 0 || unihanPinyinDiacritics.indexOf(c) >= 0) 
                             && (termAtt.length() > 0 && 
                                     (tokenBuffer[lastCharIdx] == 'g' || tokenBuffer[lastCharIdx] == 'n'))) {
                         tokenLength --;
@@ -231,7 +290,7 @@ public class PinyinSyllableTokenizer extends Tokenizer{
                             IncrementTokenLengthAndAddCurrentCharTo(tokenBuffer, c);
                             break;
 //
-//                        } else if (hasMatched && unihanPinyinDiacritics.contains((char) c)) {
+//                        } else if (hasMatched && unihanPinyinDiacritics.indexOf(c) >= 0) {
 //                            break;
                
                         } else if (hasMatched && tokenLength >= 1) {
@@ -243,7 +302,7 @@ public class PinyinSyllableTokenizer extends Tokenizer{
                             break;
                         }
                     } else if (bufferIndex >= longestMatchIdx) {
-                        if (pinyinVowels.contains((char) c) || unihanPinyinDiacritics.contains((char) c)) { 
+                        if (pinyinVowels.indexOf(c) >= 0 || unihanPinyinDiacritics.indexOf(c) >= 0) { 
                             IncrementTokenLengthAndAddCurrentCharTo(tokenBuffer, c);
                             break;
                         } else if (bufferIndex > longestMatchIdx) {
@@ -260,7 +319,12 @@ public class PinyinSyllableTokenizer extends Tokenizer{
                     break;
                 }
             } else if (tokenLength > 0) {           // at non-Letter w/ chars
+                skipped ++;
+                lastSkipped = c;
                 break;                           // return 'em
+            } else {
+                skipped ++;
+                lastSkipped = c;
             }
         }
 
@@ -269,7 +333,10 @@ public class PinyinSyllableTokenizer extends Tokenizer{
             
             /* non-word has more than one character */
             if (termAtt.length() > 1) {
-                nonwordIterator  = new StringCharacterIterator(termAtt.toString());
+                nonwordLength = termAtt.length();
+                nonword = ArrayUtil.grow(nonword, nonwordLength);
+                System.arraycopy(termAtt.buffer(), 0, nonword, 0, nonwordLength);
+                nonwordIdx = 1;
                 termAtt.setLength(1);
                 nonwordOffset = tokenStart;
                 int initialOffset = correctOffset(tokenStart);
@@ -305,14 +372,22 @@ public class PinyinSyllableTokenizer extends Tokenizer{
         return true;
     }
     
+    /**
+     * @param c a char between two syllables
+     * @return true iff the syllables can be read as a single word
+     */
+    private static boolean isJoiner(int c) {
+        return c == ' ' || c == '\'' || c == '-';
+    }
+    
     private boolean tryToContinueDownTheTrie(Row row, int c) {
-        int ref = row.getRef((char) c);
-        currentRow = (ref >= 0) ? scanner.getRow(ref) : null;
+        int ref = row.getRef(box(c));
+        currentRow = (ref >= 0 && ref < rows.length) ? rows[ref] : null;
         return (currentRow == null) ? false: true;
     }
     
     private boolean tryToFindMatchIn(Row row, int c) {
-        int cmdIndex = row.getCmd((char) c);
+        int cmdIndex = row.getCmd(box(c));
         return cmdIndex >= 0;
     }
     
@@ -333,6 +408,11 @@ public class PinyinSyllableTokenizer extends Tokenizer{
         super.reset();
         bufferIndex = 0;
         finalOffset = 0;
+        nonwordLength = 0;
+        nonwordIdx = 0;
+        nonwordOffset = -1;
+        skipped = 0;
+        lastSkipped = -1;
         ioBuffer.reset(input); // make sure to reset the IO buffer!!
     }
 }
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.lucene.analysis.CharArrayMap;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Simplified Chinese to Traditional Chinese expansion filter, meant to be used
+ * at query time against a field indexed in TC.
+ *
+ * The mapping is the inverse of tc2sc.tsv. As a SC ideogram can correspond to more
+ * than one TC ideogram ("只" is the SC of "祇", "衹" and "隻"), the input token is
+ * kept and all the TC candidates are stacked on the same position (position increment 0).
+ * The QueryParser turns such a position in a SynonymQuery (or a MultiPhraseQuery in phrases).
+ *
+ * uses data from
+ * @see <a href="https://github.com/BuddhistDigitalResourceCenter/lucene-zh-data">lucene-zh-data</a>
+ */
+public class SC2TCFilter extends TokenFilter {
+
+    private static final CharArrayMap<String[]> map = ZhDictionaries.get("inverse:" + ZhDictionaries.TC2SC,
+            () -> CharArrayMap.unmodifiableMap(new CharArrayMap<>(getInverseMapping(ZhDictionaries.TC2SC), false)));
+    CharTermAttribute charTermAttribute = addAttribute(CharTermAttribute.class);
+    PositionIncrementAttribute posIncAttribute = addAttribute(PositionIncrementAttribute.class);
+
+    private String[] candidates = null;
+    private int candidateIdx = 0;
+    private State state = null;
+
+    public SC2TCFilter(TokenStream in) {
+        super(in);
+    }
+
+    static HashMap<String, String[]> getInverseMapping(final String baseName) {
+        final Map<String, String> mappings = CommonHelpers.getMappings(baseName);
+        final HashMap<String, TreeSet<String>> inverse = new HashMap<>();
+        if (mappings != null) {
+            for (Map.Entry<String, String> e: mappings.entrySet()) {
+                inverse.computeIfAbsent(e.getValue(), k -> new TreeSet<String>()).add(e.getKey());
+            }
+        }
+        final HashMap<String, String[]> map = new HashMap<>();
+        for (Map.Entry<String, TreeSet<String>> e: inverse.entrySet()) {
+            e.getValue().remove(e.getKey());
+            map.put(e.getKey(), e.getValue().toArray(new String[0]));
+        }
+        return map;
+    }
+
+    /**
+     * @param sc a SC ideogram
+     * @return sc followed by its TC candidates
+     */
+    public static List<String> getCandidates(final String sc) {
+        final List<String> result = new ArrayList<>();
+        result.add(sc);
+        final String[] tc = map.get(sc);
+        if (tc != null) {
+            for (final String candidate: tc) {
+                result.add(candidate);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param field a field indexed with TC ideograms
+     * @param sc a SC ideogram
+     * @return a TermInSetQuery matching sc and all its TC candidates
+     */
+    public static Query newTermInSetQuery(final String field, final String sc) {
+        final List<BytesRef> terms = new ArrayList<>();
+        for (final String candidate: getCandidates(sc)) {
+            terms.add(new BytesRef(candidate));
+        }
+        return new TermInSetQuery(field, terms);
+    }
+
+    @Override
+    public final boolean incrementToken() throws IOException {
+        if (candidates != null) {
+            if (candidateIdx < candidates.length) {
+                restoreState(state);
+                charTermAttribute.setEmpty().append(candidates[candidateIdx]);
+                posIncAttribute.setPositionIncrement(0);
+                candidateIdx ++;
+                return true;
+            }
+            candidates = null;
+            state = null;
+        }
+        if (!input.incrementToken()) {
+            return false;
+        }
+        final String[] tc = map.get(charTermAttribute.buffer(), 0, charTermAttribute.length());
+        if (tc != null && tc.length > 0) {
+            candidates = tc;
+            candidateIdx = 0;
+            state = captureState();
+        }
+        return true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        candidates = null;
+        state = null;
+    }
+}
@@ -20,11 +20,12 @@
 package io.bdrc.lucene.zh;
 
 import java.io.IOException;
-import java.util.HashMap;
 
+import org.apache.lucene.analysis.CharArrayMap;
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
 
 /**
  * Traditional Chinese to Simplified Chinese charfilter
@@ -38,19 +39,42 @@ import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 
 public class TC2SCFilter extends TokenFilter {
 
-    private static final HashMap<String, String> map = CommonHelpers.getMappings("tc2sc.tsv");
+    private static final CharArrayMap<char[]> map = ZhDictionaries.getCharArrayMappings(ZhDictionaries.TC2SC);
     CharTermAttribute charTermAttribute = addAttribute(CharTermAttribute.class);
+    PayloadAttribute payloadAttribute = null;
 
     public TC2SCFilter(TokenStream in) {
         super(in);
     }
 
+    /**
+     * @param keepOriginal
+     *              true to store the original ideogram in the payload of the modified tokens,
+     *              see {@link ZhPayloadQueries}
+     */
+    public TC2SCFilter(TokenStream in, boolean keepOriginal) {
+        super(in);
+        if (keepOriginal) {
+            payloadAttribute = addAttribute(PayloadAttribute.class);
+        }
+    }
+
+    /**
+     * @return the mapping of this filter, see {@link ZhCharMappingFilter}
+     */
+    static CharArrayMap<char[]> getMap() {
+        return map;
+    }
+
     @Override
     public final boolean incrementToken() throws IOException {
         while (input.incrementToken()) {
-            final String sc = map.get(charTermAttribute.toString());
+            final char[] sc = map.get(charTermAttribute.buffer(), 0, charTermAttribute.length());
             if (sc != null) {
-                charTermAttribute.setEmpty().append(sc);
+                if (payloadAttribute != null) {
+                    CommonHelpers.keepOriginalInPayload(charTermAttribute, payloadAttribute);
+                }
+                charTermAttribute.copyBuffer(sc, 0, sc.length);
             }
             return true;
         }
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * A reusable cursor over the tokens of a document, read in place in a {@link CapturedTokens}:
+ * iterating allocates nothing, the term is a slice of {@link #termBuffer()}.
+ *
+ * <pre>
+ * cursor.analyze(analyzer, "contents", text);
+ * while (cursor.next()) {
+ *     counts.merge(cursor.term(), 1, Integer::sum);
+ * }
+ * </pre>
+ *
+ * Not thread-safe, each thread uses its own cursor.
+ */
+public final class TokenCursor {
+
+    private final CapturedTokens buffer = new CapturedTokens();
+    private CapturedTokens tokens = buffer;
+    private int index = -1;
+    private int position = -1;
+    int document = 0;
+
+    public TokenCursor() {
+    }
+
+    /**
+     * Analyzes text into the buffer of this cursor and moves before its first token.
+     * A {@link ChineseAnalyzer} analyzes text with {@link ChineseAnalyzer#analyze(CharSequence, CapturedTokens)}.
+     *
+     * @param analyzer
+     *              the analyzer, used on the calling thread
+     * @param fieldName
+     *              the name of the field
+     * @param text
+     *              the text to analyze
+     * @throws IOException if the analysis throws
+     */
+    public void analyze(final Analyzer analyzer, final String fieldName, final CharSequence text) throws IOException {
+        analyze(analyzer, fieldName, text, buffer);
+        reset(buffer);
+    }
+
+    /**
+     * Fills reuse with the tokens of text, through the fast path of a {@link ChineseAnalyzer}.
+     */
+    static void analyze(final Analyzer analyzer, final String fieldName, final CharSequence text,
+            final CapturedTokens reuse) throws IOException {
+        if (analyzer instanceof ChineseAnalyzer) {
+            ((ChineseAnalyzer) analyzer).analyze(text, reuse);
+        } else {
+            reuse.fill(analyzer.tokenStream(fieldName, text.toString()));
+        }
+    }
+
+    /**
+     * Moves before the first token of tokens.
+     */
+    public void reset(final CapturedTokens tokens) {
+        this.tokens = tokens;
+        this.index = -1;
+        this.position = -1;
+    }
+
+    /**
+     * @return false when there is no more token
+     */
+    public boolean next() {
+        if (index + 1 >= tokens.size()) {
+            index = tokens.size();
+            return false;
+        }
+        index ++;
+        position += tokens.positionIncrement(index);
+        return true;
+    }
+
+    /**
+     * @return true if {@link #next()} would return true
+     */
+    public boolean hasNext() {
+        return index + 1 < tokens.size();
+    }
+
+    /**
+     * @return the index of the current document, when the cursor is used by {@link AnalysisStreams}
+     */
+    public int document() {
+        return document;
+    }
+
+    /**
+     * @return the index of the current token in the document
+     */
+    public int index() {
+        return index;
+    }
+
+    /**
+     * @return the chars of the current term, from {@link #termOffset()}, valid until the next analysis
+     */
+    public char[] termBuffer() {
+        return tokens.termChars();
+    }
+
+    public int termOffset() {
+        return tokens.termStart(index);
+    }
+
+    public int termLength() {
+        return tokens.termLength(index);
+    }
+
+    public String term() {
+        return tokens.term(index);
+    }
+
+    /**
+     * @return the position of the current token, the first position being 0
+     */
+    public int position() {
+        return position;
+    }
+
+    public int positionIncrement() {
+        return tokens.positionIncrement(index);
+    }
+
+    public int startOffset() {
+        return tokens.startOffset(index);
+    }
+
+    public int endOffset() {
+        return tokens.endOffset(index);
+    }
+
+    public String type() {
+        return tokens.type(index);
+    }
+
+    /**
+     * @return the payload of the current token, null if it has none
+     */
+    public BytesRef payload() {
+        return tokens.payload(index);
+    }
+
+    /**
+     * @return the tokens the cursor iterates over
+     */
+    public CapturedTokens tokens() {
+        return tokens;
+    }
+}
@@ -20,11 +20,12 @@
 package io.bdrc.lucene.zh;
 
 import java.io.IOException;
-import java.util.HashMap;
 
+import org.apache.lucene.analysis.CharArrayMap;
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
 
 /**
  * Maps all stylistic variants to a single variant.
@@ -40,22 +41,53 @@ import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 
 public class ZhAlternatesFilter extends TokenFilter {
 
-    private static final HashMap<String, String> map = CommonHelpers.getMappings("zh-alternatives.tsv");
+    private static final ZhDictionary<CharArrayMap<char[]>> dictionary = ZhDictionaries.getMappingsDictionary(ZhDictionaries.ALTERNATES);
+    /* the version of the dictionary read at reset() */
+    private CharArrayMap<char[]> map = dictionary.get();
     CharTermAttribute charTermAttribute = addAttribute(CharTermAttribute.class);
-    
+    PayloadAttribute payloadAttribute = null;
+
     public ZhAlternatesFilter(TokenStream in) {
         super(in);
     }
 
+    /**
+     * @param keepOriginal
+     *              true to store the original ideogram in the payload of the modified tokens,
+     *              see {@link ZhPayloadQueries}
+     */
+    public ZhAlternatesFilter(TokenStream in, boolean keepOriginal) {
+        super(in);
+        if (keepOriginal) {
+            payloadAttribute = addAttribute(PayloadAttribute.class);
+        }
+    }
+
+    /**
+     * @return the mapping of this filter, see {@link ZhCharMappingFilter}
+     */
+    static CharArrayMap<char[]> getMap() {
+        return dictionary.get();
+    }
+
     @Override
     public final boolean incrementToken() throws IOException {
         while (input.incrementToken()) {
-            final String sc = map.get(charTermAttribute.toString());
+            final char[] sc = map.get(charTermAttribute.buffer(), 0, charTermAttribute.length());
             if (sc != null) {
-                charTermAttribute.setEmpty().append(sc);
+                if (payloadAttribute != null) {
+                    CommonHelpers.keepOriginalInPayload(charTermAttribute, payloadAttribute);
+                }
+                charTermAttribute.copyBuffer(sc, 0, sc.length);
             }
             return true;
         }
         return false;
     }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        map = dictionary.get();
+    }
 }
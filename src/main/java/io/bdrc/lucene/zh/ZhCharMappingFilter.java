@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.CharArrayMap;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Applies the mappings of {@link ZhSynonymFilter}, {@link ZhAlternatesFilter},
+ * {@link TC2SCFilter} or {@link ZhToPinyinFilter} to each ideogram of a term,
+ * instead of to a whole single-ideogram token.
+ *
+ * Used by {@link ChineseAnalyzer#normalize(String, TokenStream)}: the text of a prefix,
+ * wildcard or fuzzy query ("經典*") is a single term that is not tokenized.
+ * Each ideogram goes through all the mappings in order, the chars that are not
+ * mapped are kept as-is.
+ */
+public class ZhCharMappingFilter extends TokenFilter {
+
+    private final CharArrayMap<char[]>[] maps;
+    private char[] output = new char[16];
+    CharTermAttribute charTermAttribute = addAttribute(CharTermAttribute.class);
+
+    /**
+     * @param maps
+     *              the mappings, applied in order to each ideogram
+     */
+    @SafeVarargs
+    public ZhCharMappingFilter(TokenStream in, CharArrayMap<char[]>... maps) {
+        super(in);
+        this.maps = maps;
+    }
+
+    @Override
+    public final boolean incrementToken() throws IOException {
+        while (input.incrementToken()) {
+            final char[] buffer = charTermAttribute.buffer();
+            final int length = charTermAttribute.length();
+            int outputLength = 0;
+            for (int i = 0; i < length; ) {
+                final int charCount = Character.charCount(Character.codePointAt(buffer, i, length));
+                char[] mapped = buffer;
+                int mappedOffset = i;
+                int mappedLength = charCount;
+                for (final CharArrayMap<char[]> map: maps) {
+                    final char[] value = map.get(mapped, mappedOffset, mappedLength);
+                    if (value != null) {
+                        mapped = value;
+                        mappedOffset = 0;
+                        mappedLength = value.length;
+                    }
+                }
+                output = ArrayUtil.grow(output, outputLength + mappedLength);
+                System.arraycopy(mapped, mappedOffset, output, outputLength, mappedLength);
+                outputLength += mappedLength;
+                i += charCount;
+            }
+            charTermAttribute.copyBuffer(output, 0, outputLength);
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Sets of common words for {@link ChineseAnalyzer#setCommonGrams(CharArraySet)},
+ * in the index encoding of a profile.
+ *
+ * The same set must be used to index and to query a field: an index built with
+ * common words computed from the index itself must keep that set (for ex. stored
+ * next to the index) rather than recompute it.
+ */
+public class ZhCommonGrams {
+
+    /* the separator of the terms of a bigram, see CommonGramsFilter */
+    static final char SEPARATOR = '_';
+
+    /**
+     * @param profile
+     *              the profile of the indexing analyzer
+     * @return the single-ideogram stopwords of zh-stopwords.txt, TC or SC,
+     *         as analyzed by profile without stopwords (variants, TC2SC, pinyin)
+     */
+    public static CharArraySet fromStopWords(final String profile) {
+        final ChineseAnalyzer target = new ChineseAnalyzer(profile);
+        final String indexEncoding = target.getIndexEncoding();
+        final int variants = target.getInputEncoding().startsWith("PY") ? 0: target.getVariants();
+        target.close();
+        final String[] profiles;
+        if (indexEncoding.equals("TC")) {
+            profiles = new String[] {"TC", "SC2TC"};
+        } else if (indexEncoding.equals("SC")) {
+            profiles = new String[] {"SC", "TC2SC"};
+        } else {
+            profiles = new String[] {"TC2" + indexEncoding, "SC2" + indexEncoding};
+        }
+        final CharArraySet words = new CharArraySet(256, false);
+        for (final String transcriberProfile: profiles) {
+            try (Analyzer transcriber = new ChineseAnalyzer(transcriberProfile, false, variants)) {
+                for (final String word: ZhStopWordsTokenFilter.ideograms.get().list) {
+                    if (word.codePointCount(0, word.length()) == 1 && Character.isIdeographic(word.codePointAt(0))) {
+                        addTerms(transcriber, word, words);
+                    }
+                }
+            }
+        }
+        return words;
+    }
+
+    /**
+     * @param reader
+     *              an index built without common grams, or with the same common grams
+     * @param field
+     *              the field
+     * @param size
+     *              the number of common words
+     * @return the size terms of field having the highest document frequencies,
+     *         bigrams excluded
+     * @throws IOException if the index cannot be read
+     */
+    public static CharArraySet fromIndex(final IndexReader reader, final String field, final int size) throws IOException {
+        final CharArraySet words = new CharArraySet(size, false);
+        if (size <= 0) {
+            return words;
+        }
+        final PriorityQueue<Map.Entry<String, Integer>> top = new PriorityQueue<>(size + 1, Map.Entry.comparingByValue());
+        final Terms terms = MultiTerms.getTerms(reader, field);
+        if (terms != null) {
+            final TermsEnum termsEnum = terms.iterator();
+            BytesRef term;
+            while ((term = termsEnum.next()) != null) {
+                final int docFreq = termsEnum.docFreq();
+                if (top.size() == size && docFreq <= top.peek().getValue()) {
+                    continue;
+                }
+                final String text = term.utf8ToString();
+                if (text.indexOf(SEPARATOR) >= 0) {
+                    continue;
+                }
+                top.add(new AbstractMap.SimpleEntry<>(text, docFreq));
+                if (top.size() > size) {
+                    top.poll();
+                }
+            }
+        }
+        for (final Map.Entry<String, Integer> entry: top) {
+            words.add(entry.getKey());
+        }
+        return words;
+    }
+
+    private static void addTerms(final Analyzer analyzer, final String text, final CharArraySet words) {
+        try (TokenStream stream = analyzer.tokenStream(null, text)) {
+            final CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                words.add(termAtt.toString());
+            }
+            stream.end();
+        } catch (IOException e) {
+            // cannot happen with a String
+            throw new IllegalStateException(e);
+        }
+    }
+}
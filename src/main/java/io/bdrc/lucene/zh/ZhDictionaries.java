@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.apache.lucene.analysis.CharArrayMap;
+import org.apache.lucene.analysis.charfilter.NormalizeCharMap;
+
+import io.bdrc.lucene.zh.ZhStopWordsTokenFilter.StopWords;
+
+/**
+ * The registry of the dictionaries of the filters: each table is loaded once
+ * per class loader, the first time it is needed, and shared by all the filters,
+ * analyzers and factories that use it.
+ *
+ * Hundreds of fields or cores configured with the factories of this package
+ * (see the "Analysis factories" section of the README) hold a single copy of
+ * each table. The tables are read-only.
+ *
+ * The synonyms, the alternates and the stopword lists are {@link ZhDictionary}s that
+ * can be reloaded without restarting the JVM, see {@link #getDictionary(String)}.
+ *
+ * {@link #preload()} loads them all at once, for the fast startup of native images and
+ * AppCDS archives (see the "Native images and AppCDS" section of the README).
+ */
+public final class ZhDictionaries {
+
+    public static final String TC2SC = "tc2sc.tsv";
+    public static final String PINYIN = "pinyin.tsv";
+    public static final String SYNONYMS = "zh-synonyms.tsv";
+    public static final String ALTERNATES = "zh-alternatives.tsv";
+    public static final String NUMBERS = "zh-numbers.tsv";
+    public static final String STOPWORDS = "zh-stopwords.txt";
+
+    private static final ConcurrentHashMap<String, Object> dictionaries = new ConcurrentHashMap<>();
+    private static final AtomicLong generation = new AtomicLong();
+
+    private ZhDictionaries() {
+    }
+
+    /**
+     * @param key
+     *              the name of the dictionary, a resource name or a name derived from it
+     * @param loader
+     *              builds the dictionary, called without holding any lock so that
+     *              it can get other dictionaries
+     * @return the registered dictionary, loaded by loader if it was not yet registered.
+     *         When two threads load the same dictionary, the first one registered wins.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T get(final String key, final Supplier<T> loader) {
+        final Object registered = dictionaries.get(key);
+        if (registered != null) {
+            return (T) registered;
+        }
+        final T loaded = loader.get();
+        if (loaded == null) {
+            return null;
+        }
+        final Object previous = dictionaries.putIfAbsent(key, loaded);
+        return previous == null ? loaded: (T) previous;
+    }
+
+    /**
+     * @param baseName
+     *              a two-column tsv resource, for ex. {@link #TC2SC}
+     * @return the mappings of baseName, see {@link CommonHelpers#getCharArrayMappings(String)}
+     */
+    public static CharArrayMap<char[]> getCharArrayMappings(final String baseName) {
+        return get("mappings:" + baseName, () -> CharArrayMap.unmodifiableMap(CommonHelpers.getCharArrayMappings(baseName)));
+    }
+
+    /**
+     * @param baseName
+     *              a two-column tsv resource
+     * @return the reloadable mappings of baseName
+     */
+    static ZhDictionary<CharArrayMap<char[]>> getMappingsDictionary(final String baseName) {
+        return get("dictionary:" + baseName, () -> new ZhDictionary<>(baseName,
+                stream -> CharArrayMap.unmodifiableMap(CommonHelpers.getCharArrayMappings(stream, baseName)),
+                stream -> CharArrayMap.unmodifiableMap(CommonHelpers.readCharArrayMappings(stream))));
+    }
+
+    /**
+     * @param baseName
+     *              a one stopword per line resource
+     * @param compiler
+     *              compiles the stopwords
+     * @param defaults
+     *              the stopwords used when the resource cannot be found or is empty, null for none.
+     *              A file of {@link ZhDictionary#reload(java.nio.file.Path)} is used as is.
+     * @return the reloadable stopwords of baseName
+     */
+    static ZhDictionary<StopWords> getStopWordsDictionary(final String baseName, final Function<List<String>, StopWords> compiler,
+            final Supplier<List<String>> defaults) {
+        return get("dictionary:" + baseName, () -> new ZhDictionary<>(baseName,
+                stream -> {
+                    final List<String> words = CommonHelpers.getWords(stream, baseName);
+                    return compiler.apply(Collections.unmodifiableList(words.isEmpty() && defaults != null ? defaults.get(): words));
+                },
+                stream -> compiler.apply(Collections.unmodifiableList(CommonHelpers.readWords(stream)))));
+    }
+
+    /**
+     * @param baseName
+     *              {@link #SYNONYMS}, {@link #ALTERNATES}, {@link #STOPWORDS},
+     *              {@link PinyinStopWordsFilter#strictBaseFileName} or {@link PinyinStopWordsFilter#lazyBaseFileName}
+     * @return the reloadable dictionary of baseName
+     * @throws IllegalArgumentException if baseName is not a reloadable dictionary
+     */
+    public static ZhDictionary<?> getDictionary(final String baseName) {
+        switch (baseName) {
+        case SYNONYMS:
+        case ALTERNATES:
+            return getMappingsDictionary(baseName);
+        case STOPWORDS:
+            return ZhStopWordsTokenFilter.ideograms;
+        case PinyinStopWordsFilter.strictBaseFileName:
+            return PinyinStopWordsFilter.strictStopWords;
+        case PinyinStopWordsFilter.lazyBaseFileName:
+            return PinyinStopWordsFilter.lazyStopWords;
+        default:
+            throw new IllegalArgumentException(baseName + " is not a reloadable dictionary");
+        }
+    }
+
+    /**
+     * @return the versions of the reloadable dictionaries loaded so far, by name
+     */
+    public static Map<String, Long> getVersions() {
+        final Map<String, Long> versions = new TreeMap<>();
+        for (final Object dictionary: dictionaries.values()) {
+            if (dictionary instanceof ZhDictionary) {
+                versions.put(((ZhDictionary<?>) dictionary).getName(), ((ZhDictionary<?>) dictionary).getVersion());
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * @return the number of reloads of all the dictionaries: tokens cached with an
+     *         older generation may have been produced with older tables
+     */
+    public static long getGeneration() {
+        return generation.get();
+    }
+
+    static void reloaded() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * @param baseName
+     *              a tsv resource, or a one word per line resource if oneColumn
+     * @param oneColumn
+     *              true to map each line to the empty string
+     * @return the NormalizeCharMap of baseName, for a MappingCharFilter
+     */
+    public static NormalizeCharMap getNormalizeCharMap(final String baseName, final boolean oneColumn) {
+        return get((oneColumn ? "removals:": "charmap:") + baseName, () -> CommonHelpers.getNormalizeCharMap(baseName, oneColumn));
+    }
+
+    /**
+     * Initializes the classes that hold the dictionaries of the package, loading all of them
+     * and the pinyin trie: called at image build time by a native image that initializes
+     * this package at build time, at the startup of the training run of an AppCDS archive,
+     * or at the startup of a service that shouldn't load them on its first request.
+     * 
+     * @return the names of the dictionaries loaded
+     */
+    public static Set<String> preload() {
+        final Class<?>[] holders = {TC2SCFilter.class, SC2TCFilter.class, ZhToPinyinFilter.class,
+                ZhSynonymFilter.class, ZhAlternatesFilter.class, ZhNumericFilter.class, ZhNumeralFilter.class,
+                ZhStopWordsTokenFilter.class, ZhStopWordsFilter.class, PinyinStopWordsFilter.class,
+                PinyinSyllableTokenizer.class, LazyPinyinFilter.class, PinyinNumberedToMarkedFilter.class};
+        for (final Class<?> holder: holders) {
+            try {
+                Class.forName(holder.getName(), true, holder.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return loaded();
+    }
+
+    /**
+     * @return the names of the dictionaries loaded so far
+     */
+    public static Set<String> loaded() {
+        return Collections.unmodifiableSet(new TreeSet<>(dictionaries.keySet()));
+    }
+}
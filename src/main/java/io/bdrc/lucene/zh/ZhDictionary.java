@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A reloadable dictionary: a handle on the current version of a table.
+ *
+ * A reload compiles the new table on the calling thread (or on an executor with
+ * {@link #reloadAsync(Path, Executor)}) and publishes it with a single volatile write.
+ * The filters read {@link #get()} once per document, in their constructor or in reset():
+ * a token stream finishes on the version it started with, and the analysis never takes a lock.
+ *
+ * The reloadable dictionaries are listed by {@link ZhDictionaries#getDictionary(String)}.
+ *
+ * @param <T> the compiled table
+ */
+public final class ZhDictionary<T> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ZhDictionary.class);
+
+    private static final class Version<T> {
+        final T table;
+        final long number;
+        final String source;
+        final long loadTime;
+
+        Version(final T table, final long number, final String source) {
+            this.table = table;
+            this.number = number;
+            this.source = source;
+            this.loadTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Reads and compiles a table from a stream, without closing it.
+     */
+    interface StreamCompiler<T> {
+        /**
+         * @throws IOException if stream cannot be read in full
+         */
+        T compile(InputStream stream) throws IOException;
+    }
+
+    private final String name;
+    private final Function<InputStream, T> compiler;
+    private final StreamCompiler<T> fileCompiler;
+    private volatile Version<T> current;
+
+    /**
+     * Loads the first version from the resource name.
+     *
+     * @param name
+     *              the resource, see {@link CommonHelpers#getResourceOrFile(String)}
+     * @param compiler
+     *              reads and compiles a table from a stream, closing it. The stream
+     *              is null when the resource cannot be found.
+     * @param fileCompiler
+     *              reads and compiles the table of {@link #reload(Path)}, throwing
+     *              rather than compiling a partial table
+     */
+    ZhDictionary(final String name, final Function<InputStream, T> compiler, final StreamCompiler<T> fileCompiler) {
+        this.name = name;
+        this.compiler = compiler;
+        this.fileCompiler = fileCompiler;
+        this.current = new Version<>(compiler.apply(CommonHelpers.getResourceOrFile(name)), 1, "resource " + name);
+    }
+
+    /**
+     * @return the current table, to be read once per document
+     */
+    public T get() {
+        return current.table;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the version of the current table, 1 for the table loaded at startup
+     */
+    public long getVersion() {
+        return current.number;
+    }
+
+    /**
+     * @return where the current table was read from
+     */
+    public String getSource() {
+        return current.source;
+    }
+
+    /**
+     * @return when the current table was published, in milliseconds since the epoch
+     */
+    public long getLoadTime() {
+        return current.loadTime;
+    }
+
+    private long publish(final T table, final String source) {
+        final long number;
+        synchronized (this) {
+            number = current.number + 1;
+            current = new Version<>(table, number, source);
+        }
+        ZhDictionaries.reloaded();
+        logger.info("dictionary {} version {} loaded from {}", name, number, source);
+        return number;
+    }
+
+    /**
+     * Reloads the resource this dictionary was first loaded from.
+     *
+     * @return the new version
+     */
+    public long reload() {
+        return publish(compiler.apply(CommonHelpers.getResourceOrFile(name)), "resource " + name);
+    }
+
+    /**
+     * Replaces the table by the one read from file, in the format of the resource.
+     * The table is only published once file has been read in full.
+     *
+     * @return the new version
+     * @throws IOException if file cannot be read, the current table is then kept
+     */
+    public long reload(final Path file) throws IOException {
+        return reload(Files.newInputStream(file), "file " + file);
+    }
+
+    /**
+     * @param stream
+     *              read in full and closed
+     * @see #reload(Path)
+     */
+    long reload(final InputStream stream, final String source) throws IOException {
+        final T table;
+        try (final InputStream in = stream) {
+            table = fileCompiler.compile(in);
+        }
+        return publish(table, source);
+    }
+
+    /**
+     * Same as {@link #reload(Path)}, on executor.
+     *
+     * @return the new version
+     */
+    public CompletableFuture<Long> reloadAsync(final Path file, final Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return reload(file);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    @Override
+    public String toString() {
+        final Version<T> version = current;
+        return name + " version " + version.number + " (" + version.source + ")";
+    }
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.NoOutputs;
+
+/**
+ * A lexicon of words (Buddhist terms, names...) for {@link ZhLexiconFilter},
+ * compiled into an FST.
+ *
+ * The words are analyzed by the indexing analyzer: the FST holds the terms of
+ * the successive positions of each word, separated by {@link #SEPARATOR}, in the
+ * index encoding ("波 羅 蜜 多", "bō luó mì duō" for a TC2PYstrict field). Words of
+ * a single position are left out, they are already indexed as unigrams.
+ */
+public final class ZhLexicon {
+
+    /* between the terms of two positions, never part of a term */
+    static final int SEPARATOR = ' ';
+
+    /* null when the lexicon is empty */
+    final FST<Object> fst;
+    private final int size;
+    private final int maxPositions;
+
+    private ZhLexicon(final FST<Object> fst, final int size, final int maxPositions) {
+        this.fst = fst;
+        this.size = size;
+        this.maxPositions = maxPositions;
+    }
+
+    /**
+     * @param analyzer
+     *              a ChineseAnalyzer with the profile, stopwords and variants of the indexing
+     *              analyzer, without lexicon nor common grams
+     * @param words
+     *              the words, in the input encoding of analyzer
+     * @return the lexicon of the words of at least two positions
+     * @throws IOException if the FST cannot be built
+     */
+    public static ZhLexicon build(final Analyzer analyzer, final Iterable<String> words) throws IOException {
+        final TreeSet<IntsRef> keys = new TreeSet<>();
+        final IntsRefBuilder key = new IntsRefBuilder();
+        int maxPositions = 0;
+        for (final String word: words) {
+            key.clear();
+            int positions = 0;
+            try (TokenStream stream = analyzer.tokenStream(null, word)) {
+                final CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+                final PositionIncrementAttribute posIncAtt = stream.addAttribute(PositionIncrementAttribute.class);
+                stream.reset();
+                while (stream.incrementToken()) {
+                    /* the first term of each position: the input ideogram when SC2TC stacks candidates */
+                    if (posIncAtt.getPositionIncrement() == 0) {
+                        continue;
+                    }
+                    if (positions > 0) {
+                        key.append(SEPARATOR);
+                    }
+                    for (int i = 0; i < termAtt.length(); ) {
+                        final int cp = Character.codePointAt(termAtt.buffer(), i, termAtt.length());
+                        key.append(cp);
+                        i += Character.charCount(cp);
+                    }
+                    positions ++;
+                }
+                stream.end();
+            }
+            if (positions > 1) {
+                keys.add(IntsRef.deepCopyOf(key.get()));
+                maxPositions = Math.max(maxPositions, positions);
+            }
+        }
+        final Builder<Object> builder = new Builder<>(FST.INPUT_TYPE.BYTE4, NoOutputs.getSingleton());
+        for (final IntsRef k: keys) {
+            builder.add(k, NoOutputs.getSingleton().getNoOutput());
+        }
+        return new ZhLexicon(builder.finish(), keys.size(), maxPositions);
+    }
+
+    /**
+     * @param file
+     *              one word per line, in UTF-8
+     * @see #build(Analyzer, Iterable)
+     */
+    public static ZhLexicon build(final Analyzer analyzer, final Path file) throws IOException {
+        final List<String> words = new ArrayList<>();
+        for (final String line: Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            final String word = line.trim();
+            if (!word.isEmpty() && !word.startsWith("#")) {
+                words.add(word);
+            }
+        }
+        return build(analyzer, words);
+    }
+
+    /**
+     * @return the number of words in the lexicon
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of positions of the longest word
+     */
+    public int getMaxPositions() {
+        return maxPositions;
+    }
+
+    /**
+     * @return the memory used by the FST, in bytes
+     */
+    public long ramBytesUsed() {
+        return fst == null ? 0: fst.ramBytesUsed();
+    }
+}
@@ -0,0 +1,377 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.fst.FST;
+
+/**
+ * Adds the words of a {@link ZhLexicon} to the unigrams ("波羅蜜多" on top of
+ * "波", "羅", "蜜", "多"), with the type {@link #WORD_TYPE}.
+ *
+ * When indexing, every word found in the text is stacked on the position of its first
+ * unigram (position increment 0, position length the number of its positions):
+ * the unigrams are all kept, so recall is unchanged.
+ *
+ * In query mode, the text is segmented by forward maximum matching: the longest word
+ * starting at a position replaces its unigrams, and the next token skips the positions
+ * of the word (the word has a position length of 1, the output is not a graph). A phrase
+ * query on a word of the lexicon becomes a single term lookup, and a phrase containing
+ * a word still matches the indexed unigrams around it.
+ *
+ * All the terms of a position are tried (the TC candidates of {@link SC2TCFilter},
+ * the bigrams of CommonGramsFilter), and the tokens of a word must be contiguous in
+ * the text unless maxGap is -1.
+ */
+public final class ZhLexiconFilter extends TokenFilter {
+
+    public static final String WORD_TYPE = "<WORD>";
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+    private final PositionLengthAttribute posLenAtt = addAttribute(PositionLengthAttribute.class);
+    private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+
+    private final FST<Object> fst;
+    private final FST.BytesReader fstReader;
+    private final int maxPositions;
+    private final boolean queryMode;
+    private final int maxGap;
+
+    /* the tokens read ahead, in a ring buffer: copies of the attributes, positions, terms and offsets */
+    private AttributeSource[] buffered = new AttributeSource[8];
+    private int[] positions = new int[8];
+    private char[][] terms = new char[8][];
+    private int[] termLengths = new int[8];
+    private int[] startOffsets = new int[8];
+    private int[] endOffsets = new int[8];
+    private int head = 0;
+    private int count = 0;
+    private boolean exhausted = false;
+    private int inputPosition = -1;
+    private int outputPosition = -1;
+    private int searchedPosition = -1;
+
+    /* the search state, by number of positions matched */
+    private final FST.Arc<Object>[] arcs;
+    private final FST.Arc<Object> scratch = new FST.Arc<>();
+    private final int[] wordLengths;
+    private final int[] previousEnds;
+    private char[] word = new char[16];
+    private int wordStart = 0;
+
+    /* the words found at searchedPosition: all of them when indexing, the longest one in query mode */
+    private char[][] found = new char[4][];
+    private int[] foundLengths = new int[4];
+    private int[] foundEnds = new int[4];
+    private int[] foundPositions = new int[4];
+    private int foundStart = 0;
+    private int foundCount = 0;
+    private int foundUpto = 0;
+
+    /**
+     * Index mode, for ideograms: the tokens of a word must be contiguous.
+     */
+    public ZhLexiconFilter(TokenStream in, ZhLexicon lexicon) {
+        this(in, lexicon, false, 0);
+    }
+
+    /**
+     * @param queryMode
+     *              true to replace the unigrams by the longest words, false to stack all the words
+     * @param maxGap
+     *              the maximal number of chars between two tokens of a word, -1 not to check
+     *              the offsets (pinyin, where the syllables of a word can be separated or not)
+     */
+    @SuppressWarnings("unchecked")
+    public ZhLexiconFilter(TokenStream in, ZhLexicon lexicon, boolean queryMode, int maxGap) {
+        super(in);
+        this.fst = lexicon.fst;
+        this.fstReader = fst == null ? null: fst.getBytesReader();
+        this.maxPositions = lexicon.getMaxPositions();
+        this.queryMode = queryMode;
+        this.maxGap = maxGap;
+        this.arcs = new FST.Arc[maxPositions + 1];
+        for (int i = 0; i < arcs.length; i ++) {
+            arcs[i] = new FST.Arc<>();
+        }
+        this.wordLengths = new int[maxPositions + 1];
+        this.previousEnds = new int[maxPositions + 1];
+    }
+
+    private int slot(final int i) {
+        return (head + i) % buffered.length;
+    }
+
+    /**
+     * Reads the input until all the tokens of the positions [position, position + maxPositions[ are buffered.
+     */
+    private void fill(final int position) throws IOException {
+        while (!exhausted && (count == 0 || positions[slot(count - 1)] < position + maxPositions)) {
+            if (!input.incrementToken()) {
+                exhausted = true;
+                return;
+            }
+            if (count == buffered.length) {
+                grow();
+            }
+            final int slot = slot(count);
+            inputPosition += posIncAtt.getPositionIncrement();
+            positions[slot] = inputPosition;
+            final int length = termAtt.length();
+            if (terms[slot] == null || terms[slot].length < length) {
+                terms[slot] = new char[ArrayUtil.oversize(length, Character.BYTES)];
+            }
+            System.arraycopy(termAtt.buffer(), 0, terms[slot], 0, length);
+            termLengths[slot] = length;
+            startOffsets[slot] = offsetAtt.startOffset();
+            endOffsets[slot] = offsetAtt.endOffset();
+            if (buffered[slot] == null) {
+                buffered[slot] = cloneAttributes();
+            } else {
+                try {
+                    copyTo(buffered[slot]);
+                } catch (IllegalArgumentException e) {
+                    /* a consumer added an attribute since the copy was created */
+                    buffered[slot] = cloneAttributes();
+                }
+            }
+            count ++;
+        }
+    }
+
+    /**
+     * Doubles the ring buffer, the buffered tokens starting at 0.
+     */
+    private void grow() {
+        final int size = buffered.length * 2;
+        final AttributeSource[] newBuffered = new AttributeSource[size];
+        final int[] newPositions = new int[size];
+        final char[][] newTerms = new char[size][];
+        final int[] newTermLengths = new int[size];
+        final int[] newStartOffsets = new int[size];
+        final int[] newEndOffsets = new int[size];
+        for (int i = 0; i < buffered.length; i ++) {
+            final int slot = slot(i);
+            newBuffered[i] = buffered[slot];
+            newPositions[i] = positions[slot];
+            newTerms[i] = terms[slot];
+            newTermLengths[i] = termLengths[slot];
+            newStartOffsets[i] = startOffsets[slot];
+            newEndOffsets[i] = endOffsets[slot];
+        }
+        buffered = newBuffered;
+        positions = newPositions;
+        terms = newTerms;
+        termLengths = newTermLengths;
+        startOffsets = newStartOffsets;
+        endOffsets = newEndOffsets;
+        head = 0;
+    }
+
+    /**
+     * Looks for the words starting with the terms of the position of the buffered token first,
+     * the word of depth positions being in word[0, wordLengths[depth]).
+     */
+    private void search(final int first, final int depth) throws IOException {
+        final int position = positions[slot(first)];
+        int next = first;
+        while (next < count && positions[slot(next)] == position) {
+            next ++;
+        }
+        final boolean hasNext = next < count && positions[slot(next)] == position + 1 && depth + 1 < maxPositions;
+        for (int i = first; i < next; i ++) {
+            final int slot = slot(i);
+            if (depth > 0 && maxGap >= 0) {
+                final int gap = startOffsets[slot] - previousEnds[depth - 1];
+                if (gap < 0 || gap > maxGap) {
+                    continue;
+                }
+            }
+            if (!walk(slot, depth)) {
+                continue;
+            }
+            if (depth == 0) {
+                wordStart = startOffsets[slot];
+            }
+            if (depth > 0 && scratch.isFinal()) {
+                found(depth + 1, endOffsets[slot]);
+            }
+            if (hasNext && fst.findTargetArc(ZhLexicon.SEPARATOR, scratch, arcs[depth + 1], fstReader) != null) {
+                previousEnds[depth] = endOffsets[slot];
+                search(next, depth + 1);
+            }
+        }
+    }
+
+    /**
+     * Follows the term of slot from arcs[depth] into scratch, and appends it to the word.
+     *
+     * @return false if no word continues with the term
+     */
+    private boolean walk(final int slot, final int depth) throws IOException {
+        scratch.copyFrom(arcs[depth]);
+        final char[] term = terms[slot];
+        final int length = termLengths[slot];
+        for (int i = 0; i < length; ) {
+            final int cp = Character.codePointAt(term, i, length);
+            if (fst.findTargetArc(cp, scratch, scratch, fstReader) == null) {
+                return false;
+            }
+            i += Character.charCount(cp);
+        }
+        word = ArrayUtil.grow(word, wordLengths[depth] + length);
+        System.arraycopy(term, 0, word, wordLengths[depth], length);
+        wordLengths[depth + 1] = wordLengths[depth] + length;
+        return true;
+    }
+
+    /**
+     * Records the word of the current search, of positionCount positions.
+     */
+    private void found(final int positionCount, final int endOffset) {
+        final int length = wordLengths[positionCount];
+        int index = foundCount;
+        if (queryMode) {
+            /* only keep the longest word */
+            if (foundCount > 0 && foundPositions[0] >= positionCount) {
+                return;
+            }
+            index = 0;
+        } else {
+            /* the same word reached through two terms of a position */
+            for (int i = 0; i < foundCount; i ++) {
+                if (foundPositions[i] == positionCount && foundLengths[i] == length && sameWord(i, length)) {
+                    return;
+                }
+            }
+            if (foundCount == found.length) {
+                final int size = ArrayUtil.oversize(foundCount + 1, Integer.BYTES);
+                final char[][] newFound = new char[size][];
+                System.arraycopy(found, 0, newFound, 0, foundCount);
+                found = newFound;
+                foundLengths = ArrayUtil.growExact(foundLengths, size);
+                foundEnds = ArrayUtil.growExact(foundEnds, size);
+                foundPositions = ArrayUtil.growExact(foundPositions, size);
+            }
+        }
+        if (found[index] == null || found[index].length < length) {
+            found[index] = new char[ArrayUtil.oversize(length, Character.BYTES)];
+        }
+        System.arraycopy(word, 0, found[index], 0, length);
+        foundLengths[index] = length;
+        foundEnds[index] = endOffset;
+        foundPositions[index] = positionCount;
+        foundStart = wordStart;
+        foundCount = index + 1;
+    }
+
+    private boolean sameWord(final int index, final int length) {
+        for (int i = 0; i < length; i ++) {
+            if (found[index][i] != word[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the attributes to the found word index, at searchedPosition.
+     */
+    private void emitWord(final int index) {
+        clearAttributes();
+        termAtt.copyBuffer(found[index], 0, foundLengths[index]);
+        offsetAtt.setOffset(foundStart, foundEnds[index]);
+        posIncAtt.setPositionIncrement(searchedPosition - outputPosition);
+        /* a single path in query mode, the skipped positions are not holes for the query graph */
+        posLenAtt.setPositionLength(queryMode ? 1: foundPositions[index]);
+        typeAtt.setType(WORD_TYPE);
+        outputPosition = searchedPosition;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (fst == null) {
+            return input.incrementToken();
+        }
+        /* the words are stacked after the last unigram of their position */
+        if (foundUpto < foundCount && (count == 0 || positions[head] != searchedPosition)) {
+            emitWord(foundUpto);
+            foundUpto ++;
+            return true;
+        }
+        if (count == 0) {
+            fill(inputPosition + 1);
+            if (count == 0) {
+                return false;
+            }
+        }
+        final int position = positions[head];
+        if (position != searchedPosition) {
+            fill(position);
+            searchedPosition = position;
+            foundCount = 0;
+            foundUpto = 0;
+            wordLengths[0] = 0;
+            fst.getFirstArc(arcs[0]);
+            search(0, 0);
+            if (queryMode && foundCount > 0) {
+                /* the word replaces the tokens of its positions */
+                foundUpto = 1;
+                while (count > 0 && positions[head] < position + foundPositions[0]) {
+                    head = (head + 1) % buffered.length;
+                    count --;
+                }
+                emitWord(0);
+                return true;
+            }
+        }
+        buffered[head].copyTo(this);
+        posIncAtt.setPositionIncrement(positions[head] - outputPosition);
+        outputPosition = positions[head];
+        head = (head + 1) % buffered.length;
+        count --;
+        return true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        head = 0;
+        count = 0;
+        exhausted = false;
+        inputPosition = -1;
+        outputPosition = -1;
+        searchedPosition = -1;
+        foundCount = 0;
+        foundUpto = 0;
+    }
+}
@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+
+/**
+ * Replaces runs of numeral ideograms by a single token containing their value.
+ *
+ * Contrary to {@link ZhNumericFilter} that maps each ideogram separately, this filter
+ * parses whole numeral expressions:
+ *          - units: 十(10), 百(100), 千(1000) and the big units 萬(10^4), 億(10^8), 兆(10^12)
+ *            "三千五百" yields "3500", "一億五千萬" yields "150000000"
+ *          - contracted tens: 廿(20), 卅(30), 卌(40)
+ *          - financial forms: "壹萬貳仟" yields "12000"
+ *          - positional digits: "二〇二三" yields "2023"
+ *          - abbreviated last digit: "三千五" yields "3500", "一萬五" yields "15000"
+ *
+ * The values of the individual ideograms are read from zh-numbers.tsv.
+ *
+ * The filter expects one ideogram per token (as produced by StandardTokenizer and {@link ZhOnlyFilter}),
+ * a run is made of consecutive numeral tokens with no gap in offsets or positions.
+ * The produced tokens have the type {@link #NUMERAL_TYPE}.
+ *
+ * uses data from
+ * @see <a href="https://github.com/BuddhistDigitalResourceCenter/lucene-zh-data">lucene-zh-data</a>
+ */
+public class ZhNumeralFilter extends TokenFilter {
+
+    public static final String NUMERAL_TYPE = "<NUMERAL>";
+
+    private static final Map<Integer, Long> values = ZhDictionaries.get("numerals:" + ZhDictionaries.NUMBERS, ZhNumeralFilter::getValues);
+
+    CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+    PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+    TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+
+    private final StringBuilder run = new StringBuilder();
+    private State pending = null;
+    private boolean exhausted = false;
+
+    public ZhNumeralFilter(TokenStream in) {
+        super(in);
+    }
+
+    private static Map<Integer, Long> getValues() {
+        final Map<Integer, Long> values = new HashMap<>();
+        final Map<String, String> mappings = CommonHelpers.getMappings(ZhDictionaries.NUMBERS);
+        if (mappings != null) {
+            for (Map.Entry<String, String> e: mappings.entrySet()) {
+                values.put(e.getKey().codePointAt(0), Long.parseLong(e.getValue()));
+            }
+        }
+        // missing from Unihan's numeric values
+        values.put((int) '〇', 0L);
+        values.put((int) '两', 2L);
+        return values;
+    }
+
+    /**
+     * @return true iff the token content is a single numeral ideogram
+     */
+    private static boolean isNumeral(char[] buffer, int length) {
+        if (length == 0 || length > 2) {
+            return false;
+        }
+        final int cp = Character.codePointAt(buffer, 0, length);
+        return Character.charCount(cp) == length && values.containsKey(cp);
+    }
+
+    /**
+     * Parses a numeral expression.
+     *
+     * @param numeral the numeral ideograms
+     * @return the value of the expression, -1 if it contains a non-numeral or
+     *         if its value doesn't fit in a long
+     */
+    public static long parse(CharSequence numeral) {
+        long total = 0;         // sum of the sections followed by a big unit
+        long section = 0;       // sum of the groups followed by 十, 百 or 千
+        long number = 0;        // pending digits
+        boolean inDigits = false;
+        long lastBigUnit = 0;
+        long previousUnit = 0;  // unit directly preceding the pending digit
+        long lastUnit = 0;
+        try {
+            int i = 0;
+            while (i < numeral.length()) {
+                final int cp = Character.codePointAt(numeral, i);
+                i += Character.charCount(cp);
+                final Long value = values.get(cp);
+                if (value == null) {
+                    return -1;
+                }
+                final long v = value;
+                if (v < 10) {
+                    if (inDigits) {
+                        number = Math.addExact(Math.multiplyExact(number, 10), v);
+                        previousUnit = 0;
+                    } else {
+                        number = v;
+                        previousUnit = lastUnit;
+                    }
+                    inDigits = true;
+                    lastUnit = 0;
+                } else if (v == 20 || v == 30 || v == 40) {
+                    section = Math.addExact(section, Math.addExact(number, v));
+                    number = 0;
+                    inDigits = false;
+                    lastUnit = 10;
+                } else if (v < 10000) {
+                    final long multiplier = (inDigits) ? number: 1;
+                    section = Math.addExact(section, Math.multiplyExact(multiplier, v));
+                    number = 0;
+                    inDigits = false;
+                    lastUnit = v;
+                } else {
+                    long group = Math.addExact(section, number);
+                    if (group == 0 && total == 0) {
+                        group = 1;
+                    }
+                    if (lastBigUnit != 0 && v >= lastBigUnit) {
+                        total = Math.multiplyExact(Math.addExact(total, group), v);
+                    } else {
+                        total = Math.addExact(total, Math.multiplyExact(group, v));
+                    }
+                    section = 0;
+                    number = 0;
+                    inDigits = false;
+                    lastBigUnit = v;
+                    lastUnit = v;
+                }
+            }
+            /* "三千五" is 3500 and "一萬五" is 15000 */
+            if (inDigits && previousUnit >= 100 && number < 10) {
+                number = Math.multiplyExact(number, previousUnit / 10);
+            }
+            return Math.addExact(total, Math.addExact(section, number));
+        } catch (ArithmeticException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public final boolean incrementToken() throws IOException {
+        if (pending != null) {
+            /* the token that ended the previous run can start a new one */
+            restoreState(pending);
+            pending = null;
+        } else if (exhausted || !input.incrementToken()) {
+            exhausted = true;
+            return false;
+        }
+        if (!isNumeral(termAtt.buffer(), termAtt.length())) {
+            return true;
+        }
+        run.setLength(0);
+        run.append(termAtt.buffer(), 0, termAtt.length());
+        final int startOffset = offsetAtt.startOffset();
+        int endOffset = offsetAtt.endOffset();
+        final int posInc = posIncAtt.getPositionIncrement();
+        final String firstType = typeAtt.type();
+        while (input.incrementToken()) {
+            if (isNumeral(termAtt.buffer(), termAtt.length()) && posIncAtt.getPositionIncrement() == 1
+                    && offsetAtt.startOffset() == endOffset) {
+                run.append(termAtt.buffer(), 0, termAtt.length());
+                endOffset = offsetAtt.endOffset();
+            } else {
+                pending = captureState();
+                break;
+            }
+        }
+        if (pending == null) {
+            exhausted = true;
+        }
+        final long value = parse(run);
+        clearAttributes();
+        if (value >= 0) {
+            termAtt.append(Long.toString(value));
+            typeAtt.setType(NUMERAL_TYPE);
+        } else {
+            termAtt.append(run);
+            typeAtt.setType(firstType);
+        }
+        offsetAtt.setOffset(startOffset, endOffset);
+        posIncAtt.setPositionIncrement(posInc);
+        return true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        pending = null;
+        exhausted = false;
+    }
+}
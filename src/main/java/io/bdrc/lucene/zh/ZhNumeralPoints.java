@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.search.Query;
+
+/**
+ * Indexes the numerals found in a text as {@link LongPoint}s,
+ * so that ranges of volume or chapter numbers (卷, 品, etc.) can be searched
+ * with point queries instead of enumerating terms.
+ *
+ * The numerals are recognized by {@link ZhNumeralFilter}, no stopword is filtered.
+ *
+ * For ex: "大般若波羅蜜多經卷第三百五十" adds the point 350.
+ */
+public class ZhNumeralPoints {
+
+    private static final Analyzer numeralAnalyzer = new Analyzer() {
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName) {
+            final Tokenizer tok = new StandardTokenizer();
+            return new TokenStreamComponents(tok, new ZhNumeralFilter(new ZhOnlyFilter(tok)));
+        }
+    };
+
+    /**
+     * @param text the text to parse
+     * @return the values of all the numerals in text, in order of appearance
+     */
+    public static List<Long> getValues(String text) {
+        final List<Long> result = new ArrayList<>();
+        try (TokenStream stream = numeralAnalyzer.tokenStream(null, text)) {
+            final CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+            final TypeAttribute typeAtt = stream.addAttribute(TypeAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                if (typeAtt.type().equals(ZhNumeralFilter.NUMERAL_TYPE)) {
+                    result.add(Long.parseLong(termAtt.toString()));
+                }
+            }
+            stream.end();
+        } catch (IOException e) {
+            // not thrown b/c we're using a string reader...
+        }
+        return result;
+    }
+
+    /**
+     * Adds one LongPoint per numeral found in text.
+     *
+     * @param doc the document receiving the points
+     * @param field the name of the point field
+     * @param text the text to parse
+     * @return the number of added points
+     */
+    public static int addPoints(Document doc, String field, String text) {
+        final List<Long> values = getValues(text);
+        for (final long value: values) {
+            doc.add(new LongPoint(field, value));
+        }
+        return values.size();
+    }
+
+    /**
+     * @return a query matching the documents having a numeral between lower and upper (inclusive)
+     */
+    public static Query newRangeQuery(String field, long lower, long upper) {
+        return LongPoint.newRangeQuery(field, lower, upper);
+    }
+}
@@ -34,6 +34,8 @@ import org.apache.lucene.analysis.charfilter.NormalizeCharMap;
  * ideograms have different meanings, like: '貳(2) can also mean "to betray"'. 
  * !!!
  * 
+ * See {@link ZhNumeralFilter} for a filter parsing whole numeral expressions.
+ * 
  * Maps all numeric ideograms to the corresponding numbers.
  * 
  * For ex: "一", "壱", "壹" and "弌"  all map to "1"
@@ -47,7 +49,7 @@ import org.apache.lucene.analysis.charfilter.NormalizeCharMap;
 
 public class ZhNumericFilter extends MappingCharFilter {
     
-    private static final NormalizeCharMap map = CommonHelpers.getNormalizeCharMap("zh-numbers.tsv", false);
+    private static final NormalizeCharMap map = ZhDictionaries.getNormalizeCharMap(ZhDictionaries.NUMBERS, false);
     
     public ZhNumericFilter(Reader in) {
         super(map, in);
@@ -31,12 +31,36 @@ import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
  * the types produced by lucene.analysis.standard.StandardTokenizer
  * for Chinese tokens.
  * 
+ * With keepLatin, the "ALPHANUM" and "NUM" tokens (Latin, IAST Sanskrit, numbers)
+ * are also kept, see {@link ChineseAnalyzer#setLatinChain(java.util.function.Function)}.
+ * 
  * @author Hélios Hildt
  */
 public class ZhOnlyFilter extends TokenFilter {
 
+  public static final String LATIN_TYPE = "<ALPHANUM>";
+  public static final String NUM_TYPE = "<NUM>";
+
+  private final boolean keepLatin;
+
   public ZhOnlyFilter(TokenStream in) {
+    this(in, false);
+  }
+
+  /**
+   * @param keepLatin
+   *              true to also keep the Latin tokens and the numbers
+   */
+  public ZhOnlyFilter(TokenStream in, boolean keepLatin) {
     super(in);
+    this.keepLatin = keepLatin;
+  }
+
+  /**
+   * @return true if type is the type of a Chinese token
+   */
+  public static boolean isZhType(String type) {
+    return type.equals("<IDEOGRAPHIC>") || type.equals("<CJ>");
   }
   
   protected TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
@@ -44,7 +68,8 @@ public class ZhOnlyFilter extends TokenFilter {
   @Override
   public final boolean incrementToken() throws IOException {
       while (input.incrementToken()) {
-          if (typeAtt.type().equals("<IDEOGRAPHIC>") || typeAtt.type().equals("<CJ>")) {
+          final String type = typeAtt.type();
+          if (isZhType(type) || (keepLatin && (type.equals(LATIN_TYPE) || type.equals(NUM_TYPE)))) {
               return true;
           } else {
               continue;
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.payloads.SpanPayloadCheckQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Queries checking the payloads written by a {@link ChineseAnalyzer} on which
+ * {@link ChineseAnalyzer#setPayloads(boolean)} has been called.
+ *
+ * For ex. a single field indexed with the TC2SC profile and payloads can answer
+ * both regular SC queries and exact TC queries: "後" and "后" are both indexed as "后",
+ * but only "後" has the payload "後".
+ *
+ * In the same way, a single field indexed with the TC2PYlazy profile and payloads
+ * answers lazy queries (PYlazy profile, no payload check) as well as strict queries
+ * analyzed with the PYstrict2PYlazy profile and payloads, that check the tones.
+ */
+public class ZhPayloadQueries {
+
+    /**
+     * Analyzes text and builds a query matching the same sequence of terms
+     * having the same payloads. Tokens without payload only match indexed
+     * tokens without payload.
+     *
+     * @param analyzer
+     *              the analyzer used to index the field, with payloads
+     * @param field
+     *              the field
+     * @param text
+     *              the query string
+     * @return a SpanPayloadCheckQuery over a single term or an ordered SpanNearQuery with no slop
+     * @throws IOException if the analyzer throws
+     */
+    public static Query newExactQuery(final Analyzer analyzer, final String field, final String text) throws IOException {
+        final List<SpanQuery> clauses = new ArrayList<>();
+        final List<BytesRef> payloads = new ArrayList<>();
+        try (TokenStream stream = analyzer.tokenStream(field, text)) {
+            final CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+            final PayloadAttribute payloadAtt = stream.addAttribute(PayloadAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                clauses.add(new SpanTermQuery(new Term(field, termAtt.toString())));
+                final BytesRef payload = payloadAtt.getPayload();
+                payloads.add((payload == null || payload.length == 0) ? null : BytesRef.deepCopyOf(payload));
+            }
+            stream.end();
+        }
+        if (clauses.isEmpty()) {
+            return new MatchNoDocsQuery();
+        }
+        final SpanQuery match;
+        if (clauses.size() == 1) {
+            match = clauses.get(0);
+        } else {
+            match = new SpanNearQuery(clauses.toArray(new SpanQuery[0]), 0, true);
+        }
+        return new SpanPayloadCheckQuery(match, payloads);
+    }
+}
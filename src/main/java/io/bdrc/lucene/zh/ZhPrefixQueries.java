@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanMultiTermQueryWrapper;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+
+/**
+ * Prefix queries of several ideograms or syllables.
+ *
+ * The fields index one token per ideogram or per pinyin syllable, but the text of a
+ * prefix query is a single term, normalized by {@link ChineseAnalyzer#normalize(String, String)}
+ * without being tokenized: "經典*" becomes "jingdian*" with the TC2PYlazy profile and
+ * matches no token of the field, only "經*" matches "jing". A prefix query built here
+ * follows the tokens instead: "經典" matches "jing" followed by a token starting with "dian",
+ * "jing di" matches "jing" followed by "dian", "di", "ding"...
+ */
+public class ZhPrefixQueries {
+
+    /**
+     * Analyzes text and builds a query matching the same sequence of terms, the last
+     * one being a prefix. The terms stacked on a position (SC2TC candidates) are
+     * alternatives, the words of a lexicon are ignored.
+     *
+     * @param analyzer
+     *              the analyzer used to index the field
+     * @param field
+     *              the field
+     * @param text
+     *              the query string, without "*"
+     * @return a PrefixQuery for a single term or an ordered SpanNearQuery with no slop
+     * @throws IOException if the analyzer throws
+     */
+    public static Query newPrefixQuery(final Analyzer analyzer, final String field, final String text) throws IOException {
+        final List<List<String>> positions = new ArrayList<>();
+        try (TokenStream stream = analyzer.tokenStream(field, text)) {
+            final CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+            final PositionIncrementAttribute posIncAtt = stream.addAttribute(PositionIncrementAttribute.class);
+            final PositionLengthAttribute posLenAtt = stream.addAttribute(PositionLengthAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                if (posLenAtt.getPositionLength() > 1) {
+                    continue;
+                }
+                if (posIncAtt.getPositionIncrement() > 0 || positions.isEmpty()) {
+                    positions.add(new ArrayList<>());
+                }
+                positions.get(positions.size() - 1).add(termAtt.toString());
+            }
+            stream.end();
+        }
+        if (positions.isEmpty()) {
+            return new MatchNoDocsQuery();
+        }
+        final List<String> last = positions.get(positions.size() - 1);
+        if (positions.size() == 1 && last.size() == 1) {
+            return new PrefixQuery(new Term(field, last.get(0)));
+        }
+        final SpanQuery[] clauses = new SpanQuery[positions.size()];
+        for (int i = 0; i < clauses.length; i ++) {
+            final List<String> terms = positions.get(i);
+            final SpanQuery[] alternatives = new SpanQuery[terms.size()];
+            for (int j = 0; j < alternatives.length; j ++) {
+                final Term term = new Term(field, terms.get(j));
+                alternatives[j] = (i == clauses.length - 1) ? new SpanMultiTermQueryWrapper<>(new PrefixQuery(term)): new SpanTermQuery(term);
+            }
+            clauses[i] = (alternatives.length == 1) ? alternatives[0]: new SpanOrQuery(alternatives);
+        }
+        if (clauses.length == 1) {
+            return clauses[0];
+        }
+        return new SpanNearQuery(clauses, 0, true);
+    }
+}
@@ -22,7 +22,6 @@ package io.bdrc.lucene.zh;
 import java.io.Reader;
 
 import org.apache.lucene.analysis.charfilter.MappingCharFilter;
-import org.apache.lucene.analysis.charfilter.NormalizeCharMap;
 
 /**
  * Traditional Chinese to Simplified Chinese charfilter 
@@ -35,9 +34,8 @@ import org.apache.lucene.analysis.charfilter.NormalizeCharMap;
 
 public class ZhStopWordsFilter extends MappingCharFilter {
 
-    private static final NormalizeCharMap map = CommonHelpers.getNormalizeCharMap("zh-stopwords.txt", true);
-    
+    /* the current version of the stopwords is read for each document */
     public ZhStopWordsFilter(Reader in) {
-        super(map, in);
+        super(ZhStopWordsTokenFilter.ideograms.get().removals, in);
     }
 }
\ No newline at end of file
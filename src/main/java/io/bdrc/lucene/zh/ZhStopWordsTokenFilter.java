@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.charfilter.NormalizeCharMap;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.FlagsAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.util.AttributeSource;
+
+/**
+ * Token-level equivalent of {@link ZhStopWordsFilter}.
+ *
+ * Removes the runs of adjacent tokens (no gap in offsets) that form a stopword,
+ * taking the longest stopword starting at each token, as the MappingCharFilter does.
+ * Position increments are left untouched, so the positions are the same as when
+ * the stopwords are removed from the character stream.
+ *
+ * Contrary to the CharFilter, no offset correction is accumulated: at most as many
+ * tokens as there are characters in the longest stopword are buffered, and only the
+ * tokens that can start a stopword are.
+ *
+ * uses data from
+ * @see <a href="https://github.com/BuddhistDigitalResourceCenter/lucene-zh-data">lucene-zh-data</a>
+ */
+public class ZhStopWordsTokenFilter extends TokenFilter {
+
+    /**
+     * A stopword list, with the prefixes of its entries for the lookahead.
+     */
+    static final class StopWords {
+        final List<String> list;
+        final CharArraySet words;
+        final CharArraySet prefixes;
+        /* the separator inserted between the terms of the tokens, 0 for none */
+        final char separator;
+        /* the maximal number of chars between two tokens of a stopword, -1 to check the
+         * PinyinSyllableTokenizer.SEPARATED flag instead of the offsets */
+        final int maxGap;
+        final int maxChars;
+        final int maxTokens;
+        /* the lowest first char of a stopword, the chars below cannot start one */
+        final char minFirst;
+        /* the removals of ZhStopWordsFilter, null if separator is not 0 */
+        final NormalizeCharMap removals;
+
+        /**
+         * @param list the stopwords, the tokens separated by separator if it is not 0
+         */
+        StopWords(final List<String> list, final char separator, final int maxGap) {
+            this.list = list;
+            this.words = new CharArraySet(list.size(), false);
+            this.prefixes = new CharArraySet(list.size(), false);
+            this.separator = separator;
+            this.maxGap = maxGap;
+            int chars = 1;
+            int tokens = 1;
+            char first = Character.MAX_VALUE;
+            for (final String word: list) {
+                words.add(word);
+                if (!word.isEmpty()) {
+                    first = (char) Math.min(first, word.charAt(0));
+                }
+                int wordTokens = 1;
+                for (int i = 1; i < word.length(); i ++) {
+                    if (separator == 0 || word.charAt(i) == separator) {
+                        prefixes.add(word.substring(0, i));
+                        wordTokens ++;
+                    }
+                }
+                chars = Math.max(chars, word.length());
+                tokens = Math.max(tokens, wordTokens);
+            }
+            this.maxChars = chars;
+            this.maxTokens = tokens;
+            this.minFirst = first;
+            if (separator == 0) {
+                final NormalizeCharMap.Builder builder = new NormalizeCharMap.Builder();
+                for (final Object word: words) {
+                    builder.add(new String((char[]) word), "");
+                }
+                this.removals = builder.build();
+            } else {
+                this.removals = null;
+            }
+        }
+    }
+
+    static final ZhDictionary<StopWords> ideograms = ZhDictionaries.getStopWordsDictionary(ZhDictionaries.STOPWORDS,
+            words -> new StopWords(words, (char) 0, 0), null);
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+    private final FlagsAttribute flagsAtt = addAttribute(FlagsAttribute.class);
+
+    private final ZhDictionary<StopWords> dictionary;
+    /* the version of the dictionary read at reset() */
+    private StopWords stopwords = null;
+    private int maxLength = 0;
+
+    /* ring buffer of the tokens read ahead, copies of the attributes of this stream
+     * created at reset(): captureState() would allocate for each buffered token */
+    private AttributeSource[] buffered = null;
+    private char[][] terms;
+    private int[] termLengths;
+    private int[] startOffsets;
+    private int[] endOffsets;
+    private int[] flags;
+    private int head = 0;
+    private int count = 0;
+    private boolean exhausted = false;
+
+    private char[] key = new char[0];
+
+    public ZhStopWordsTokenFilter(TokenStream in) {
+        this(in, ideograms);
+    }
+
+    ZhStopWordsTokenFilter(TokenStream in, ZhDictionary<StopWords> dictionary) {
+        super(in);
+        this.dictionary = dictionary;
+        setStopWords(dictionary.get());
+    }
+
+    /**
+     * Switches to another version of the stopwords, between two documents.
+     */
+    private void setStopWords(final StopWords stopwords) {
+        this.stopwords = stopwords;
+        if (stopwords.maxTokens != maxLength) {
+            maxLength = stopwords.maxTokens;
+            terms = new char[maxLength][];
+            termLengths = new int[maxLength];
+            startOffsets = new int[maxLength];
+            endOffsets = new int[maxLength];
+            flags = new int[maxLength];
+            for (int i = 0; i < maxLength; i ++) {
+                terms[i] = new char[2];
+            }
+            buffered = null;
+        }
+        if (key.length < stopwords.maxChars) {
+            key = new char[stopwords.maxChars];
+        }
+    }
+
+    /**
+     * Reads one more token from the input and adds it to the ring buffer.
+     */
+    private boolean readAhead() throws IOException {
+        if (exhausted || count == maxLength) {
+            return false;
+        }
+        if (!input.incrementToken()) {
+            exhausted = true;
+            return false;
+        }
+        store();
+        return true;
+    }
+
+    /**
+     * Adds the current token to the ring buffer.
+     */
+    private void store() {
+        final int slot = (head + count) % maxLength;
+        final int length = termAtt.length();
+        if (terms[slot].length < length) {
+            terms[slot] = new char[length];
+        }
+        System.arraycopy(termAtt.buffer(), 0, terms[slot], 0, length);
+        termLengths[slot] = length;
+        startOffsets[slot] = offsetAtt.startOffset();
+        endOffsets[slot] = offsetAtt.endOffset();
+        flags[slot] = flagsAtt.getFlags();
+        try {
+            copyTo(buffered[slot]);
+        } catch (IllegalArgumentException e) {
+            /* a consumer added an attribute since the copy was created */
+            buffered[slot] = cloneAttributes();
+        }
+        count ++;
+    }
+
+    /**
+     * @return the number of buffered tokens forming the longest stopword, 0 if none
+     */
+    private int longestStopword() throws IOException {
+        int matched = 0;
+        int keyLength = 0;
+        for (int i = 0; i < maxLength; i ++) {
+            if (i == count && !readAhead()) {
+                break;
+            }
+            final int slot = (head + i) % maxLength;
+            if (i > 0 && stopwords.maxGap >= 0) {
+                final int gap = startOffsets[slot] - endOffsets[(head + i - 1) % maxLength];
+                if (gap < 0 || gap > stopwords.maxGap) {
+                    break;
+                }
+            } else if (i > 0 && (flags[slot] & PinyinSyllableTokenizer.SEPARATED) != 0) {
+                break;
+            }
+            final int length = termLengths[slot];
+            final int separatorLength = (i > 0 && stopwords.separator != 0) ? 1: 0;
+            if (keyLength + separatorLength + length > key.length) {
+                break;
+            }
+            if (separatorLength > 0) {
+                key[keyLength] = stopwords.separator;
+                keyLength ++;
+            }
+            System.arraycopy(terms[slot], 0, key, keyLength, length);
+            keyLength += length;
+            if (stopwords.words.contains(key, 0, keyLength)) {
+                matched = i + 1;
+            }
+            if (!stopwords.prefixes.contains(key, 0, keyLength)) {
+                break;
+            }
+        }
+        return matched;
+    }
+
+    @Override
+    public final boolean incrementToken() throws IOException {
+        while (true) {
+            if (count == 0) {
+                if (exhausted || !input.incrementToken()) {
+                    exhausted = true;
+                    return false;
+                }
+                /* a token that can't start a stopword is returned without being buffered */
+                final char[] buffer = termAtt.buffer();
+                final int length = termAtt.length();
+                if (!stopwords.words.contains(buffer, 0, length) && !stopwords.prefixes.contains(buffer, 0, length)) {
+                    return true;
+                }
+                store();
+            }
+            final int matched = longestStopword();
+            if (matched == 0) {
+                break;
+            }
+            head = (head + matched) % maxLength;
+            count -= matched;
+        }
+        buffered[head].copyTo(this);
+        head = (head + 1) % maxLength;
+        count --;
+        return true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        final StopWords current = dictionary.get();
+        if (current != stopwords) {
+            setStopWords(current);
+        }
+        if (buffered == null) {
+            buffered = new AttributeSource[maxLength];
+            for (int i = 0; i < maxLength; i ++) {
+                buffered[i] = cloneAttributes();
+            }
+        }
+        head = 0;
+        count = 0;
+        exhausted = false;
+    }
+}
@@ -20,8 +20,8 @@
 package io.bdrc.lucene.zh;
 
 import java.io.IOException;
-import java.util.Map;
 
+import org.apache.lucene.analysis.CharArrayMap;
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
@@ -38,19 +38,26 @@ import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 
 public class ZhToPinyinFilter extends TokenFilter {
 
-    private static final Map<String, String> map = CommonHelpers.getMappings("pinyin.tsv");
+    private static final CharArrayMap<char[]> map = ZhDictionaries.getCharArrayMappings(ZhDictionaries.PINYIN);
     CharTermAttribute charTermAttribute = addAttribute(CharTermAttribute.class);
 
     public ZhToPinyinFilter(TokenStream in) {
         super(in);
     }
 
+    /**
+     * @return the mapping of this filter, see {@link ZhCharMappingFilter}
+     */
+    static CharArrayMap<char[]> getMap() {
+        return map;
+    }
+
     @Override
     public final boolean incrementToken() throws IOException {
         while (input.incrementToken()) {
-            final String pinyin = map.get(charTermAttribute.toString());
+            final char[] pinyin = map.get(charTermAttribute.buffer(), 0, charTermAttribute.length());
             if (pinyin != null) {
-                charTermAttribute.setEmpty().append(pinyin);
+                charTermAttribute.copyBuffer(pinyin, 0, pinyin.length);
             }
             return true;
         }
@@ -6,16 +6,15 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
-import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 
+import io.bdrc.lucene.zh.AnalysisStreams;
 import io.bdrc.lucene.zh.ChineseAnalyzer;
 
 public class PrettyPrintResult {
@@ -77,23 +76,11 @@ public class PrettyPrintResult {
         writer.close();
     }
     
-    // adapted from https://stackoverflow.com/a/9562816
     public static List<String> parseTokens(Analyzer analyzer, String input) throws IOException {
-
-        List<String> result = new ArrayList<String>();
-        TokenStream stream  = analyzer.tokenStream(null, new StringReader(input));
-        stream.reset();
-        CharTermAttribute charTermAttribute = stream.addAttribute(CharTermAttribute.class);
-        
         try {
-            while(stream.incrementToken()) {
-                result.add(charTermAttribute.toString());
-            }
-        }
-        catch(IOException e) {
-            // not thrown b/c we're using a string reader...
+            return AnalysisStreams.terms(analyzer, null, input).collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        stream.close();
-        return result;
     }  
 }
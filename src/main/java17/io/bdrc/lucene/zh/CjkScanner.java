@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+/**
+ * The JDK 17 version of the scanner, in META-INF/versions/17 of the multi-release jar:
+ * the scans use {@link CjkVectorScanner} when the jdk.incubator.vector module has been
+ * added to the boot layer and vectors hold at least 8 chars, the scalar loops otherwise.
+ */
+final class CjkScanner {
+
+    static final char MIN_IDEOGRAPH = '\u3400';
+
+    private static final boolean VECTORIZED = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+            && CjkVectorScanner.lanes() >= 8;
+
+    private CjkScanner() {
+    }
+
+    static boolean isVectorized() {
+        return VECTORIZED;
+    }
+
+    static boolean isBmpIdeograph(final char c) {
+        return (c >= '\u3400' && c <= '\u4DB5') || (c >= '\u4E00' && c <= '\u9FD5');
+    }
+
+    static int skipBelow(final char[] buffer, final int from, final int to, final char limit) {
+        int i = VECTORIZED ? CjkVectorScanner.skipBelow(buffer, from, to, limit): from;
+        while (i < to && buffer[i] < limit) {
+            i ++;
+        }
+        return i;
+    }
+
+    static int skipBmpIdeographs(final char[] buffer, final int from, final int to) {
+        int i = VECTORIZED ? CjkVectorScanner.skipBmpIdeographs(buffer, from, to): from;
+        while (i < to && isBmpIdeograph(buffer[i])) {
+            i ++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The vector loops of {@link CjkScanner}, only loaded when the jdk.incubator.vector module
+ * is available.
+ *
+ * The chars are loaded as shorts, with their sign bit flipped so that the signed comparisons
+ * of the lanes order them as unsigned chars. Each method stops at the first vector containing
+ * a char that ends the run, or before the tail shorter than a vector: the caller finishes
+ * with the scalar loop.
+ */
+final class CjkVectorScanner {
+
+    private static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_PREFERRED;
+    private static final short SIGN = (short) 0x8000;
+
+    private CjkVectorScanner() {
+    }
+
+    static int lanes() {
+        return SPECIES.length();
+    }
+
+    private static short biased(final char c) {
+        return (short) (c ^ SIGN);
+    }
+
+    private static ShortVector load(final char[] buffer, final int i) {
+        return ShortVector.fromCharArray(SPECIES, buffer, i).lanewise(VectorOperators.XOR, SIGN);
+    }
+
+    static int skipBelow(final char[] buffer, final int from, final int to, final char limit) {
+        final short biasedLimit = biased(limit);
+        final int bound = from + SPECIES.loopBound(to - from);
+        int i = from;
+        for (; i < bound; i += SPECIES.length()) {
+            final VectorMask<Short> stop = load(buffer, i).compare(VectorOperators.GE, biasedLimit);
+            if (stop.anyTrue()) {
+                return i + stop.firstTrue();
+            }
+        }
+        return i;
+    }
+
+    static int skipBmpIdeographs(final char[] buffer, final int from, final int to) {
+        final short extAFirst = biased('\u3400');
+        final short extALast = biased('\u4DB5');
+        final short uroFirst = biased('\u4E00');
+        final short uroLast = biased('\u9FD5');
+        final int bound = from + SPECIES.loopBound(to - from);
+        int i = from;
+        for (; i < bound; i += SPECIES.length()) {
+            final ShortVector v = load(buffer, i);
+            final VectorMask<Short> extA = v.compare(VectorOperators.GE, extAFirst).and(v.compare(VectorOperators.LE, extALast));
+            final VectorMask<Short> uro = v.compare(VectorOperators.GE, uroFirst).and(v.compare(VectorOperators.LE, uroLast));
+            final VectorMask<Short> stop = extA.or(uro).not();
+            if (stop.anyTrue()) {
+                return i + stop.firstTrue();
+            }
+        }
+        return i;
+    }
+}
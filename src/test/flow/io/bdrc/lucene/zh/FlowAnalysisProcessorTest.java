@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import io.bdrc.lucene.zh.benchmark.BenchmarkCorpus;
+
+/**
+ * Tests of FlowAnalysisProcessor, only run with the "flow" profile.
+ */
+public class FlowAnalysisProcessorTest
+{
+    /**
+     * A publisher of documents that delivers them on request, from its own thread.
+     */
+    static final class DocumentPublisher implements Flow.Publisher<CharSequence> {
+        final List<String> docs;
+        final ExecutorService thread = Executors.newSingleThreadExecutor();
+        final AtomicLong requested = new AtomicLong();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        int next = 0;
+        
+        DocumentPublisher(List<String> docs) {
+            this.docs = docs;
+        }
+        
+        @Override
+        public void subscribe(Flow.Subscriber<? super CharSequence> subscriber) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    requested.addAndGet(n);
+                    thread.execute(() -> {
+                        for (long i = 0; i < n && next < docs.size() && !cancelled.get(); i++) {
+                            subscriber.onNext(docs.get(next++));
+                        }
+                        if (next == docs.size()) {
+                            subscriber.onComplete();
+                        }
+                    });
+                }
+                
+                @Override
+                public void cancel() {
+                    cancelled.set(true);
+                }
+            });
+        }
+    }
+    
+    /**
+     * A subscriber that requests one batch at a time and records the delivered documents.
+     */
+    static final class BatchSubscriber implements Flow.Subscriber<List<CapturedTokens>> {
+        final List<String> batched = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean requestOnSubscribe;
+        DocumentPublisher source;
+        Flow.Subscription subscription;
+        int maxInFlight;
+        
+        BatchSubscriber(boolean requestOnSubscribe) {
+            this.requestOnSubscribe = requestOnSubscribe;
+        }
+        
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (requestOnSubscribe) {
+                subscription.request(1);
+            }
+        }
+        
+        @Override
+        public void onNext(List<CapturedTokens> batch) {
+            sizes.add(batch.size());
+            if (source != null) {
+                // documents requested beyond the ones delivered: at most 2 * maxConcurrency batches
+                maxInFlight = Math.max(maxInFlight, (int) (source.requested.get() - batched.size()));
+            }
+            for (CapturedTokens tokens: batch) {
+                batched.add(ChineseAnalyzerTest.describe(tokens).toString());
+            }
+            subscription.request(1);
+        }
+        
+        @Override
+        public void onError(Throwable error) {
+            failure.set(error);
+            done.countDown();
+        }
+        
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+    
+    @Test
+    public void testBackpressure() throws Exception
+    {
+        List<String> docs = new BenchmarkCorpus(42).documents("TC", 103, 200);
+        ChineseAnalyzer analyzer = new ChineseAnalyzer("TC");
+        List<String> serial = new ArrayList<>();
+        for (String doc: docs) {
+            serial.add(ChineseAnalyzerTest.describe(CapturedTokens.capture(analyzer.tokenStream("contents", doc))).toString());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            FlowAnalysisProcessor processor = new FlowAnalysisProcessor(analyzer, "contents", executor, 10, 3);
+            DocumentPublisher source = new DocumentPublisher(docs);
+            BatchSubscriber subscriber = new BatchSubscriber(false);
+            subscriber.source = source;
+            source.subscribe(processor);
+            processor.subscribe(subscriber);
+            // nothing is requested from the publisher without demand downstream
+            Thread.sleep(50);
+            assertEquals(0, source.requested.get());
+            subscriber.subscription.request(1);
+            assertTrue(subscriber.done.await(30, TimeUnit.SECONDS));
+            assertEquals(null, subscriber.failure.get());
+            assertEquals(serial, subscriber.batched);
+            assertEquals(Arrays.asList(10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 3), subscriber.sizes);
+            assertTrue(subscriber.maxInFlight <= 2 * 3 * 10);
+            assertTrue(source.requested.get() <= docs.size() + 2 * 3 * 10);
+            source.thread.shutdown();
+            
+            // a second subscriber is refused
+            BatchSubscriber second = new BatchSubscriber(true);
+            processor.subscribe(second);
+            assertTrue(second.done.await(1, TimeUnit.SECONDS));
+            assertTrue(second.failure.get() instanceof IllegalStateException);
+        } finally {
+            executor.shutdown();
+        }
+        analyzer.close();
+    }
+    
+    @Test
+    public void testSubmissionPublisher() throws Exception
+    {
+        List<String> docs = new BenchmarkCorpus(7).documents("TC", 25, 100);
+        ChineseAnalyzer analyzer = new ChineseAnalyzer("TC");
+        List<String> serial = new ArrayList<>();
+        for (String doc: docs) {
+            serial.add(ChineseAnalyzerTest.describe(CapturedTokens.capture(analyzer.tokenStream("contents", doc))).toString());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (SubmissionPublisher<CharSequence> publisher = new SubmissionPublisher<>(executor, 4)) {
+            FlowAnalysisProcessor processor = new FlowAnalysisProcessor(analyzer, "contents", executor, 4, 2);
+            BatchSubscriber subscriber = new BatchSubscriber(true);
+            publisher.subscribe(processor);
+            processor.subscribe(subscriber);
+            for (String doc: docs) {
+                // blocks while the analysis applies backpressure
+                publisher.submit(doc);
+            }
+            publisher.close();
+            assertTrue(subscriber.done.await(30, TimeUnit.SECONDS));
+            assertEquals(null, subscriber.failure.get());
+            assertEquals(serial, subscriber.batched);
+            assertEquals(Arrays.asList(4, 4, 4, 4, 4, 4, 1), subscriber.sizes);
+        } finally {
+            executor.shutdown();
+        }
+        analyzer.close();
+    }
+}
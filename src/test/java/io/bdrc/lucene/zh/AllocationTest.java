@@ -0,0 +1,280 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.bdrc.lucene.zh.benchmark.BenchmarkCorpus;
+
+/**
+ * Allocation regression tests: measures the bytes allocated per token by each component
+ * and each profile in steady state (after a warm-up loop), with
+ * com.sun.management.ThreadMXBean.getThreadAllocatedBytes(), and fails when a budget
+ * is exceeded. Skipped on JVMs that can't measure the allocations of a thread.
+ */
+public class AllocationTest {
+
+    /* covers the allocations of the measuring loop itself, a per-token allocation is at least 16 bytes */
+    static final double TOLERANCE = 0.1;
+    static final int WARMUP_PASSES = 30;
+    static final int MEASURED_PASSES = 10;
+
+    static com.sun.management.ThreadMXBean threadBean = null;
+
+    @BeforeClass
+    public static void init() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        if (!threadBean.isThreadAllocatedMemoryEnabled()) {
+            threadBean.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    static long allocatedBytes() {
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static void assertBudget(String name, double bytesPerToken, double budget) {
+        System.out.println(String.format("%s: %.2f bytes/token (budget %.1f)", name, bytesPerToken, budget));
+        assertTrue(name + " allocates " + bytesPerToken + " bytes/token, budget is " + budget,
+                bytesPerToken <= budget + TOLERANCE);
+    }
+
+    /**
+     * @return the bytes allocated per token by filter, fed with the tokens of input
+     */
+    static double perToken(CapturedTokens input, Function<TokenStream, TokenStream> filter) throws IOException {
+        final TokenStream stream = filter.apply(input.replay());
+        long tokens = 0;
+        long bytes = 0;
+        for (int pass = 0; pass < WARMUP_PASSES + MEASURED_PASSES; pass ++) {
+            final long start = allocatedBytes();
+            stream.reset();
+            long count = 0;
+            while (stream.incrementToken()) {
+                count ++;
+            }
+            stream.end();
+            final long allocated = allocatedBytes() - start;
+            if (pass >= WARMUP_PASSES) {
+                tokens += count;
+                bytes += allocated;
+            }
+        }
+        stream.close();
+        return (double) bytes / tokens;
+    }
+
+    /**
+     * @return the bytes allocated per token by tokenizer on docs
+     */
+    static double perToken(Tokenizer tokenizer, List<String> docs) throws IOException {
+        long tokens = 0;
+        long bytes = 0;
+        for (int pass = 0; pass < WARMUP_PASSES + MEASURED_PASSES; pass ++) {
+            for (final String doc: docs) {
+                final StringReader reader = new StringReader(doc);
+                final long start = allocatedBytes();
+                tokenizer.setReader(reader);
+                tokenizer.reset();
+                long count = 0;
+                while (tokenizer.incrementToken()) {
+                    count ++;
+                }
+                tokenizer.end();
+                tokenizer.close();
+                final long allocated = allocatedBytes() - start;
+                if (pass >= WARMUP_PASSES) {
+                    tokens += count;
+                    bytes += allocated;
+                }
+            }
+        }
+        return (double) bytes / tokens;
+    }
+
+    /**
+     * @return the bytes allocated per token by analyzer on docs, through Analyzer.tokenStream(String, String)
+     */
+    static double perToken(Analyzer analyzer, List<String> docs) throws IOException {
+        long tokens = 0;
+        long bytes = 0;
+        for (int pass = 0; pass < WARMUP_PASSES + MEASURED_PASSES; pass ++) {
+            for (final String doc: docs) {
+                final long start = allocatedBytes();
+                long count = 0;
+                try (TokenStream stream = analyzer.tokenStream("contents", doc)) {
+                    stream.reset();
+                    while (stream.incrementToken()) {
+                        count ++;
+                    }
+                    stream.end();
+                }
+                final long allocated = allocatedBytes() - start;
+                if (pass >= WARMUP_PASSES) {
+                    tokens += count;
+                    bytes += allocated;
+                }
+            }
+        }
+        return (double) bytes / tokens;
+    }
+
+    /**
+     * @return the bytes allocated per token by ChineseAnalyzer.analyze() on inputs
+     */
+    static double perToken(ChineseAnalyzer analyzer, List<String> inputs, CapturedTokens reuse) throws IOException {
+        long tokens = 0;
+        long bytes = 0;
+        for (int pass = 0; pass < WARMUP_PASSES + MEASURED_PASSES; pass ++) {
+            final long start = allocatedBytes();
+            long count = 0;
+            for (final String input: inputs) {
+                analyzer.analyze(input, reuse);
+                count += reuse.size();
+            }
+            final long allocated = allocatedBytes() - start;
+            if (pass >= WARMUP_PASSES) {
+                tokens += count;
+                bytes += allocated;
+            }
+        }
+        return (double) bytes / tokens;
+    }
+
+    static List<String> docs(String profile) {
+        return new BenchmarkCorpus(42).documents(profile, 4, 2000);
+    }
+
+    /**
+     * @return the tokens of the TC corpus, analyzed with profile
+     */
+    static CapturedTokens tokens(String profile) throws IOException {
+        final CapturedTokens tokens = new CapturedTokens();
+        final Analyzer analyzer = new ChineseAnalyzer(profile);
+        for (final String doc: docs("TC")) {
+            tokens.append(CapturedTokens.capture(analyzer.tokenStream("contents", doc)), 0);
+        }
+        analyzer.close();
+        return tokens;
+    }
+
+    /**
+     * @return the syllables of pinyin with a tone number ("jing1"), as found in numbered pinyin input
+     */
+    static CapturedTokens numbered(CapturedTokens pinyin) throws IOException {
+        final CapturedTokens lazy = CapturedTokens.capture(new LazyPinyinFilter(pinyin.replay(), true));
+        final CapturedTokens numbered = new CapturedTokens();
+        for (int i = 0; i < lazy.size(); i ++) {
+            final BytesRef tone = lazy.payload(i);
+            final char[] term = (lazy.term(i) + (tone == null ? 5: tone.bytes[tone.offset])).toCharArray();
+            numbered.add(term, 0, term.length, lazy.startOffset(i), lazy.endOffset(i), lazy.positionIncrement(i),
+                    "word", null);
+        }
+        return numbered;
+    }
+
+    @Test
+    public void testFilterAllocations() throws IOException {
+        final CapturedTokens tc = tokens("exactTC");
+        final CapturedTokens pinyin = tokens("TC2PYstrict");
+        final CapturedTokens numbered = numbered(pinyin);
+        assertBudget("ZhOnlyFilter", perToken(tc, ZhOnlyFilter::new), 0);
+        assertBudget("TC2SCFilter", perToken(tc, TC2SCFilter::new), 0);
+        assertBudget("ZhSynonymFilter", perToken(tc, ZhSynonymFilter::new), 0);
+        assertBudget("ZhAlternatesFilter", perToken(tc, ZhAlternatesFilter::new), 0);
+        assertBudget("ZhToPinyinFilter", perToken(tc, ZhToPinyinFilter::new), 0);
+        assertBudget("LazyPinyinFilter", perToken(pinyin, LazyPinyinFilter::new), 0);
+        assertBudget("LazyPinyinFilter(keepTones)", perToken(pinyin, in -> new LazyPinyinFilter(in, true)), 0);
+        assertBudget("PinyinNumberedToMarkedFilter", perToken(numbered, PinyinNumberedToMarkedFilter::new), 0);
+        assertBudget("ZhStopWordsTokenFilter", perToken(tc, ZhStopWordsTokenFilter::new), 0);
+        assertBudget("PinyinStopWordsFilter", perToken(pinyin, in -> new PinyinStopWordsFilter(in, false)), 0);
+    }
+
+    @Test
+    public void testTokenizerAllocations() throws IOException {
+        /* the budgets cover the per-document objects (Reader, RollingCharBuffer), amortized over ~2000 tokens */
+        assertBudget("StandardTokenizer", perToken(new StandardTokenizer(), docs("TC")), 0.5);
+        assertBudget("PinyinSyllableTokenizer", perToken(new PinyinSyllableTokenizer(), docs("PYstrict")), 0.5);
+    }
+
+    @Test
+    public void testShortInputAllocations() throws IOException {
+        /* the fast path of analyze(): no Reader, no char filter, reused components and token buffer.
+         * The budgets cover the periodic purge of CloseableThreadLocal and the few inputs that need
+         * normalization (ideographs unknown to StandardTokenizer, pinyin with ń) and go through tokenStream() */
+        final CapturedTokens reuse = new CapturedTokens();
+        for (final String profile: new String[] {"exactTC", "TC", "TC2SC", "TC2PYlazy", "SC", "PYstrict", "PYlazy"}) {
+            final BenchmarkCorpus corpus = new BenchmarkCorpus(42);
+            final List<String> inputs = new ArrayList<>();
+            for (int i = 0; i < 2000; i ++) {
+                inputs.add(corpus.forProfile(corpus.nextTC(2 + i % 9), profile));
+            }
+            final ChineseAnalyzer analyzer = new ChineseAnalyzer(profile);
+            assertBudget(profile + " analyze()", perToken(analyzer, inputs, reuse), profile.startsWith("PY") ? 2.0: 1.0);
+            analyzer.close();
+        }
+    }
+
+    @Test
+    public void testProfileAllocations() throws IOException {
+        /* bytes/token. The stopwords MappingCharFilter of the TC and SC profiles boxes every char
+         * it reads (Lucene's cachedRootArcs) and grows its offset corrections for each document,
+         * SC2TC captures a State for each stacked TC candidate. */
+        final Map<String, Double> budgets = new LinkedHashMap<>();
+        budgets.put("exactTC", 0.5);
+        budgets.put("TC", 70.0);
+        budgets.put("TC2SC", 70.0);
+        budgets.put("TC2PYstrict", 70.0);
+        budgets.put("TC2PYlazy", 70.0);
+        budgets.put("SC", 75.0);
+        budgets.put("SC2TC", 100.0);
+        budgets.put("SC2PYstrict", 75.0);
+        budgets.put("SC2PYlazy", 75.0);
+        budgets.put("PYstrict", 2.0);
+        budgets.put("PYstrict2PYlazy", 2.0);
+        budgets.put("PYlazy", 2.0);
+        for (final Map.Entry<String, Double> e: budgets.entrySet()) {
+            final Analyzer analyzer = new ChineseAnalyzer(e.getKey());
+            assertBudget(e.getKey(), perToken(analyzer, docs(e.getKey())), e.getValue());
+            analyzer.close();
+        }
+    }
+}
@@ -1,18 +1,48 @@
 package io.bdrc.lucene.zh;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CharArraySet;
 import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.pattern.PatternReplaceFilter;
+import org.apache.lucene.analysis.shingle.ShingleFilter;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.junit.Test;
 
+import io.bdrc.lucene.zh.benchmark.BenchmarkCorpus;
+
 public class ChineseAnalyzerTest {    
     
     // adapted from https://stackoverflow.com/a/9562816
@@ -214,6 +244,52 @@ public class ChineseAnalyzerTest {
         assertEquals(expected, tokens);
     }
     
+    @Test
+    public void testPYStopwords() throws IOException
+    {
+        // 如是, 一切 and 的 are stopwords, dé (得, 德...) is too ambiguous to be one
+        String input = "Rúshì wǒ wén de shū. Yī qiè dé dào";
+        List<String> expected = Arrays.asList("wǒ", "wén", "shū", "dé", "dào");
+        List<String> tokens = parseTokens(new ChineseAnalyzer("PYstrict", true, 0), input);
+        System.out.println("1 " + expected.toString());
+        System.out.println("2 " + tokens.toString());
+        System.out.println();
+        assertEquals(expected, tokens);
+        
+        // the tones are used before they are stripped
+        expected = Arrays.asList("wo", "wen", "shu", "de", "dao");
+        tokens = parseTokens(new ChineseAnalyzer("PYstrict2PYlazy", true, 0), input);
+        System.out.println("1 " + expected.toString());
+        System.out.println("2 " + tokens.toString());
+        System.out.println();
+        assertEquals(expected, tokens);
+        
+        // without tones, de can be 得 or 德: no single syllable is a lazy stopword
+        expected = Arrays.asList("wo", "wen", "de", "shu", "de", "dao");
+        tokens = parseTokens(new ChineseAnalyzer("PYlazy", true, 0), "Rushi wo wen de shu. Yi qie de dao");
+        System.out.println("1 " + expected.toString());
+        System.out.println("2 " + tokens.toString());
+        System.out.println();
+        assertEquals(expected, tokens);
+        
+        // 別處 is a stopword, its syllables are not joined across punctuation or a line break
+        ChineseAnalyzer strict = new ChineseAnalyzer("PYstrict", true, 0);
+        assertEquals(Arrays.asList("wǒ", "shì"), terms(CapturedTokens.capture(strict.tokenStream(null, "wǒ bié chù shì"))));
+        assertEquals(Arrays.asList("wǒ", "shì"), terms(CapturedTokens.capture(strict.tokenStream(null, "wǒ biéchù shì"))));
+        assertEquals(Arrays.asList("wǒ", "shì"), terms(CapturedTokens.capture(strict.tokenStream(null, "wǒ bié-chù shì"))));
+        for (String separated: new String[] {"wǒ bié。chù shì", "wǒ bié, chù shì", "wǒ bié\nchù shì", "wǒ bié  chù shì"}) {
+            assertEquals(separated, Arrays.asList("wǒ", "bié", "chù", "shì"), terms(CapturedTokens.capture(strict.tokenStream(null, separated))));
+        }
+        assertEquals(Arrays.asList("wo", "bie", "chu", "shi"), terms(CapturedTokens.capture(new ChineseAnalyzer("PYlazy", true, 0).tokenStream(null, "wo bie。chu shi"))));
+        assertEquals(Arrays.asList("wo", "shi"), terms(CapturedTokens.capture(new ChineseAnalyzer("PYlazy", true, 0).tokenStream(null, "wo bie chu shi"))));
+        
+        // positions are left untouched, as when the ideograms are filtered
+        final CapturedTokens captured = CapturedTokens.capture(new ChineseAnalyzer("PYstrict", true, 0).tokenStream("f", input));
+        for (int i = 0; i < captured.size(); i ++) {
+            assertEquals(1, captured.positionIncrement(i));
+        }
+    }
+    
     @Test
     public void testTC2PyStrict() throws IOException
     {
@@ -240,4 +316,692 @@ public class ChineseAnalyzerTest {
         System.out.println();
         //assertEquals(expected, tokens);
     }
+    
+    @Test
+    public void testCachingAnalyzer() throws IOException
+    {
+        String input = "如是我聞。一時佛在羅閱祇耆闍崛山中";
+        AnalysisCache cache = new AnalysisCache(100, 1024 * 1024);
+        Analyzer cached = new CachingChineseAnalyzer(new ChineseAnalyzer("TC2PYlazy"), cache);
+        List<String> expected = parseTokens(new ChineseAnalyzer("TC2PYlazy"), input);
+        CapturedTokens first = CapturedTokens.capture(cached.tokenStream(null, input));
+        CapturedTokens second = CapturedTokens.capture(cached.tokenStream(null, input));
+        List<String> tokens = new ArrayList<String>();
+        for (int i = 0; i < second.size(); i++) {
+            tokens.add(second.term(i));
+        }
+        System.out.println("1 " + expected.toString());
+        System.out.println("2 " + tokens.toString());
+        System.out.println(cache.toString());
+        System.out.println();
+        assertEquals(expected, tokens);
+        assertEquals(first.size(), second.size());
+        assertEquals(first.finalOffset(), second.finalOffset());
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+        // the analyzers with common grams, a lexicon or a latin chain don't share their entries
+        assertEquals(new ChineseAnalyzer("TC").getConfiguration(), new ChineseAnalyzer("TC").getConfiguration());
+        ChineseAnalyzer grams = new ChineseAnalyzer("TC");
+        grams.setCommonGrams(ZhCommonGrams.fromStopWords("TC"));
+        ChineseAnalyzer otherGrams = new ChineseAnalyzer("TC");
+        otherGrams.setCommonGrams(ZhCommonGrams.fromStopWords("TC"));
+        ChineseAnalyzer latin = new ChineseAnalyzer("TC");
+        latin.setLatinChain(ChineseAnalyzer.DEFAULT_LATIN_CHAIN);
+        ChineseAnalyzer otherLatin = new ChineseAnalyzer("TC");
+        otherLatin.setLatinChain(ChineseAnalyzer.DEFAULT_LATIN_CHAIN);
+        assertFalse(grams.getConfiguration().equals(otherGrams.getConfiguration()));
+        assertFalse(latin.getConfiguration().equals(otherLatin.getConfiguration()));
+    }
+    
+    @Test
+    public void testCommonGrams() throws IOException
+    {
+        String input = "佛之道不可得";
+        CharArraySet commonWords = ZhCommonGrams.fromStopWords("TC");
+        ChineseAnalyzer indexing = new ChineseAnalyzer("TC", false, 0);
+        indexing.setCommonGrams(commonWords);
+        ChineseAnalyzer querying = new ChineseAnalyzer("TC", false, 0);
+        querying.setCommonGrams(commonWords);
+        querying.setQueryMode(true);
+        // 之, 不 and 可 are common, 佛, 道 and 得 are not
+        List<String> expected = Arrays.asList("佛", "佛_之", "之", "之_道", "道", "道_不", "不", "不_可", "可", "可_得", "得");
+        List<String> tokens = parseTokens(indexing, input);
+        System.out.println("1 " + expected.toString());
+        System.out.println("2 " + tokens.toString());
+        assertEquals(expected, tokens);
+        expected = Arrays.asList("佛_之", "之_道", "道_不", "不_可", "可_得");
+        tokens = parseTokens(querying, input);
+        System.out.println("1 " + expected.toString());
+        System.out.println("2 " + tokens.toString());
+        System.out.println();
+        assertEquals(expected, tokens);
+        // the common words are in the index encoding
+        assertTrue(ZhCommonGrams.fromStopWords("TC2PYlazy").contains("zhi"));
+        assertTrue(ZhCommonGrams.fromStopWords("TC2SC").contains("无"));
+    }
+    
+    @Test
+    public void testLexicon() throws IOException
+    {
+        String input = "般若波羅蜜多心經";
+        List<String> words = Arrays.asList("般若", "般若波羅蜜", "波羅蜜多", "心", "經心");
+        ZhLexicon lexicon = ZhLexicon.build(new ChineseAnalyzer("TC", false, 0), words);
+        // 心 has a single position, 經心 is not in the input
+        assertEquals(4, lexicon.size());
+        assertEquals(5, lexicon.getMaxPositions());
+        ChineseAnalyzer indexing = new ChineseAnalyzer("TC", false, 0);
+        indexing.setLexicon(lexicon);
+        List<String> expected = Arrays.asList("般 0-1 +1 <IDEOGRAPHIC> null", "般若 0-2 +0 <WORD> null",
+                "般若波羅蜜 0-5 +0 <WORD> null", "若 1-2 +1 <IDEOGRAPHIC> null", "波 2-3 +1 <IDEOGRAPHIC> null",
+                "波羅蜜多 2-6 +0 <WORD> null", "羅 3-4 +1 <IDEOGRAPHIC> null", "蜜 4-5 +1 <IDEOGRAPHIC> null",
+                "多 5-6 +1 <IDEOGRAPHIC> null", "心 6-7 +1 <IDEOGRAPHIC> null", "經 7-8 +1 <IDEOGRAPHIC> null", "final 8");
+        List<String> tokens = describeAll(CapturedTokens.capture(indexing.tokenStream(null, input)));
+        System.out.println("1 " + expected.toString());
+        System.out.println("2 " + tokens.toString());
+        assertEquals(expected, tokens);
+        // forward maximum matching, the next token skips the positions of the word
+        ChineseAnalyzer querying = new ChineseAnalyzer("TC", false, 0);
+        querying.setLexicon(lexicon);
+        querying.setQueryMode(true);
+        expected = Arrays.asList("般若波羅蜜 0 +1", "多 5 +5", "心 6 +1", "經 7 +1", "final 8");
+        tokens = describe(CapturedTokens.capture(querying.tokenStream(null, input)));
+        System.out.println("1 " + expected.toString());
+        System.out.println("2 " + tokens.toString());
+        assertEquals(expected, tokens);
+        CapturedTokens reuse = new CapturedTokens();
+        querying.analyze(input, reuse);
+        assertEquals(tokens, describe(reuse));
+        // the tokens of a word must be contiguous
+        assertEquals(Arrays.asList("波", "羅", "蜜", "多"), terms(CapturedTokens.capture(querying.tokenStream(null, "波羅蜜，多"))));
+        // the words are matched on all the terms of a position: the SC input and its stacked TC candidates
+        ChineseAnalyzer sc2tc = new ChineseAnalyzer("SC2TC", false, 0);
+        sc2tc.setLexicon(ZhLexicon.build(new ChineseAnalyzer("SC2TC", false, 0), Arrays.asList("波罗蜜", "波羅蜜多")));
+        tokens = terms(CapturedTokens.capture(sc2tc.tokenStream(null, "波罗蜜多")));
+        System.out.println("2 " + tokens.toString());
+        assertTrue(tokens.contains("波罗蜜") && tokens.contains("波羅蜜多"));
+        // pinyin syllables, written apart or not
+        ChineseAnalyzer pinyin = new ChineseAnalyzer("PYstrict", false, 0);
+        pinyin.setLexicon(ZhLexicon.build(new ChineseAnalyzer("PYstrict", false, 0), Arrays.asList("bō luó mì duō")));
+        pinyin.setQueryMode(true);
+        assertEquals(Arrays.asList("bōluómìduō"), terms(CapturedTokens.capture(pinyin.tokenStream(null, "bōluómìduō"))));
+        assertEquals(Arrays.asList("bōluómìduō", "xīn"), terms(CapturedTokens.capture(pinyin.tokenStream(null, "bō luó mì duō xīn"))));
+        indexing.close();
+        querying.close();
+        sc2tc.close();
+        pinyin.close();
+    }
+    
+    @Test
+    public void testLatinChain() throws IOException
+    {
+        String input = "般若心經 Prajñāpāramitā Hṛdaya Sūtra, T.251";
+        // the Latin tokens are dropped by default
+        ChineseAnalyzer dropping = new ChineseAnalyzer("TC", false, 0);
+        assertEquals(Arrays.asList("般", "若", "心", "經"), terms(CapturedTokens.capture(dropping.tokenStream(null, input))));
+        ChineseAnalyzer mixed = new ChineseAnalyzer("TC", false, 0);
+        mixed.setLatinChain(ChineseAnalyzer.DEFAULT_LATIN_CHAIN);
+        List<String> expected = Arrays.asList("般 0 +1", "若 1 +1", "心 2 +1", "經 3 +1", "prajnaparamita 5 +1",
+                "hrdaya 20 +1", "sutra 27 +1", "t 34 +1", "251 36 +1", "final 39");
+        List<String> tokens = describe(CapturedTokens.capture(mixed.tokenStream(null, input)));
+        System.out.println("1 " + expected.toString());
+        System.out.println("2 " + tokens.toString());
+        assertEquals(expected, tokens);
+        // analyze() leaves the fast path and produces the same tokens
+        CapturedTokens reuse = new CapturedTokens();
+        mixed.analyze(input, reuse);
+        assertEquals(tokens, describe(reuse));
+        // the Chinese tokens go through the filters of the profile, the Latin tokens through the Latin chain
+        ChineseAnalyzer pinyin = new ChineseAnalyzer("TC2PYlazy", false, 0);
+        pinyin.setLatinChain(ChineseAnalyzer.DEFAULT_LATIN_CHAIN);
+        assertEquals(Arrays.asList("xin", "jing", "heart", "sutra"), terms(CapturedTokens.capture(pinyin.tokenStream(null, "心經 Heart Sūtra"))));
+        // a chain that would change the ideograms doesn't see them
+        ChineseAnalyzer replaced = new ChineseAnalyzer("TC2SC", false, 0);
+        replaced.setLatinChain(in -> new PatternReplaceFilter(in, Pattern.compile(".*"), "latin", false));
+        assertEquals(Arrays.asList("经", "latin"), terms(CapturedTokens.capture(replaced.tokenStream(null, "經 Sūtra"))));
+        dropping.close();
+        mixed.close();
+        pinyin.close();
+        replaced.close();
+    }
+    
+    @Test
+    public void testNormalize() throws IOException
+    {
+        // each ideogram or syllable is normalized to the term produced by the analysis
+        String zh = "如是我聞一時佛在羅閱祇耆闍崛山中與大比丘眾千二百五十人菩薩俱經界嚳後";
+        String[] py = {"Rúshì", "WǑ", "wen2", "yi\u0300", "Shí", "fo2", "ZHONG1", "ma5", "lǘ", "nv3"};
+        String[] profiles = {"exactTC", "TC", "TC2SC", "TC2PYstrict", "TC2PYlazy", "SC", "SC2PYstrict", "SC2PYlazy", 
+                "PYstrict", "PYstrict2PYlazy", "PYlazy"};
+        for (String profile: profiles) {
+            ChineseAnalyzer analyzer = profile.equals("exactTC") ? new ChineseAnalyzer(profile) 
+                    : new ChineseAnalyzer(profile, false, profile.startsWith("PY") ? 0 : 3);
+            List<String> inputs = new ArrayList<String>();
+            if (profile.startsWith("PY")) {
+                inputs.addAll(Arrays.asList(py));
+            } else {
+                zh.codePoints().forEach(cp -> inputs.add(new String(Character.toChars(cp))));
+            }
+            for (String input: inputs) {
+                CapturedTokens expected = CapturedTokens.capture(analyzer.tokenStream(null, input));
+                if (expected.size() != 1) {
+                    continue;
+                }
+                assertEquals(profile + " " + input, expected.term(0), analyzer.normalize("contents", input).utf8ToString());
+            }
+        }
+        // terms of multi-term queries are not tokenized
+        assertEquals("経典", new ChineseAnalyzer("TC").normalize("contents", "經典").utf8ToString());
+        assertEquals("zhōng", new ChineseAnalyzer("PYstrict").normalize("contents", "Zhong1").utf8ToString());
+        assertEquals("zhong", new ChineseAnalyzer("PYstrict2PYlazy").normalize("contents", "Zhōng").utf8ToString());
+    }
+    
+    // end offsets are not compared: the MappingCharFilter extends the end offset of
+    // the token preceding a stopword over the stopword
+    @Test
+    public void testReloadDictionaries() throws IOException
+    {
+        final ZhDictionary<?> synonyms = ZhDictionaries.getDictionary(ZhDictionaries.SYNONYMS);
+        final ZhDictionary<?> stopwords = ZhDictionaries.getDictionary(ZhDictionaries.STOPWORDS);
+        final Path synonymsFile = Files.createTempFile("zh-synonyms", ".tsv");
+        final Path stopwordsFile = Files.createTempFile("zh-stopwords", ".txt");
+        Files.write(synonymsFile, Arrays.asList("天\t地"), StandardCharsets.UTF_8);
+        Files.write(stopwordsFile, Arrays.asList("佛"), StandardCharsets.UTF_8);
+        final ChineseAnalyzer analyzer = new ChineseAnalyzer("TC", true, 1);
+        final ChineseAnalyzer streaming = new ChineseAnalyzer("TC", true, 1);
+        streaming.setStreaming(true);
+        final Analyzer caching = new CachingChineseAnalyzer(new ChineseAnalyzer("TC", true, 1), new AnalysisCache(100, 1 << 20));
+        final String input = "天如是佛";
+        final List<String> before = Arrays.asList("天", "佛");
+        final List<String> after = Arrays.asList("地", "如", "是");
+        final StandardTokenizer tok = new StandardTokenizer();
+        final TokenStream inFlight = new ZhSynonymFilter(new ZhOnlyFilter(tok));
+        final CharTermAttribute termAtt = inFlight.addAttribute(CharTermAttribute.class);
+        final CapturedTokens reuse = new CapturedTokens();
+        try {
+            assertEquals(before, terms(CapturedTokens.capture(analyzer.tokenStream(null, input))));
+            assertEquals(before, terms(CapturedTokens.capture(caching.tokenStream(null, input))));
+            tok.setReader(new StringReader("天天"));
+            inFlight.reset();
+            assertTrue(inFlight.incrementToken());
+
+            final long version = synonyms.getVersion();
+            assertEquals(version + 1, synonyms.reloadAsync(synonymsFile, Runnable::run).join().longValue());
+            stopwords.reload(stopwordsFile);
+            assertEquals(Long.valueOf(version + 1), ZhDictionaries.getVersions().get(ZhDictionaries.SYNONYMS));
+            assertTrue(synonyms.getSource().contains(synonymsFile.toString()));
+
+            /* the stream started before the reload finishes on the previous version */
+            assertTrue(inFlight.incrementToken());
+            assertEquals("天", termAtt.toString());
+            inFlight.end();
+            inFlight.close();
+
+            assertEquals(after, terms(CapturedTokens.capture(analyzer.tokenStream(null, input))));
+            assertEquals(after, terms(CapturedTokens.capture(streaming.tokenStream(null, input))));
+            analyzer.analyze(input, reuse);
+            assertEquals(after, terms(reuse));
+            assertEquals(after, terms(CapturedTokens.capture(caching.tokenStream(null, input))));
+        } finally {
+            synonyms.reload();
+            stopwords.reload();
+            Files.delete(synonymsFile);
+            Files.delete(stopwordsFile);
+        }
+        assertEquals(before, terms(CapturedTokens.capture(analyzer.tokenStream(null, input))));
+        analyzer.analyze(input, reuse);
+        assertEquals(before, terms(reuse));
+        assertEquals(before, terms(CapturedTokens.capture(caching.tokenStream(null, input))));
+        analyzer.close();
+        streaming.close();
+        caching.close();
+    }
+
+    @Test
+    public void testReloadFailure() throws IOException
+    {
+        final ZhDictionary<?> synonyms = ZhDictionaries.getDictionary(ZhDictionaries.SYNONYMS);
+        final Object table = synonyms.get();
+        final long version = synonyms.getVersion();
+        // a stream that fails after its first line
+        final AtomicBoolean closed = new AtomicBoolean();
+        final InputStream failing = new InputStream() {
+            private final byte[] line = "天\t地\n".getBytes(StandardCharsets.UTF_8);
+            private int pos = 0;
+            @Override
+            public int read() throws IOException {
+                if (pos == line.length) {
+                    throw new IOException("disk error");
+                }
+                return line[pos++] & 0xFF;
+            }
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+        try {
+            synonyms.reload(failing, "failing stream");
+            fail("the error of the stream is not thrown");
+        } catch (IOException e) {
+            assertEquals("disk error", e.getMessage());
+        }
+        // nothing is published, the stream is closed
+        assertTrue(closed.get());
+        assertTrue(table == synonyms.get());
+        assertEquals(version, synonyms.getVersion());
+        // a malformed line is an error too
+        final Path malformed = Files.createTempFile("zh-synonyms", ".tsv");
+        Files.write(malformed, Arrays.asList("天\t地", "天地"), StandardCharsets.UTF_8);
+        try {
+            synonyms.reload(malformed);
+            fail("the malformed line is not thrown");
+        } catch (IOException e) {
+            assertEquals(version, synonyms.getVersion());
+        } finally {
+            Files.delete(malformed);
+        }
+        // an empty file empties the stopwords instead of restoring the defaults
+        final ZhDictionary<?> pinyin = ZhDictionaries.getDictionary(PinyinStopWordsFilter.strictBaseFileName);
+        final Path empty = Files.createTempFile("zh-stopwords-PYstrict", ".txt");
+        try {
+            pinyin.reload(empty);
+            assertTrue(PinyinStopWordsFilter.strictStopWords.get().list.isEmpty());
+        } finally {
+            pinyin.reload();
+            Files.delete(empty);
+        }
+        assertFalse(PinyinStopWordsFilter.strictStopWords.get().list.isEmpty());
+    }
+
+    static List<String> terms(CapturedTokens tokens) {
+        List<String> result = new ArrayList<String>();
+        for (int i = 0; i < tokens.size(); i++) {
+            result.add(tokens.term(i));
+        }
+        return result;
+    }
+
+    static List<String> describe(CapturedTokens tokens) {
+        List<String> result = new ArrayList<String>();
+        for (int i = 0; i < tokens.size(); i++) {
+            result.add(tokens.term(i) + " " + tokens.startOffset(i) + " +" + tokens.positionIncrement(i));
+        }
+        result.add("final " + tokens.finalOffset());
+        return result;
+    }
+    
+    static List<String> describeAll(CapturedTokens tokens) {
+        List<String> result = new ArrayList<String>();
+        for (int i = 0; i < tokens.size(); i++) {
+            result.add(tokens.term(i) + " " + tokens.startOffset(i) + "-" + tokens.endOffset(i) + " +" 
+                    + tokens.positionIncrement(i) + " " + tokens.type(i) + " " + tokens.payload(i));
+        }
+        result.add("final " + tokens.finalOffset());
+        return result;
+    }
+    
+    @Test
+    public void testAnalyzeFastPath() throws IOException
+    {
+        List<String> inputs = new ArrayList<String>(Arrays.asList("佛之", "之佛", "之之佛之道不", "經 典", "一切，不如此。", 
+                "abc經", "經\uFE00典", "\uD840\uDC00\uD840\uDC01之", "", "  ", "Rúshì wǒ", "rushi wo", "ZHONG1 guo2", "yi\u0300"));
+        BenchmarkCorpus corpus = new BenchmarkCorpus(7);
+        for (int i = 0; i < 200; i++) {
+            inputs.add(corpus.nextTC(2 + i % 9));
+        }
+        CapturedTokens reuse = new CapturedTokens();
+        for (String profile: BenchmarkCorpus.ALL_PROFILES) {
+            for (int settings = 0; settings < 3; settings++) {
+                ChineseAnalyzer analyzer = new ChineseAnalyzer(profile);
+                analyzer.setStreaming(settings == 1);
+                analyzer.setPayloads(settings == 2);
+                for (String tc: inputs) {
+                    String input = corpus.forProfile(tc, profile);
+                    List<String> expected = describeAll(CapturedTokens.capture(analyzer.tokenStream(null, input)));
+                    analyzer.analyze(input, reuse);
+                    assertEquals(profile + " " + settings + " " + input, expected, describeAll(reuse));
+                    char[] padded = ("xx" + input + "x").toCharArray();
+                    analyzer.analyze(padded, 2, input.length(), reuse);
+                    assertEquals(profile + " " + settings + " " + input, expected, describeAll(reuse));
+                }
+                analyzer.close();
+            }
+        }
+    }
+    
+    @Test
+    public void testStreamingEquivalence() throws IOException
+    {
+        String zh = "如是我聞。一時佛在羅閱祇耆闍崛山中。與大比丘眾千二百五十人菩薩五千人俱。一切不如此 abc中def";
+        String py = "Rúshì wǒ wén, yi\u0300shí fó zài Luóyuèqí Qíshéjuéshān zhōng. ma5 xyzzy dàbǐqiū";
+        String[] profiles = {"TC", "TC2SC", "TC2PYstrict", "TC2PYlazy", "SC", "SC2TC", "SC2PYstrict", "SC2PYlazy", 
+                "PYstrict", "PYstrict2PYlazy", "PYlazy"};
+        for (String profile: profiles) {
+            String input = profile.startsWith("PY") ? py : zh;
+            ChineseAnalyzer streaming = new ChineseAnalyzer(profile);
+            streaming.setStreaming(true);
+            List<String> expected = describe(CapturedTokens.capture(new ChineseAnalyzer(profile).tokenStream(null, input)));
+            List<String> tokens = describe(CapturedTokens.capture(streaming.tokenStream(null, input)));
+            System.out.println("1 " + expected.toString());
+            System.out.println("2 " + tokens.toString());
+            System.out.println();
+            assertEquals(profile, expected, tokens);
+        }
+    }
+    
+    @Test
+    public void testParallelAnalysis() throws IOException
+    {
+        StringBuilder zh = new StringBuilder();
+        StringBuilder py = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            zh.append("如是我聞，一時佛在羅閱祇耆闍崛山中；與大比丘眾千二百五十人、菩薩五千人俱。一切abc\n");
+            // 別處 and 如是 are stopwords, the text is split between their syllables
+            py.append("Rúshì wǒ wén, yi\u0300shí fó zài Luóyuèqí。Qíshéjuéshān zhōng bié。chù rú，shì\n");
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // every configuration that can be split gives the output of the serial analysis
+            Map<String, ChineseAnalyzer> splittable = new LinkedHashMap<>();
+            for (String profile: new String[] {"TC", "TC2PYlazy", "SC2TC", "PYstrict", "PYstrict2PYlazy", "PYlazy"}) {
+                splittable.put(profile, new ChineseAnalyzer(profile));
+                splittable.put(profile + " stopwords", new ChineseAnalyzer(profile, true, 0));
+            }
+            ChineseAnalyzer tcWords = new ChineseAnalyzer("TC");
+            tcWords.setLexicon(ZhLexicon.build(new ChineseAnalyzer("TC"), Arrays.asList("如是", "羅閱祇")));
+            splittable.put("TC lexicon", tcWords);
+            ChineseAnalyzer latin = new ChineseAnalyzer("TC");
+            latin.setLatinChain(ChineseAnalyzer.DEFAULT_LATIN_CHAIN);
+            splittable.put("TC latin", latin);
+            for (Map.Entry<String, ChineseAnalyzer> entry: splittable.entrySet()) {
+                ChineseAnalyzer analyzer = entry.getValue();
+                String input = analyzer.getInputEncoding().startsWith("PY") ? py.toString() : zh.toString();
+                assertTrue(entry.getKey(), ParallelAnalysis.canSplit(analyzer));
+                CapturedTokens serial = CapturedTokens.capture(analyzer.tokenStream(null, input));
+                CapturedTokens parallel = new ParallelAnalysis(analyzer, executor, 100).analyze(null, input);
+                assertEquals(entry.getKey(), describe(serial), describe(parallel));
+                for (int i = 0; i < serial.size(); i++) {
+                    assertEquals(serial.endOffset(i), parallel.endOffset(i));
+                }
+            }
+            // the chains of other analyzers are unknown
+            assertFalse(ParallelAnalysis.canSplit(new StandardAnalyzer()));
+            ChineseAnalyzer shingles = new ChineseAnalyzer("TC");
+            shingles.setLatinChain(in -> new ShingleFilter(in));
+            assertFalse(ParallelAnalysis.canSplit(shingles));
+            // common grams and pinyin words span the boundaries: analyzed serially
+            ChineseAnalyzer grams = new ChineseAnalyzer("TC", false, 0);
+            grams.setCommonGrams(ZhCommonGrams.fromStopWords("TC"));
+            ChineseAnalyzer words = new ChineseAnalyzer("PYstrict");
+            words.setLexicon(ZhLexicon.build(new ChineseAnalyzer("PYstrict"), Arrays.asList("Luóyuèqí Qíshéjuéshān")));
+            for (ChineseAnalyzer analyzer: Arrays.asList(grams, words)) {
+                String input = analyzer == words ? py.toString() : zh.toString();
+                assertFalse(ParallelAnalysis.canSplit(analyzer));
+                CapturedTokens serial = CapturedTokens.capture(analyzer.tokenStream(null, input));
+                CapturedTokens parallel = new ParallelAnalysis(analyzer, executor, 100).analyze(null, input);
+                assertEquals(describe(serial), describe(parallel));
+            }
+            assertTrue(terms(CapturedTokens.capture(grams.tokenStream(null, "眾千二百五十人、菩薩"))).contains("人_菩"));
+            assertTrue(terms(CapturedTokens.capture(words.tokenStream(null, "Luóyuèqí。Qíshéjuéshān"))).contains("luóyuèqíqíshéjuéshān"));
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(Arrays.asList(5, 8, 10), ParallelAnalysis.split("一二三四。五六，七八", 3));
+    }
+    
+    @Test
+    public void testAnalysisStreams() throws IOException
+    {
+        List<String> docs = new BenchmarkCorpus(42).documents("TC", 200, 50);
+        ChineseAnalyzer analyzer = new ChineseAnalyzer("TC");
+        List<AnalyzedToken> serial = new ArrayList<>();
+        TokenCursor cursor = new TokenCursor();
+        for (int doc = 0; doc < docs.size(); doc++) {
+            CapturedTokens tokens = CapturedTokens.capture(analyzer.tokenStream("contents", docs.get(doc)));
+            cursor.reset(tokens);
+            int position = -1;
+            for (int i = 0; i < tokens.size(); i++) {
+                assertTrue(cursor.next());
+                position += tokens.positionIncrement(i);
+                assertEquals(tokens.term(i), new String(cursor.termBuffer(), cursor.termOffset(), cursor.termLength()));
+                serial.add(new AnalyzedToken(doc, position, tokens.term(i), tokens.startOffset(i), tokens.endOffset(i), tokens.type(i)));
+            }
+            assertTrue(!cursor.next());
+        }
+        // the parallel stream keeps the order of the documents and of their tokens
+        assertEquals(serial, AnalysisStreams.tokens(analyzer, "contents", docs, false).collect(Collectors.toList()));
+        assertEquals(serial, AnalysisStreams.tokens(analyzer, "contents", docs, true).collect(Collectors.toList()));
+        Map<String, Long> counts = AnalysisStreams.terms(analyzer, "contents", docs, true)
+                .collect(Collectors.groupingByConcurrent(t -> t, Collectors.counting()));
+        assertEquals(serial.size(), counts.values().stream().mapToLong(Long::longValue).sum());
+        // a split in the middle of a document hands the rest of the document to the prefix
+        Spliterator<String> spliterator = AnalysisStreams.spliterator(analyzer, "contents", docs.subList(0, 3), TokenCursor::term);
+        List<String> terms = new ArrayList<>();
+        assertTrue(spliterator.tryAdvance(terms::add));
+        Spliterator<String> prefix = spliterator.trySplit();
+        prefix.forEachRemaining(terms::add);
+        spliterator.forEachRemaining(terms::add);
+        assertEquals(AnalysisStreams.terms(analyzer, "contents", docs.subList(0, 3), false).collect(Collectors.toList()), terms);
+        // tokens mapped to null are skipped
+        List<String> expected = AnalysisStreams.tokens(analyzer, null, docs.get(0))
+                .filter(t -> !t.getType().equals("<IDEOGRAPHIC>") || t.getPosition() % 2 == 0).map(AnalyzedToken::getTerm).collect(Collectors.toList());
+        assertEquals(expected, AnalysisStreams.stream(analyzer, null, Collections.singletonList(docs.get(0)),
+                c -> c.type().equals("<IDEOGRAPHIC>") && c.position() % 2 == 1 ? null: c.term(), false).collect(Collectors.toList()));
+        analyzer.close();
+    }
+    
+    @Test
+    public void testIncrementalAnalysis() throws IOException
+    {
+        String[] inserts = {"", "之", "也", "如是", "一時", "佛", "abc", "，", "是故", "而"};
+        List<ChineseAnalyzer> analyzers = new ArrayList<>();
+        for (String profile: new String[] {"TC", "TC2SC", "TC2PYlazy", "SC2TC", "exactTC"}) {
+            analyzers.add(new ChineseAnalyzer(profile));
+        }
+        ChineseAnalyzer streaming = new ChineseAnalyzer("TC");
+        streaming.setStreaming(true);
+        analyzers.add(streaming);
+        ChineseAnalyzer words = new ChineseAnalyzer("TC", false, 0);
+        words.setLexicon(ZhLexicon.build(new ChineseAnalyzer("TC", false, 0), Arrays.asList("如是", "一時佛在", "波羅蜜多")));
+        words.setCommonGrams(ZhCommonGrams.fromStopWords("TC"));
+        analyzers.add(words);
+        for (ChineseAnalyzer analyzer: analyzers) {
+            Random random = new Random(42);
+            BenchmarkCorpus corpus = new BenchmarkCorpus(42);
+            String text = corpus.forProfile(corpus.nextTC(1000), analyzer.getInputEncoding().equals("SC") ? "SC": "TC");
+            IncrementalAnalysis incremental = new IncrementalAnalysis(analyzer);
+            CapturedTokens tokens = CapturedTokens.capture(analyzer.tokenStream(null, text));
+            for (int edit = 0; edit < 200; edit++) {
+                int start = random.nextInt(text.length() + 1);
+                int oldEnd = Math.min(text.length(), start + random.nextInt(4));
+                String insert = inserts[random.nextInt(inserts.length)];
+                String edited = text.substring(0, start) + insert + text.substring(oldEnd);
+                tokens = incremental.update(tokens, edited, start, oldEnd, start + insert.length());
+                assertEquals(describeAll(CapturedTokens.capture(analyzer.tokenStream(null, edited))), describeAll(tokens));
+                text = edited;
+            }
+            // the edits near the ends of the text and the edits that find no anchor are analyzed in full
+            assertTrue(incremental.getIncrementalCount() > 150);
+            analyzer.close();
+        }
+        // the syllables of pinyin depend on the letters around them
+        ChineseAnalyzer pinyin = new ChineseAnalyzer("PYstrict");
+        IncrementalAnalysis incremental = new IncrementalAnalysis(pinyin);
+        CapturedTokens tokens = incremental.update(CapturedTokens.capture(pinyin.tokenStream(null, "xi an")), "xian", 2, 3, 2);
+        assertEquals(Arrays.asList("xian"), terms(tokens));
+        assertEquals(1, incremental.getFullCount());
+        pinyin.close();
+    }
+    
+    /**
+     * A source of documents that delivers them on its own thread when they are requested.
+     */
+    static final class DocumentSource {
+        final List<String> docs;
+        final ExecutorService thread = Executors.newSingleThreadExecutor();
+        final AtomicLong requested = new AtomicLong();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        int next = 0;
+        
+        DocumentSource(List<String> docs) {
+            this.docs = docs;
+        }
+        
+        void connect(BatchAnalysis analysis) {
+            analysis.setUpstream(n -> {
+                requested.addAndGet(n);
+                thread.execute(() -> {
+                    for (long i = 0; i < n && next < docs.size() && !cancelled.get(); i++) {
+                        analysis.offer(docs.get(next++));
+                    }
+                    if (next == docs.size()) {
+                        analysis.complete();
+                    }
+                });
+            }, () -> cancelled.set(true));
+        }
+    }
+    
+    @Test
+    public void testBatchAnalysis() throws Exception
+    {
+        List<String> docs = new BenchmarkCorpus(42).documents("TC", 103, 200);
+        ChineseAnalyzer analyzer = new ChineseAnalyzer("TC");
+        List<String> serial = new ArrayList<>();
+        for (String doc: docs) {
+            serial.add(describe(CapturedTokens.capture(analyzer.tokenStream("contents", doc))).toString());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            BatchAnalysis analysis = new BatchAnalysis(analyzer, "contents", executor, 10, 3);
+            DocumentSource source = new DocumentSource(docs);
+            List<String> batched = Collections.synchronizedList(new ArrayList<>());
+            List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch done = new CountDownLatch(1);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            source.connect(analysis);
+            analysis.setListener(new BatchAnalysis.Listener() {
+                public void onBatch(List<CapturedTokens> batch) {
+                    sizes.add(batch.size());
+                    for (CapturedTokens tokens: batch) {
+                        batched.add(describe(tokens).toString());
+                    }
+                    // one batch at a time, from the thread delivering the batch
+                    analysis.request(1);
+                }
+                public void onError(Throwable error) {
+                    failure.set(error);
+                    done.countDown();
+                }
+                public void onComplete() {
+                    done.countDown();
+                }
+            });
+            // nothing is requested without demand, then only the documents of the batches asked for
+            Thread.sleep(50);
+            assertEquals(0, source.requested.get());
+            analysis.request(1);
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            assertEquals(null, failure.get());
+            assertEquals(serial, batched);
+            assertEquals(Arrays.asList(10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 3), sizes);
+            assertTrue(source.requested.get() <= docs.size() + 10);
+            source.thread.shutdown();
+            
+            // an invalid request is an error, and cancels the source
+            BatchAnalysis invalid = new BatchAnalysis(analyzer, "contents", executor, 10, 3);
+            DocumentSource cancelled = new DocumentSource(docs);
+            cancelled.connect(invalid);
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            invalid.setListener(new BatchAnalysis.Listener() {
+                public void onBatch(List<CapturedTokens> batch) {
+                }
+                public void onError(Throwable e) {
+                    error.set(e);
+                }
+                public void onComplete() {
+                }
+            });
+            invalid.request(0);
+            assertTrue(error.get() instanceof IllegalArgumentException);
+            assertTrue(cancelled.cancelled.get());
+            cancelled.thread.shutdown();
+        } finally {
+            executor.shutdown();
+        }
+        analyzer.close();
+    }
+    
+    /**
+     * Analyzes 100 MB of synthetic text in a JVM limited to 32 MB of heap.
+     */
+    @Test
+    public void testStreamingBoundedMemory() throws IOException, InterruptedException
+    {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-Xmx32m", "-Dfile.encoding=UTF-8",
+                "-cp", System.getProperty("java.class.path"), StreamingMain.class.getName(), "100000000");
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+        Process process = builder.start();
+        assertEquals(0, process.waitFor());
+    }
+    
+    /**
+     * Analyzes a synthetic input of the given length with a TC and a PY profile in streaming mode.
+     */
+    public static class StreamingMain {
+        public static void main(String[] args) throws IOException {
+            final long length = Long.parseLong(args[0]);
+            analyze("TC2PYlazy", "如是我聞。一時佛在舍衛國祇樹給孤獨園，與大比丘眾千二百五十人俱。\n", length);
+            analyze("PYstrict2PYlazy", "Rúshì wǒ wén, yi\u0300shí fó zài Shèwèiguó qíshùjǐgūdúyuán. ", length);
+        }
+        
+        static void analyze(String profile, String sample, long length) throws IOException {
+            ChineseAnalyzer analyzer = new ChineseAnalyzer(profile);
+            analyzer.setStreaming(true);
+            long count = 0;
+            try (TokenStream stream = analyzer.tokenStream(null, new SyntheticReader(sample, length))) {
+                stream.reset();
+                while (stream.incrementToken()) {
+                    count ++;
+                }
+                stream.end();
+            }
+            analyzer.close();
+            System.out.println(profile + ": " + count + " tokens in " + length + " chars");
+        }
+    }
+    
+    /**
+     * Repeats a sample until length chars have been read.
+     */
+    static class SyntheticReader extends Reader {
+        private final String sample;
+        private long remaining;
+        private int pos = 0;
+        
+        SyntheticReader(String sample, long length) {
+            this.sample = sample;
+            this.remaining = length;
+        }
+        
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = (int) Math.min(len, remaining);
+            for (int i = 0; i < n; i++) {
+                cbuf[off + i] = sample.charAt(pos);
+                pos = (pos + 1 == sample.length()) ? 0: pos + 1;
+            }
+            remaining -= n;
+            return n;
+        }
+        
+        @Override
+        public void close() {
+        }
+    }
 }
@@ -20,6 +20,7 @@
 package io.bdrc.lucene.zh;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -29,13 +30,20 @@ import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.charfilter.MappingCharFilter;
 import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.custom.CustomAnalyzer;
 import org.apache.lucene.analysis.standard.StandardTokenizer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.util.CharFilterFactory;
+import org.apache.lucene.analysis.util.TokenFilterFactory;
+import org.apache.lucene.analysis.util.TokenizerFactory;
 import org.junit.Test;
 
 /**
@@ -481,4 +489,194 @@ public class ChineseComponentsTest  {
         TokenStream words = tokenize(reader, tok);
         assertTokenStream(words, expected);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testPinyinNormalizingFilter() throws IOException
+    {
+        // the runs of chars below U+0102 are copied at once, the grave accent of the second input
+        // is the first char of the second read of the filter's 1024 chars buffer
+        StringBuilder lazy = new StringBuilder();
+        while (lazy.length() < 1023) {
+            lazy.append("ru shi wo wen ");
+        }
+        lazy.setLength(1023);
+        lazy.append("a\u0300 yi shi fo zai ");
+        for (String input: new String[] {"Ăn ăn ḿ Ńg ǹ ša\u0300n u\u0300 ü\u0300e \u0300 x\u0300 lüè", lazy.toString()}) {
+            MappingCharFilter reference = new MappingCharFilter(PinyinNormalizingFilter.getNormalizeCharMap(), 
+                    new StringReader(input));
+            PinyinNormalizingFilter filter = new PinyinNormalizingFilter(new StringReader(input));
+            StringBuilder expected = new StringBuilder();
+            StringBuilder normalized = new StringBuilder();
+            char[] buffer = new char[input.length() > 100 ? 100: 3];
+            int read;
+            while ((read = reference.read(buffer)) != -1) {
+                expected.append(buffer, 0, read);
+            }
+            while ((read = filter.read(buffer)) != -1) {
+                normalized.append(buffer, 0, read);
+            }
+            System.out.println("0 " + input);
+            System.out.println("1 " + expected);
+            System.out.println("2 " + normalized + "\n");
+            assertThat(normalized.toString(), is(expected.toString()));
+            for (int i = 0; i <= normalized.length(); i++) {
+                assertThat(filter.correctOffset(i), is(reference.correctOffset(i)));
+            }
+        }
+        // in streaming mode, a run of lone grave accents is a single correction
+        StringBuilder graves = new StringBuilder("x");
+        for (int i = 0; i < 5000; i++) {
+            graves.append('\u0300');
+        }
+        graves.append("yi");
+        PinyinNormalizingFilter streaming = new PinyinNormalizingFilter(new StringReader(graves.toString()), true);
+        char[] buffer = new char[16];
+        StringBuilder normalized = new StringBuilder();
+        int read;
+        while ((read = streaming.read(buffer)) != -1) {
+            normalized.append(buffer, 0, read);
+        }
+        assertThat(normalized.toString(), is("xyi"));
+        assertThat(streaming.getCorrectionCount(), is(1));
+        assertThat(streaming.correctOffset(1), is(5001));
+        assertThat(streaming.correctOffset(3), is(5003));
+        assertThat(PinyinNormalizingFilter.needsNormalization("lüe zhōng"), is(false));
+        assertThat(PinyinNormalizingFilter.needsNormalization("lu\u0300"), is(true));
+    }
+
+    @Test
+    public void testCjkScanner()
+    {
+        char[] text = "rú shì wǒ wén，如是我聞𠀀一時".toCharArray();
+        assertThat(CjkScanner.skipBelow(text, 0, text.length, '\u0102'), is(8));
+        assertThat(CjkScanner.skipBelow(text, 0, text.length, CjkScanner.MIN_IDEOGRAPH), is(13));
+        assertThat(CjkScanner.skipBelow(text, 0, 5, CjkScanner.MIN_IDEOGRAPH), is(5));
+        // stops at the surrogates of 𠀀
+        assertThat(CjkScanner.skipBmpIdeographs(text, 14, text.length), is(18));
+        assertThat(CjkScanner.skipBmpIdeographs(text, 20, text.length), is(text.length));
+        assertThat(CjkScanner.skipBmpIdeographs(text, 0, text.length), is(0));
+        // longer than any vector
+        char[] run = new char[300];
+        Arrays.fill(run, '佛');
+        run[257] = '!';
+        assertThat(CjkScanner.skipBmpIdeographs(run, 3, run.length), is(257));
+        assertThat(CjkScanner.skipBelow(run, 0, run.length, '佛'), is(0));
+        assertThat(CjkScanner.skipBelow(run, 0, run.length, '\uFFFF'), is(run.length));
+    }
+
+    @Test
+    public void testPreload()
+    {
+        Set<String> loaded = ZhDictionaries.preload();
+        System.out.println(loaded);
+        for (String name: new String[] {"mappings:" + ZhDictionaries.TC2SC, "mappings:" + ZhDictionaries.PINYIN,
+                "dictionary:" + ZhDictionaries.SYNONYMS, "dictionary:" + ZhDictionaries.STOPWORDS,
+                "dictionary:" + PinyinStopWordsFilter.lazyBaseFileName, CompiledTrie.trieBaseFileName}) {
+            assertTrue(name, loaded.contains(name));
+        }
+        // the resources are found in the classpath, not in src/main/resources
+        assertTrue(ZhDictionaries.getDictionary(ZhDictionaries.SYNONYMS).getSource().startsWith("resource "));
+        assertNotNull(CommonHelpers.class.getResourceAsStream("/" + ZhDictionaries.TC2SC));
+    }
+
+    @Test
+    public void testNumeralFilter() throws IOException
+    {
+        String input = "卷第三千五百 廿 卅五 壹萬貳仟 一億五千萬 二〇二三年 一萬五 百零八";
+        Reader reader = new StringReader(input);
+        List<String> expected = Arrays.asList("卷", "第", "3500", "20", "35", "12000", "150000000", 
+                "2023", "年", "15000", "108");
+        System.out.println("0 " + input);
+        Tokenizer tok = new StandardTokenizer();
+        TokenStream words = tokenize(reader, tok);
+        TokenStream zhOnly = new ZhOnlyFilter(words);
+        TokenStream numerals = new ZhNumeralFilter(zhOnly);
+        assertTokenStream(numerals, expected);
+        assertThat(ZhNumeralPoints.getValues("大般若波羅蜜多經卷第三百五十"), is(Arrays.asList(350L)));
+    }
+    
+    @Test
+    public void testSC2TCFilter() throws IOException
+    {
+        String input = "只经后";
+        Reader reader = new StringReader(input);
+        List<String> expected = Arrays.asList("只", "祇", "衹", "隻", "经", "經", "后", "後");
+        System.out.println("0 " + input);
+        Tokenizer tok = new StandardTokenizer();
+        TokenStream words = tokenize(reader, tok);
+        TokenStream zhOnly = new ZhOnlyFilter(words);
+        TokenStream tc = new SC2TCFilter(zhOnly);
+        assertTokenStream(tc, expected);
+        assertThat(SC2TCFilter.getCandidates("经"), is(Arrays.asList("经", "經")));
+    }
+
+    static List<String> describe(CapturedTokens tokens) {
+        final List<String> result = new ArrayList<>();
+        for (int i = 0; i < tokens.size(); i ++) {
+            result.add(tokens.term(i) + " " + tokens.startOffset(i) + "-" + tokens.endOffset(i) + " +" + tokens.positionIncrement(i));
+        }
+        return result;
+    }
+
+    @Test
+    public void testFactories() throws IOException
+    {
+        assertTrue(TokenizerFactory.availableTokenizers().contains("zhPinyinSyllable"));
+        assertTrue(CharFilterFactory.availableCharFilters().containsAll(Arrays.asList("zhStopWords", "zhPinyinNormalizing", "zhNumeric")));
+        assertTrue(TokenFilterFactory.availableTokenFilters().containsAll(Arrays.asList("zhOnly", "zhSynonym", "zhAlternates",
+                "zhTC2SC", "zhSC2TC", "zhToPinyin", "zhLazyPinyin", "zhPinyinNumberedToMarked", "zhStopWordsToken",
+                "zhPinyinStopWords", "zhNumeral")));
+
+        /* the chain of the TC2SC profile */
+        final Analyzer tc2sc = CustomAnalyzer.builder()
+                .addCharFilter("zhStopWords")
+                .withTokenizer("standard")
+                .addTokenFilter("zhOnly")
+                .addTokenFilter("zhSynonym")
+                .addTokenFilter("zhAlternates")
+                .addTokenFilter("zhTC2SC")
+                .build();
+        final Analyzer tc2scProfile = new ChineseAnalyzer("TC2SC", true, 3);
+        final String input = "如是我聞：一時，佛在舍衛國祇樹給孤獨園。";
+        assertThat(describe(CapturedTokens.capture(tc2sc.tokenStream("f", input))),
+                is(describe(CapturedTokens.capture(tc2scProfile.tokenStream("f", input)))));
+        assertThat(tc2sc.normalize("f", "舍衛國"), is(tc2scProfile.normalize("f", "舍衛國")));
+
+        /* the chain of the PYstrict2PYlazy profile */
+        final Analyzer pyLazy = CustomAnalyzer.builder()
+                .addCharFilter("zhPinyinNormalizing")
+                .withTokenizer("zhPinyinSyllable")
+                .addTokenFilter("zhPinyinNumberedToMarked")
+                .addTokenFilter("zhPinyinStopWords")
+                .addTokenFilter("zhLazyPinyin")
+                .build();
+        final Analyzer pyLazyProfile = new ChineseAnalyzer("PYstrict2PYlazy", true, 0);
+        final String pinyin = "Rú shì wǒ wén: yīshí, fó zài she4wei4guo2";
+        assertThat(describe(CapturedTokens.capture(pyLazy.tokenStream("f", pinyin))),
+                is(describe(CapturedTokens.capture(pyLazyProfile.tokenStream("f", pinyin)))));
+
+        /* the Latin tokens of a mixed text: lowercase and asciifolding leave the ideograms unchanged */
+        final Analyzer mixed = CustomAnalyzer.builder()
+                .withTokenizer("standard")
+                .addTokenFilter("zhOnly", "keepLatin", "true")
+                .addTokenFilter("lowercase")
+                .addTokenFilter("asciiFolding")
+                .build();
+        final ChineseAnalyzer mixedProfile = new ChineseAnalyzer("TC", false, 0);
+        mixedProfile.setLatinChain(ChineseAnalyzer.DEFAULT_LATIN_CHAIN);
+        final String latin = "般若心經 Prajñāpāramitā Hṛdaya Sūtra";
+        assertThat(describe(CapturedTokens.capture(mixed.tokenStream("f", latin))),
+                is(describe(CapturedTokens.capture(mixedProfile.tokenStream("f", latin)))));
+
+        /* the factories and the analyzers share the tables of the registry */
+        assertTrue(TC2SCFilter.getMap() == ZhDictionaries.getCharArrayMappings(ZhDictionaries.TC2SC));
+        assertTrue(ZhDictionaries.loaded().contains("dictionary:" + ZhDictionaries.SYNONYMS));
+        assertTrue(ZhSynonymFilter.getMap() == ZhDictionaries.getDictionary(ZhDictionaries.SYNONYMS).get());
+        tc2sc.close();
+        tc2scProfile.close();
+        pyLazy.close();
+        pyLazyProfile.close();
+        mixed.close();
+        mixedProfile.close();
+    }
+}
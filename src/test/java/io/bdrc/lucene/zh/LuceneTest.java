@@ -30,9 +30,11 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Date;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CharArraySet;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.LongPoint;
@@ -48,12 +50,14 @@ import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.ByteBuffersDirectory;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Tests emulating a whole Lucene system.
@@ -89,6 +93,163 @@ public class LuceneTest {
         assertEquals(hits, 1);
     }
 
+    @Test
+    public void testTC2SCPayloads() throws IOException, ParseException {
+        ChineseAnalyzer analyzer = new ChineseAnalyzer("TC2SC", false, 0);
+        analyzer.setPayloads(true);
+        Directory dir = new ByteBuffersDirectory();
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(analyzer));
+        for (String input: new String[] {"大乘經典", "大乘经典"}) {
+            Document doc = new Document();
+            doc.add(new TextField("contents", input, Field.Store.NO));
+            writer.addDocument(doc);
+        }
+        writer.close();
+
+        IndexReader reader = DirectoryReader.open(dir);
+        IndexSearcher searcher = new IndexSearcher(reader);
+        // regular queries match both scripts
+        assertEquals(2, searcher.count(new QueryParser("contents", analyzer).parse("\"經典\"")));
+        // exact queries only match the original ideograms
+        TopDocs exact = searcher.search(ZhPayloadQueries.newExactQuery(analyzer, "contents", "經典"), 10);
+        assertEquals(1, exact.totalHits.value);
+        assertEquals(0, exact.scoreDocs[0].doc);
+        exact = searcher.search(ZhPayloadQueries.newExactQuery(analyzer, "contents", "经典"), 10);
+        assertEquals(1, exact.totalHits.value);
+        assertEquals(1, exact.scoreDocs[0].doc);
+        reader.close();
+    }
+
+    @Test
+    public void testPYlazyTonePayloads() throws IOException, ParseException {
+        ChineseAnalyzer indexingAnalyzer = new ChineseAnalyzer("TC2PYlazy", false, 0);
+        indexingAnalyzer.setPayloads(true);
+        ChineseAnalyzer strictAnalyzer = new ChineseAnalyzer("PYstrict2PYlazy");
+        strictAnalyzer.setPayloads(true);
+        Directory dir = new ByteBuffersDirectory();
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(indexingAnalyzer));
+        Document doc = new Document();
+        doc.add(new TextField("contents", "丹珠尔", Field.Store.NO));
+        writer.addDocument(doc);
+        writer.close();
+
+        IndexReader reader = DirectoryReader.open(dir);
+        IndexSearcher searcher = new IndexSearcher(reader);
+        assertEquals(1, searcher.count(new QueryParser("contents", new ChineseAnalyzer("PYlazy")).parse("\"dan zhu er\"")));
+        assertEquals(1, searcher.count(ZhPayloadQueries.newExactQuery(strictAnalyzer, "contents", "dān zhū ěr")));
+        assertEquals(1, searcher.count(ZhPayloadQueries.newExactQuery(strictAnalyzer, "contents", "dan1 zhu1 er3")));
+        assertEquals(0, searcher.count(ZhPayloadQueries.newExactQuery(strictAnalyzer, "contents", "dàn zhū ěr")));
+        reader.close();
+    }
+
+    @Test
+    public void testPrefixQueries() throws IOException, ParseException {
+        ChineseAnalyzer analyzer = new ChineseAnalyzer("TC2PYlazy");
+        Directory dir = new ByteBuffersDirectory();
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(analyzer));
+        for (String input: new String[] {"大乘經典", "經文", "典經"}) {
+            Document doc = new Document();
+            doc.add(new TextField("contents", input, Field.Store.NO));
+            writer.addDocument(doc);
+        }
+        writer.close();
+        IndexReader reader = DirectoryReader.open(dir);
+        IndexSearcher searcher = new IndexSearcher(reader);
+        QueryParser parser = new QueryParser("contents", analyzer);
+        // the prefix of a single ideogram matches its syllable
+        Query query = parser.parse("經*");
+        assertEquals("contents:jing*", query.toString());
+        assertEquals(3, searcher.count(query));
+        // the term of several ideograms matches no syllable
+        query = parser.parse("經典*");
+        assertEquals("contents:jingdian*", query.toString());
+        assertEquals(0, searcher.count(query));
+        // the prefix queries built from the tokens follow the syllables
+        query = ZhPrefixQueries.newPrefixQuery(analyzer, "contents", "經典");
+        assertEquals(1, searcher.count(query));
+        assertEquals(1, searcher.count(ZhPrefixQueries.newPrefixQuery(new ChineseAnalyzer("PYlazy"), "contents", "jing di")));
+        assertEquals(1, searcher.count(ZhPrefixQueries.newPrefixQuery(new ChineseAnalyzer("PYlazy"), "contents", "dian ji")));
+        assertEquals(0, searcher.count(ZhPrefixQueries.newPrefixQuery(new ChineseAnalyzer("PYlazy"), "contents", "wen ji")));
+        reader.close();
+    }
+
+    @Test
+    public void testCommonGrams() throws IOException, ParseException {
+        Directory dir = new ByteBuffersDirectory();
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new ChineseAnalyzer("TC", false, 0)));
+        for (String input: new String[] {"佛之道", "佛道之", "之道"}) {
+            Document doc = new Document();
+            doc.add(new TextField("contents", input, Field.Store.NO));
+            writer.addDocument(doc);
+        }
+        writer.close();
+        IndexReader reader = DirectoryReader.open(dir);
+        // 之 and 道 are in all the documents, 佛 in two
+        CharArraySet commonWords = ZhCommonGrams.fromIndex(reader, "contents", 2);
+        assertEquals(2, commonWords.size());
+        assertTrue(commonWords.contains("之") && commonWords.contains("道"));
+        reader.close();
+
+        commonWords = ZhCommonGrams.fromStopWords("TC");
+        ChineseAnalyzer indexingAnalyzer = new ChineseAnalyzer("TC", false, 0);
+        indexingAnalyzer.setCommonGrams(commonWords);
+        ChineseAnalyzer queryingAnalyzer = new ChineseAnalyzer("TC", false, 0);
+        queryingAnalyzer.setCommonGrams(commonWords);
+        queryingAnalyzer.setQueryMode(true);
+        dir = new ByteBuffersDirectory();
+        writer = new IndexWriter(dir, new IndexWriterConfig(indexingAnalyzer));
+        for (String input: new String[] {"佛之道", "佛道之", "之道"}) {
+            Document doc = new Document();
+            doc.add(new TextField("contents", input, Field.Store.NO));
+            writer.addDocument(doc);
+        }
+        writer.close();
+        reader = DirectoryReader.open(dir);
+        IndexSearcher searcher = new IndexSearcher(reader);
+        QueryParser parser = new QueryParser("contents", queryingAnalyzer);
+        // the phrase only reads the postings of the bigrams 佛_之 and 之_道
+        Query query = parser.parse("\"佛之道\"");
+        assertEquals("contents:\"佛_之 之_道\"", query.toString());
+        assertEquals(1, searcher.count(query));
+        assertEquals(2, searcher.count(parser.parse("\"之道\"")));
+        // unigrams are still indexed
+        assertEquals(3, searcher.count(parser.parse("之")));
+        assertEquals(1, searcher.count(parser.parse("\"佛道\"")));
+        reader.close();
+    }
+
+    @Test
+    public void testLexicon() throws IOException, ParseException {
+        ZhLexicon lexicon = ZhLexicon.build(new ChineseAnalyzer("TC", false, 0), Arrays.asList("般若", "波羅蜜多"));
+        ChineseAnalyzer indexingAnalyzer = new ChineseAnalyzer("TC", false, 0);
+        indexingAnalyzer.setLexicon(lexicon);
+        ChineseAnalyzer queryingAnalyzer = new ChineseAnalyzer("TC", false, 0);
+        queryingAnalyzer.setLexicon(lexicon);
+        queryingAnalyzer.setQueryMode(true);
+        Directory dir = new ByteBuffersDirectory();
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(indexingAnalyzer));
+        for (String input: new String[] {"般若波羅蜜多心經", "波羅蜜", "多波羅蜜"}) {
+            Document doc = new Document();
+            doc.add(new TextField("contents", input, Field.Store.NO));
+            writer.addDocument(doc);
+        }
+        writer.close();
+        IndexReader reader = DirectoryReader.open(dir);
+        IndexSearcher searcher = new IndexSearcher(reader);
+        QueryParser parser = new QueryParser("contents", queryingAnalyzer);
+        // a word of the lexicon is a single term
+        Query query = parser.parse("\"波羅蜜多\"");
+        assertEquals("contents:波羅蜜多", query.toString());
+        assertEquals(1, searcher.count(query));
+        // words and unigrams in the same phrase
+        query = parser.parse("\"般若波羅蜜多心\"");
+        assertEquals("contents:\"般若 ? 波羅蜜多 ? ? ? 心\"", query.toString());
+        assertEquals(1, searcher.count(query));
+        // the unigrams are still indexed
+        assertEquals(3, searcher.count(parser.parse("\"波羅蜜\"")));
+        reader.close();
+    }
+
     int searchIndex(String queryString, Analyzer analyzer, File indexFolder, int repeat)
             throws IOException, ParseException {
         String field = "contents";
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh.benchmark;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import io.bdrc.lucene.zh.CommonHelpers;
+import io.bdrc.lucene.zh.LazyPinyinFilter;
+
+/**
+ * Generates a reproducible corpus for the benchmarks.
+ *
+ * The ideograms are drawn with a Zipf-like distribution: the characters
+ * of the stopwords come first, then the TC characters of tc2sc.tsv, then
+ * the rest of pinyin.tsv. Punctuation is inserted every 4 to 12 ideograms.
+ * Texts for SC and PY profiles are derived from the same TC text.
+ */
+public class BenchmarkCorpus {
+
+    public static final String[] ALL_PROFILES = {"exactTC", "TC", "TC2SC", "TC2PYstrict", "TC2PYlazy",
+            "SC", "SC2TC", "SC2PYstrict", "SC2PYlazy", "PYstrict", "PYstrict2PYlazy", "PYlazy"};
+
+    private static final char[] PUNCTUATION = {'，', '，', '。', '；', '、', '\n'};
+
+    private final Map<String, String> pinyin = CommonHelpers.getMappings("pinyin.tsv");
+    private final Map<String, String> tc2sc = CommonHelpers.getMappings("tc2sc.tsv");
+    private final Map<String, String> lazy = LazyPinyinFilter.getMapping();
+    private final List<String> ideograms = new ArrayList<>();
+    private final Random random;
+
+    public BenchmarkCorpus(long seed) {
+        random = new Random(seed);
+        final LinkedHashSet<String> ranked = new LinkedHashSet<>();
+        for (final String word: CommonHelpers.getWords("zh-stopwords.txt")) {
+            for (int i = 0; i < word.length(); i ++) {
+                ranked.add(word.substring(i, i + 1));
+            }
+        }
+        ranked.addAll(tc2sc.keySet());
+        ranked.addAll(pinyin.keySet());
+        for (final String ideogram: ranked) {
+            if (pinyin.containsKey(ideogram)) {
+                ideograms.add(ideogram);
+            }
+        }
+    }
+
+    /**
+     * @return an ideogram, the rank being log-uniformly distributed
+     */
+    public String nextIdeogram() {
+        final int rank = (int) Math.pow(ideograms.size(), random.nextDouble()) - 1;
+        return ideograms.get(Math.min(rank, ideograms.size() - 1));
+    }
+
+    /**
+     * @param length the number of ideograms
+     * @return a TC text of length ideograms plus punctuation
+     */
+    public String nextTC(int length) {
+        final StringBuilder sb = new StringBuilder(length + length / 4);
+        int nextPunct = 4 + random.nextInt(9);
+        for (int i = 0; i < length; i ++) {
+            sb.append(nextIdeogram());
+            if (-- nextPunct == 0) {
+                sb.append(PUNCTUATION[random.nextInt(PUNCTUATION.length)]);
+                nextPunct = 4 + random.nextInt(9);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param tc a text generated by {@link #nextTC(int)}
+     * @param profile a ChineseAnalyzer profile
+     * @return tc in the input encoding of profile: TC, SC, PYstrict (marked) or PYlazy
+     */
+    public String forProfile(String tc, String profile) {
+        if (profile.startsWith("SC")) {
+            return convert(tc, tc2sc, false);
+        } else if (profile.startsWith("PYlazy")) {
+            return stripTones(convert(tc, pinyin, true));
+        } else if (profile.startsWith("PY")) {
+            return convert(tc, pinyin, true);
+        }
+        return tc;
+    }
+
+    private static String convert(String text, Map<String, String> map, boolean spaced) {
+        final StringBuilder sb = new StringBuilder(text.length() * (spaced ? 6: 1));
+        int i = 0;
+        while (i < text.length()) {
+            final int cp = text.codePointAt(i);
+            final String c = new String(Character.toChars(cp));
+            i += Character.charCount(cp);
+            final String mapped = map.get(c);
+            if (mapped == null) {
+                sb.append(c);
+            } else {
+                if (spaced && sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ') {
+                    sb.append(' ');
+                }
+                sb.append(mapped);
+            }
+        }
+        return sb.toString();
+    }
+
+    private String stripTones(String marked) {
+        final StringBuilder sb = new StringBuilder(marked.length());
+        for (int i = 0; i < marked.length(); i ++) {
+            final String c = marked.substring(i, i + 1);
+            final String mapped = lazy.get(c);
+            sb.append(mapped == null ? c: mapped);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return count documents of length ideograms, for profile
+     */
+    public List<String> documents(String profile, int count, int length) {
+        final List<String> docs = new ArrayList<>(count);
+        for (int i = 0; i < count; i ++) {
+            docs.add(forProfile(nextTC(length), profile));
+        }
+        return docs;
+    }
+
+    /**
+     * @return the accumulated collection time of all the garbage collectors, in ms
+     */
+    public static long gcTimeMillis() {
+        long total = 0;
+        for (final GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    /**
+     * @return the CPU time used by the JVM process, in ns, -1 if not available
+     */
+    public static long processCpuTime() {
+        final java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * @return args as a map of "-key value" options
+     */
+    static Map<String, String> parseArgs(String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^-+", ""), args[i + 1]);
+        }
+        return options;
+    }
+
+    static String[] profiles(Map<String, String> options) {
+        final String profiles = options.get("profiles");
+        return (profiles == null) ? ALL_PROFILES: profiles.split(",");
+    }
+}
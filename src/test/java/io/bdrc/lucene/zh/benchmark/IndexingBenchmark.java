@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+import io.bdrc.lucene.zh.ChineseAnalyzer;
+
+/**
+ * End-to-end indexing benchmark: builds an FSDirectory index of a generated corpus
+ * with 1, 2, 4... up to N indexing threads, for each profile.
+ *
+ * For each run, reports:
+ *      - docs/s: documents indexed per second (wall time, including the final commit)
+ *      - analysis CPU share: process CPU time of analyzing the same documents without indexing
+ *        divided by the process CPU time of the indexing run (flushes and merges included)
+ *      - index size in MB after commit
+ *      - GC time in ms during the indexing run
+ *
+ * The analysis is run once on all the documents before the measures, to warm up the JIT.
+ *
+ * Run with:
+ *      mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ *      java -cp target/classes:target/test-classes:$(cat cp.txt) io.bdrc.lucene.zh.benchmark.IndexingBenchmark
+ *          -profiles TC,TC2SC -threads 8 -docs 2000 -length 2000
+ */
+public class IndexingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = BenchmarkCorpus.parseArgs(args);
+        final int maxThreads = Integer.parseInt(options.getOrDefault("threads",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        final int docCount = Integer.parseInt(options.getOrDefault("docs", "2000"));
+        final int docLength = Integer.parseInt(options.getOrDefault("length", "2000"));
+        final Path baseDir = Files.createTempDirectory("lucene-zh-indexing-bench");
+
+        System.out.println("profile\tthreads\tdocs/s\tanalysis CPU share\tindex MB\tGC ms");
+        try {
+            for (final String profile: BenchmarkCorpus.profiles(options)) {
+                final List<String> docs = new BenchmarkCorpus(42).documents(profile, docCount, docLength);
+                analyze(profile, docs, maxThreads);
+                for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                    final long analysisCpu = analyze(profile, docs, threads);
+                    final Path indexDir = baseDir.resolve(profile + "-" + threads);
+                    final long gcStart = BenchmarkCorpus.gcTimeMillis();
+                    final long cpuStart = BenchmarkCorpus.processCpuTime();
+                    final long start = System.nanoTime();
+                    index(profile, docs, threads, indexDir);
+                    final long elapsed = System.nanoTime() - start;
+                    final long indexingCpu = BenchmarkCorpus.processCpuTime() - cpuStart;
+                    final long gc = BenchmarkCorpus.gcTimeMillis() - gcStart;
+                    System.out.println(String.format("%s\t%d\t%.1f\t%.2f\t%.2f\t%d", profile, threads,
+                            docCount * 1e9 / elapsed, (double) analysisCpu / indexingCpu,
+                            sizeOf(indexDir) / 1048576.0, gc));
+                    IOUtils.rm(indexDir);
+                }
+            }
+        } finally {
+            IOUtils.rm(baseDir);
+        }
+    }
+
+    /**
+     * Consumes the tokens of all the documents without indexing them.
+     *
+     * @return the process CPU time used, in ns
+     */
+    static long analyze(final String profile, final List<String> docs, final int threads) throws Exception {
+        final Analyzer analyzer = new ChineseAnalyzer(profile);
+        final long cpuStart = BenchmarkCorpus.processCpuTime();
+        runThreads(threads, docs.size(), i -> {
+            try (TokenStream stream = analyzer.tokenStream("contents", docs.get(i))) {
+                stream.reset();
+                while (stream.incrementToken()) {
+                    // just consume
+                }
+                stream.end();
+            }
+        });
+        analyzer.close();
+        return BenchmarkCorpus.processCpuTime() - cpuStart;
+    }
+
+    static void index(final String profile, final List<String> docs, final int threads, final Path indexDir) throws Exception {
+        final IndexWriterConfig iwc = new IndexWriterConfig(new ChineseAnalyzer(profile));
+        iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        try (FSDirectory dir = FSDirectory.open(indexDir); IndexWriter writer = new IndexWriter(dir, iwc)) {
+            runThreads(threads, docs.size(), i -> {
+                final Document doc = new Document();
+                doc.add(new TextField("contents", docs.get(i), Field.Store.NO));
+                writer.addDocument(doc);
+            });
+            writer.commit();
+        }
+    }
+
+    interface DocTask {
+        void run(int docIdx) throws IOException;
+    }
+
+    /**
+     * Runs task on all the document indexes, distributed over threads.
+     */
+    static void runThreads(final int threads, final int docCount, final DocTask task) throws Exception {
+        final AtomicInteger next = new AtomicInteger();
+        final List<Thread> workers = new ArrayList<>();
+        final List<Throwable> errors = new ArrayList<>();
+        for (int t = 0; t < threads; t ++) {
+            final Thread worker = new Thread(() -> {
+                try {
+                    int i;
+                    while ((i = next.getAndIncrement()) < docCount) {
+                        task.run(i);
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (final Thread worker: workers) {
+            worker.join();
+        }
+        if (!errors.isEmpty()) {
+            throw new RuntimeException(errors.get(0));
+        }
+    }
+
+    static long sizeOf(Path dir) throws IOException {
+        long size = 0;
+        for (final String file: FSDirectory.listAll(dir)) {
+            size += Files.size(dir.resolve(file));
+        }
+        return size;
+    }
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh.benchmark;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+
+import io.bdrc.lucene.zh.CapturedTokens;
+import io.bdrc.lucene.zh.ChineseAnalyzer;
+import io.bdrc.lucene.zh.PinyinNormalizingFilter;
+
+/**
+ * Measures the char scans of CjkScanner, in chars/s:
+ *      - PY profiles: PinyinNormalizingFilter reading whole documents
+ *      - other profiles: ChineseAnalyzer.analyze() on whole documents (IdeogramTokenizer)
+ *
+ * The Vector API version of the scanner is only in the multi-release jar: compare
+ *      mvn package -DskipTests
+ *      java -cp target/lucene-zh-0.4.2.jar:target/test-classes:$(cat cp.txt) io.bdrc.lucene.zh.benchmark.ScanBenchmark
+ *          -profiles PYlazy,PYstrict,TC -docs 200 -length 5000 -rounds 10
+ * with the same command run with --add-modules jdk.incubator.vector on JDK 17 or later.
+ */
+public class ScanBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = BenchmarkCorpus.parseArgs(args);
+        final int docCount = Integer.parseInt(options.getOrDefault("docs", "200"));
+        final int length = Integer.parseInt(options.getOrDefault("length", "5000"));
+        final int rounds = Integer.parseInt(options.getOrDefault("rounds", "10"));
+        final String[] profiles = options.containsKey("profiles") ? options.get("profiles").split(","):
+            new String[] {"PYlazy", "PYstrict", "TC"};
+
+        System.out.println("profile\tchars/s");
+        for (final String profile: profiles) {
+            final List<String> docs = new BenchmarkCorpus(42).documents(profile, docCount, length);
+            long chars = 0;
+            for (final String doc: docs) {
+                chars += doc.length();
+            }
+            final ChineseAnalyzer analyzer = new ChineseAnalyzer(profile);
+            final CapturedTokens reuse = new CapturedTokens();
+            final char[] buffer = new char[4096];
+            run(profile, docs, analyzer, reuse, buffer);    // warm-up
+            final long start = System.nanoTime();
+            for (int round = 0; round < rounds; round ++) {
+                run(profile, docs, analyzer, reuse, buffer);
+            }
+            final long nanos = System.nanoTime() - start;
+            System.out.println(String.format("%s\t%.0f", profile, chars * rounds * 1e9 / nanos));
+            analyzer.close();
+        }
+    }
+
+    static void run(String profile, List<String> docs, ChineseAnalyzer analyzer, CapturedTokens reuse, char[] buffer)
+            throws IOException {
+        for (final String doc: docs) {
+            if (profile.startsWith("PY")) {
+                try (PinyinNormalizingFilter filter = new PinyinNormalizingFilter(new StringReader(doc), true)) {
+                    while (filter.read(buffer, 0, buffer.length) != -1) {
+                        // only reading
+                    }
+                }
+            } else {
+                analyzer.analyze(doc, reuse);
+            }
+        }
+    }
+}
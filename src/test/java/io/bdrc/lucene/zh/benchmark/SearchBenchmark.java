@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+
+import io.bdrc.lucene.zh.ChineseAnalyzer;
+import io.bdrc.lucene.zh.CommonHelpers;
+import io.bdrc.lucene.zh.ZhCommonGrams;
+
+/**
+ * Query-side benchmark: indexes the same generated corpus under each profile, then
+ * measures the latency of QueryParser.parse() + IndexSearcher.search() for several
+ * query shapes:
+ *      - single: a single ideogram
+ *      - phrase4, phrase12: phrases of 4 and 12 ideograms
+ *      - variant: a phrase of 4 ideograms where the ideograms having a variant
+ *        (zh-synonyms.tsv, zh-alternatives.tsv) are replaced by it
+ *      - pinyin: a phrase of 4 syllables with tones
+ *      - lazy: a phrase of 4 syllables without tones
+ *
+ * The ideogram shapes are run for the profiles with TC or SC input, with the same profile
+ * at query time. The pinyin shapes are run for the profiles with a pinyin index encoding,
+ * with PYstrict, PYstrict2PYlazy or PYlazy at query time. The queries are substrings of
+ * the indexed documents, the pinyin queries on ideogram indexes are the transcriptions
+ * of the ideograms left after stopword and variant filtering.
+ *
+ * Reports p50 and p99 latencies in µs and the average number of hits
+ * (counted up to 1000, as IndexSearcher.search() does).
+ *
+ * With -commongrams true, the stopwords are kept and the single-ideogram stopwords
+ * (ZhCommonGrams.fromStopWords()) are indexed as common grams, the queries are
+ * analyzed in query mode.
+ *
+ * Run with:
+ *      mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ *      java -cp target/classes:target/test-classes:$(cat cp.txt) io.bdrc.lucene.zh.benchmark.SearchBenchmark
+ *          -profiles TC,TC2SC,TC2PYlazy -docs 5000 -length 1000 -queries 500 -commongrams true
+ */
+public class SearchBenchmark {
+
+    static final String[] SHAPES = {"single", "phrase4", "phrase12", "variant", "pinyin", "lazy"};
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = BenchmarkCorpus.parseArgs(args);
+        final int docCount = Integer.parseInt(options.getOrDefault("docs", "5000"));
+        final int docLength = Integer.parseInt(options.getOrDefault("length", "1000"));
+        final int queryCount = Integer.parseInt(options.getOrDefault("queries", "500"));
+        final boolean commonGrams = Boolean.parseBoolean(options.getOrDefault("commongrams", "false"));
+
+        final BenchmarkCorpus corpus = new BenchmarkCorpus(42);
+        final List<String> tcDocs = new ArrayList<>(docCount);
+        for (int i = 0; i < docCount; i ++) {
+            tcDocs.add(corpus.nextTC(docLength));
+        }
+        final Map<String, String> variants = getVariants();
+
+        System.out.println("profile\tshape\tquery profile\tp50 µs\tp99 µs\tavg hits");
+        for (final String profile: BenchmarkCorpus.profiles(options)) {
+            final CharArraySet commonWords = commonGrams ? ZhCommonGrams.fromStopWords(profile): null;
+            try (Directory dir = index(corpus, profile, commonWords, tcDocs); DirectoryReader reader = DirectoryReader.open(dir)) {
+                final IndexSearcher searcher = new IndexSearcher(reader);
+                for (final String shape: SHAPES) {
+                    final String queryProfile = queryProfile(profile, shape);
+                    if (queryProfile == null) {
+                        continue;
+                    }
+                    final List<String> queries = queries(corpus, tcDocs, profile, shape, queryProfile, variants, queryCount);
+                    final QueryParser parser = new QueryParser("contents", analyzer(queryProfile, commonWords, true));
+                    run(parser, searcher, queries);    // warm-up
+                    final long[] latencies = new long[queries.size()];
+                    final long hits = run(parser, searcher, queries, latencies);
+                    Arrays.sort(latencies);
+                    System.out.println(String.format("%s\t%s\t%s\t%d\t%d\t%.1f", profile, shape, queryProfile,
+                            percentile(latencies, 0.5) / 1000, percentile(latencies, 0.99) / 1000,
+                            (double) hits / queries.size()));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the analyzer of profile, with the default settings when commonWords is null,
+     *         keeping the stopwords and indexing commonWords as common grams otherwise
+     */
+    static ChineseAnalyzer analyzer(String profile, CharArraySet commonWords, boolean queryMode) {
+        if (commonWords == null) {
+            return new ChineseAnalyzer(profile);
+        }
+        final ChineseAnalyzer analyzer = profile.equals("exactTC") ? new ChineseAnalyzer(profile):
+            new ChineseAnalyzer(profile, false, profile.startsWith("PY") ? 0: 3);
+        analyzer.setCommonGrams(commonWords);
+        analyzer.setQueryMode(queryMode);
+        return analyzer;
+    }
+
+    static Directory index(BenchmarkCorpus corpus, String profile, CharArraySet commonWords, List<String> tcDocs) throws Exception {
+        final Directory dir = new ByteBuffersDirectory();
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(analyzer(profile, commonWords, false)))) {
+            for (final String tc: tcDocs) {
+                final Document doc = new Document();
+                doc.add(new TextField("contents", corpus.forProfile(tc, profile), Field.Store.NO));
+                writer.addDocument(doc);
+            }
+            writer.forceMerge(1);
+        }
+        return dir;
+    }
+
+    /**
+     * @return the profile analyzing the queries of shape on an index built with profile,
+     *         null if the shape doesn't apply
+     */
+    static String queryProfile(String profile, String shape) {
+        final boolean pinyinShape = shape.equals("pinyin") || shape.equals("lazy");
+        if (profile.endsWith("PYlazy")) {
+            if (!pinyinShape) {
+                return profile.startsWith("PY") ? null: profile;
+            }
+            return shape.equals("pinyin") ? "PYstrict2PYlazy": "PYlazy";
+        } else if (profile.endsWith("PYstrict")) {
+            if (!pinyinShape) {
+                return profile.startsWith("PY") ? null: profile;
+            }
+            return shape.equals("pinyin") ? "PYstrict": null;
+        }
+        return pinyinShape ? null: profile;
+    }
+
+    static List<String> queries(BenchmarkCorpus corpus, List<String> tcDocs, String profile, String shape,
+            String queryProfile, Map<String, String> variants, int count) throws IOException {
+        final Random random = new Random(shape.hashCode());
+        /* pinyin queries on an index of ideograms: transcribe the ideograms that were indexed */
+        Analyzer transcriber = null;
+        if ((shape.equals("pinyin") || shape.equals("lazy")) && !profile.startsWith("PY")) {
+            transcriber = new ChineseAnalyzer(profile.substring(0, 2) + (shape.equals("pinyin") ? "2PYstrict": "2PYlazy"));
+        }
+        final int length = shape.equals("single") ? 1: (shape.equals("phrase12") ? 12: 4);
+        final List<String> queries = new ArrayList<>(count);
+        while (queries.size() < count) {
+            final String doc = tcDocs.get(random.nextInt(tcDocs.size()));
+            final int start = random.nextInt(doc.length() - length);
+            String tc = doc.substring(start, start + length);
+            if (tc.codePointCount(0, tc.length()) != length || !tc.codePoints().allMatch(Character::isIdeographic)) {
+                continue;
+            }
+            if (shape.equals("variant")) {
+                final StringBuilder sb = new StringBuilder();
+                tc.codePoints().forEach(cp -> {
+                    final String c = new String(Character.toChars(cp));
+                    final String variant = variants.get(c);
+                    sb.append(variant == null ? c: variant);
+                });
+                tc = sb.toString();
+            }
+            final String query = (transcriber == null) ? corpus.forProfile(tc, queryProfile): transcribe(transcriber, tc);
+            if (query.isEmpty()) {
+                continue;
+            }
+            queries.add(length == 1 ? query: "\"" + query + "\"");
+        }
+        return queries;
+    }
+
+    static String transcribe(Analyzer analyzer, String text) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        try (TokenStream stream = analyzer.tokenStream("contents", text)) {
+            final CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(termAtt);
+            }
+            stream.end();
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return for each ideogram having a variant, the variant
+     */
+    static Map<String, String> getVariants() {
+        final Map<String, String> variants = new HashMap<>();
+        for (final String baseName: new String[] {"zh-synonyms.tsv", "zh-alternatives.tsv"}) {
+            final Map<String, String> map = CommonHelpers.getMappings(baseName);
+            if (map != null) {
+                for (final Map.Entry<String, String> e: map.entrySet()) {
+                    variants.putIfAbsent(e.getValue(), e.getKey());
+                }
+            }
+        }
+        return variants;
+    }
+
+    static long run(QueryParser parser, IndexSearcher searcher, List<String> queries) throws Exception {
+        return run(parser, searcher, queries, null);
+    }
+
+    static long run(QueryParser parser, IndexSearcher searcher, List<String> queries, long[] latencies) throws Exception {
+        long hits = 0;
+        for (int i = 0; i < queries.size(); i ++) {
+            final long start = System.nanoTime();
+            final TopDocs top = searcher.search(parser.parse(queries.get(i)), 10);
+            if (latencies != null) {
+                latencies[i] = System.nanoTime() - start;
+            }
+            hits += top.totalHits.value;
+        }
+        return hits;
+    }
+
+    static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+}
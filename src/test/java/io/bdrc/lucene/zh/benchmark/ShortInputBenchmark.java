@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import io.bdrc.lucene.zh.CapturedTokens;
+import io.bdrc.lucene.zh.ChineseAnalyzer;
+
+/**
+ * Analyzes short inputs of 2 to 10 ideograms (or their transcription), as typed in
+ * an autocomplete field, with:
+ *      - tokenStream: Analyzer.tokenStream(String, String) consumed by CapturedTokens.fill()
+ *      - analyze: ChineseAnalyzer.analyze(CharSequence, CapturedTokens)
+ * and reports the inputs analyzed per second and the bytes allocated per input
+ * (when the JVM can measure the allocations of a thread).
+ *
+ * Run with:
+ *      mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ *      java -cp target/classes:target/test-classes:$(cat cp.txt) io.bdrc.lucene.zh.benchmark.ShortInputBenchmark
+ *          -profiles TC,TC2PYlazy,PYstrict -inputs 100000 -rounds 5
+ */
+public class ShortInputBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = BenchmarkCorpus.parseArgs(args);
+        final int inputCount = Integer.parseInt(options.getOrDefault("inputs", "100000"));
+        final int rounds = Integer.parseInt(options.getOrDefault("rounds", "5"));
+
+        System.out.println("profile\tmode\tinputs/s\tbytes/input");
+        for (final String profile: BenchmarkCorpus.profiles(options)) {
+            final BenchmarkCorpus corpus = new BenchmarkCorpus(42);
+            final List<String> inputs = new ArrayList<>(inputCount);
+            for (int i = 0; i < inputCount; i ++) {
+                inputs.add(corpus.forProfile(corpus.nextTC(2 + i % 9), profile));
+            }
+            final ChineseAnalyzer analyzer = new ChineseAnalyzer(profile);
+            final CapturedTokens reuse = new CapturedTokens();
+            for (final boolean fastPath: new boolean[] {false, true}) {
+                run(analyzer, inputs, reuse, fastPath);    // warm-up
+                long nanos = 0;
+                long bytes = 0;
+                for (int round = 0; round < rounds; round ++) {
+                    final long startBytes = allocatedBytes();
+                    final long start = System.nanoTime();
+                    run(analyzer, inputs, reuse, fastPath);
+                    nanos += System.nanoTime() - start;
+                    bytes += allocatedBytes() - startBytes;
+                }
+                final long analyzed = (long) inputs.size() * rounds;
+                System.out.println(String.format("%s\t%s\t%.0f\t%.1f", profile, fastPath ? "analyze": "tokenStream",
+                        analyzed * 1e9 / nanos, (double) bytes / analyzed));
+            }
+            analyzer.close();
+        }
+    }
+
+    static void run(ChineseAnalyzer analyzer, List<String> inputs, CapturedTokens reuse, boolean fastPath) throws Exception {
+        for (final String input: inputs) {
+            if (fastPath) {
+                analyzer.analyze(input, reuse);
+            } else {
+                reuse.fill(analyzer.tokenStream("contents", input));
+            }
+        }
+    }
+
+    /**
+     * @return the bytes allocated by the current thread, 0 if the JVM can't tell
+     */
+    static long allocatedBytes() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
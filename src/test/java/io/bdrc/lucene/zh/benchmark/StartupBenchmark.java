@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import io.bdrc.lucene.zh.CapturedTokens;
+import io.bdrc.lucene.zh.ChineseAnalyzer;
+import io.bdrc.lucene.zh.ZhDictionaries;
+
+/**
+ * Measures the startup of a JVM that analyzes a single input, as a CLI tool or the first
+ * request of a service does: each run is a new JVM, started with the classpath of this one
+ * and the given JVM arguments. Reports the medians of:
+ *      - process: the wall time of the JVM, from its start to its exit
+ *      - first: the time of the first analysis, dictionaries included, in the JVM
+ *
+ * Run with:
+ *      mvn package -DskipTests dependency:build-classpath -Dmdep.outputFile=cp.txt
+ *      jar cf bench.jar -C target/test-classes io/bdrc/lucene/zh/benchmark
+ *      java -cp target/lucene-zh-0.4.2.jar:bench.jar:$(cat cp.txt) io.bdrc.lucene.zh.benchmark.StartupBenchmark
+ *          -profiles TC,TC2PYstrict,PYstrict -runs 10 -jvmArgs "-XX:SharedArchiveFile=lucene-zh.jsa"
+ * 
+ * CDS only archives the classes of jars: the classpath must not contain directories. The AppCDS
+ * archive (JDK 13 or later) is created by a training run of a single child:
+ *      java -XX:ArchiveClassesAtExit=lucene-zh.jsa -cp ... io.bdrc.lucene.zh.benchmark.StartupBenchmark
+ *          -child TC2PYstrict -preload true
+ */
+public class StartupBenchmark {
+
+    static final String[] DEFAULT_PROFILES = {"TC", "TC2SC", "TC2PYstrict", "SC2TC", "PYstrict", "PYlazy"};
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = BenchmarkCorpus.parseArgs(args);
+        if (options.containsKey("child")) {
+            child(options.get("child"), Boolean.parseBoolean(options.getOrDefault("preload", "false")));
+            return;
+        }
+        final int runs = Integer.parseInt(options.getOrDefault("runs", "10"));
+        final String jvmArgs = options.getOrDefault("jvmArgs", "").trim();
+        final String[] profiles = options.containsKey("profiles") ? options.get("profiles").split(","): DEFAULT_PROFILES;
+        final String preload = options.getOrDefault("preload", "false");
+
+        System.out.println("profile\tprocess ms\tfirst ms");
+        for (final String profile: profiles) {
+            final List<Double> process = new ArrayList<>();
+            final List<Double> first = new ArrayList<>();
+            for (int run = 0; run < runs; run ++) {
+                final List<String> command = new ArrayList<>();
+                command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+                if (!jvmArgs.isEmpty()) {
+                    command.addAll(Arrays.asList(jvmArgs.split("\\s+")));
+                }
+                command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), StartupBenchmark.class.getName(),
+                        "-child", profile, "-preload", preload));
+                final long start = System.nanoTime();
+                final Process child = new ProcessBuilder(command).redirectErrorStream(true).start();
+                String result = null;
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.startsWith("first\t")) {
+                            result = line;
+                        }
+                    }
+                }
+                if (child.waitFor() != 0 || result == null) {
+                    throw new IllegalStateException("run " + run + " of " + profile + " failed: " + command);
+                }
+                process.add((System.nanoTime() - start) / 1e6);
+                first.add(Double.parseDouble(result.split("\t")[1]));
+            }
+            System.out.println(String.format("%s\t%.1f\t%.1f", profile, median(process), median(first)));
+        }
+    }
+
+    /**
+     * The JVM of a run: analyzes a sample of profile and prints the time it took.
+     */
+    static void child(String profile, boolean preload) throws Exception {
+        final long start = System.nanoTime();
+        if (preload) {
+            ZhDictionaries.preload();
+        }
+        final ChineseAnalyzer analyzer = new ChineseAnalyzer(profile);
+        final CapturedTokens tokens = new CapturedTokens();
+        analyzer.analyze(sample(profile), tokens);
+        final double millis = (System.nanoTime() - start) / 1e6;
+        analyzer.close();
+        System.out.println("first\t" + millis + "\t" + tokens.size());
+    }
+
+    static String sample(String profile) {
+        if (profile.startsWith("PYlazy")) {
+            return "ru shi wo wen yi shi fo zai";
+        } else if (profile.startsWith("PY")) {
+            return "rú shì wǒ wén yī shí fó zài";
+        } else if (profile.startsWith("SC")) {
+            return "如是我闻一时佛在";
+        }
+        return "如是我聞一時佛在";
+    }
+
+    static double median(List<Double> values) {
+        Collections.sort(values);
+        return values.get(values.size() / 2);
+    }
+}
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2018 Buddhist Digital Resource Center (BDRC)
+ *
+ * If this file is a derivation of another work the license header will appear
+ * below; otherwise, this work is licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package io.bdrc.lucene.zh.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+
+import io.bdrc.lucene.zh.ChineseAnalyzer;
+
+/**
+ * Runs the same analysis from 1, 2, 4... up to N threads (64 by default), each thread
+ * analyzing all the documents of a generated corpus, and reports:
+ *      - the throughput in tokens/s
+ *      - the scaling efficiency: throughput / (threads * throughput with 1 thread),
+ *        and the same relative to min(threads, available processors)
+ *      - the number of times and the time the workers were blocked on a monitor
+ *        (class initialization locks, synchronized loggers, etc.) and the number of waits
+ *
+ * Each run is done with one Analyzer shared by all threads (each thread gets its own
+ * TokenStreamComponents through the reuse strategy but shares the static dictionaries
+ * and the static Trie of PinyinSyllableTokenizer) and with one Analyzer per thread.
+ * A per-thread run that is much faster than the shared run points to contention or false
+ * sharing on the state of the Analyzer, a shared run scaling badly while the blocked
+ * counts stay at 0 points to contention on memory bandwidth or allocation.
+ *
+ * Run with:
+ *      mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ *      java -cp target/classes:target/test-classes:$(cat cp.txt) io.bdrc.lucene.zh.benchmark.ThreadScalingBenchmark
+ *          -profiles TC,PYstrict2PYlazy -threads 64 -docs 200 -length 2000
+ */
+public class ThreadScalingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = BenchmarkCorpus.parseArgs(args);
+        final int maxThreads = Integer.parseInt(options.getOrDefault("threads", "64"));
+        final int docCount = Integer.parseInt(options.getOrDefault("docs", "200"));
+        final int docLength = Integer.parseInt(options.getOrDefault("length", "2000"));
+        final int cores = Runtime.getRuntime().availableProcessors();
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean.isThreadContentionMonitoringSupported()) {
+            threadBean.setThreadContentionMonitoringEnabled(true);
+        }
+
+        System.out.println("available processors: " + cores);
+        System.out.println("profile\tmode\tthreads\ttokens/s\tefficiency\tefficiency/cores\tblocked\tblocked ms\twaited");
+        for (final String profile: BenchmarkCorpus.profiles(options)) {
+            final List<String> docs = new BenchmarkCorpus(42).documents(profile, docCount, docLength);
+            for (int i = 0; i < 3; i ++) {    // warm-up
+                run(profile, docs, Math.min(maxThreads, cores), true);
+                run(profile, docs, Math.min(maxThreads, cores), false);
+            }
+            for (final boolean shared: new boolean[] {true, false}) {
+                double singleThroughput = 0;
+                for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                    final Result result = run(profile, docs, threads, shared);
+                    final double throughput = result.tokens * 1e9 / result.nanos;
+                    if (threads == 1) {
+                        singleThroughput = throughput;
+                    }
+                    System.out.println(String.format("%s\t%s\t%d\t%.0f\t%.2f\t%.2f\t%d\t%d\t%d", profile,
+                            shared ? "shared": "per-thread", threads, throughput,
+                            throughput / (threads * singleThroughput),
+                            throughput / (Math.min(threads, cores) * singleThroughput),
+                            result.blockedCount.get(), result.blockedMillis.get(), result.waitedCount.get()));
+                }
+            }
+        }
+    }
+
+    static class Result {
+        long tokens = 0;
+        long nanos = 0;
+        final AtomicLong blockedCount = new AtomicLong();
+        final AtomicLong blockedMillis = new AtomicLong();
+        final AtomicLong waitedCount = new AtomicLong();
+    }
+
+    static Result run(final String profile, final List<String> docs, final int threads, final boolean shared) throws Exception {
+        final Analyzer sharedAnalyzer = shared ? new ChineseAnalyzer(profile): null;
+        final Result result = new Result();
+        final AtomicLong tokens = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> workers = new ArrayList<>();
+        final List<Throwable> errors = new ArrayList<>();
+        for (int t = 0; t < threads; t ++) {
+            final Thread worker = new Thread(() -> {
+                final Analyzer analyzer = shared ? sharedAnalyzer: new ChineseAnalyzer(profile);
+                final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+                final long id = Thread.currentThread().getId();
+                final ThreadInfo before = threadBean.getThreadInfo(id);
+                long count = 0;
+                try {
+                    start.await();
+                    for (final String doc: docs) {
+                        try (TokenStream stream = analyzer.tokenStream("contents", doc)) {
+                            stream.reset();
+                            while (stream.incrementToken()) {
+                                count ++;
+                            }
+                            stream.end();
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+                tokens.addAndGet(count);
+                final ThreadInfo after = threadBean.getThreadInfo(id);
+                result.blockedCount.addAndGet(after.getBlockedCount() - before.getBlockedCount());
+                if (after.getBlockedTime() >= 0) {
+                    result.blockedMillis.addAndGet(after.getBlockedTime() - before.getBlockedTime());
+                }
+                result.waitedCount.addAndGet(after.getWaitedCount() - before.getWaitedCount());
+                if (!shared) {
+                    analyzer.close();
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        final long startTime = System.nanoTime();
+        start.countDown();
+        for (final Thread worker: workers) {
+            worker.join();
+        }
+        result.nanos = System.nanoTime() - startTime;
+        result.tokens = tokens.get();
+        if (sharedAnalyzer != null) {
+            sharedAnalyzer.close();
+        }
+        if (!errors.isEmpty()) {
+            throw new RuntimeException(errors.get(0));
+        }
+        return result;
+    }
+}